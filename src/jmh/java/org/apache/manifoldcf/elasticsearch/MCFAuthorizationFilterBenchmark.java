@@ -0,0 +1,91 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.TermFilterBuilder;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Measures building and serializing the authorization filter, for both filter
+* shapes, with and without the serialized filter cache.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MCFAuthorizationFilterBenchmark
+{
+  @Param({"0", "10", "100", "1000", "5000"})
+  public int tokenCount;
+
+  @Param({"term", "terms", "adaptive"})
+  public String filterShape;
+
+  protected MCFAuthorizer authorizer;
+  protected List<String> tokens;
+  protected FilterBuilder allowShareOpen;
+  protected FilterBuilder denyShareOpen;
+
+  @Setup
+  public void setup()
+  {
+    // No authority service is needed to build filters from known tokens
+    authorizer = new MCFAuthorizer(new MCFConfigurationParameters()
+      .setBaseURL(null)
+      .setFilterShape(filterShape));
+    tokens = MCFBenchmarkData.accessTokens(tokenCount);
+    allowShareOpen = new TermFilterBuilder(authorizer.fieldAllowShare,MCFAuthorizer.NOSECURITY_TOKEN);
+    denyShareOpen = new TermFilterBuilder(authorizer.fieldDenyShare,MCFAuthorizer.NOSECURITY_TOKEN);
+  }
+
+  @TearDown
+  public void tearDown()
+  {
+    authorizer.shutdown();
+  }
+
+  /** Build the filter tree and serialize it, as every request did before filters were cached */
+  @Benchmark
+  public BytesReference calculateAndSerialize()
+  {
+    return authorizer.calculateAuthorizationFilter(tokens).buildAsBytes();
+  }
+
+  /** Build one level of the filter tree, without serializing it */
+  @Benchmark
+  public FilterBuilder calculateCompleteSubquery()
+  {
+    return MCFAuthorizer.calculateCompleteSubquery(authorizer.fieldAllowShare,authorizer.fieldDenyShare,
+      allowShareOpen,denyShareOpen,tokens);
+  }
+
+  /** Look the filter up through the public entry point, which normally hits the filter cache */
+  @Benchmark
+  public FilterBuilder buildAuthorizationFilter()
+  {
+    return authorizer.buildAuthorizationFilter(tokens);
+  }
+}
@@ -0,0 +1,69 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+/** Synthetic access tokens and search bodies shared by the benchmarks.
+*/
+public class MCFBenchmarkData
+{
+  private MCFBenchmarkData()
+  {
+  }
+
+  /** Generate access tokens shaped like Active Directory group SIDs.
+  */
+  public static List<String> accessTokens(int count)
+  {
+    List<String> tokens = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++)
+    {
+      tokens.add("ad:S-1-5-21-1004336348-1177238915-682003330-" + Integer.toString(10000 + i));
+    }
+    return tokens;
+  }
+
+  /** Generate a search body with a query and the given number of aggregations, each
+  * of which has a nested query that must not be mistaken for the search query.
+  */
+  public static String searchBody(int aggregationCount)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"query\":{\"bool\":{\"must\":[{\"match\":{\"content\":\"{{text}}\"}}],")
+      .append("\"should\":[{\"term\":{\"type\":\"report\"}},{\"range\":{\"modified\":{\"gte\":\"now-1y\"}}}]}},")
+      .append("\"size\":10,\"from\":0,\"sort\":[{\"modified\":{\"order\":\"desc\"}}],")
+      .append("\"highlight\":{\"fields\":{\"content\":{}}}");
+    if (aggregationCount > 0)
+    {
+      sb.append(",\"aggs\":{");
+      for (int i = 0; i < aggregationCount; i++)
+      {
+        if (i > 0)
+          sb.append(",");
+        sb.append("\"agg").append(i).append("\":{\"filter\":{\"query\":{\"query\":{\"match\":{\"field")
+          .append(i).append("\":\"value\"}}}},\"aggs\":{\"values\":{\"terms\":{\"field\":\"field")
+          .append(i).append("\",\"size\":20}}}}");
+      }
+      sb.append("}");
+    }
+    sb.append("}");
+    return sb.toString();
+  }
+}
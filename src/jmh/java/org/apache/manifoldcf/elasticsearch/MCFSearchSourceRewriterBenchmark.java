@@ -0,0 +1,74 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.concurrent.*;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.query.FilterBuilder;
+
+import org.openjdk.jmh.annotations.*;
+
+/** Measures rewriting plain and template search bodies of various sizes, which is
+* the body handling MCFAuthorizerRestSearchAction.parseSearchRequestMCF() does for
+* secured requests.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MCFSearchSourceRewriterBenchmark
+{
+  @Param({"0", "100", "5000"})
+  public int tokenCount;
+
+  /** Number of aggregations in the body, to vary its size */
+  @Param({"0", "10", "200"})
+  public int aggregationCount;
+
+  protected FilterBuilder authorizationFilter;
+  protected BytesReference searchSource;
+  protected BytesReference templateSource;
+
+  @Setup
+  public void setup()
+  {
+    MCFAuthorizer authorizer = new MCFAuthorizer(new MCFConfigurationParameters().setBaseURL(null));
+    authorizationFilter = authorizer.buildAuthorizationFilter(MCFBenchmarkData.accessTokens(tokenCount));
+    authorizer.shutdown();
+    String body = MCFBenchmarkData.searchBody(aggregationCount);
+    searchSource = new BytesArray(body);
+    templateSource = new BytesArray("{\"template\":" + body + ",\"params\":{\"text\":\"annual report\"}}");
+  }
+
+  @Benchmark
+  public BytesReference rewriteSearchSource()
+  {
+    return MCFSearchSourceRewriter.rewriteSearchSource(searchSource,authorizationFilter);
+  }
+
+  @Benchmark
+  public BytesReference rewriteTemplateSource()
+  {
+    return MCFSearchSourceRewriter.rewriteTemplateSource(templateSource,authorizationFilter);
+  }
+}
@@ -0,0 +1,308 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+
+/** This class is an end-to-end load test of the authorizer.  It starts a stand-in
+* authority service and an embedded, single-node Elasticsearch cluster with the
+* plugin loaded, indexes synthetic documents with ManifoldCF access tokens, and
+* then drives secured searches over HTTP from several threads, reporting the
+* throughput, the latency percentiles and the authorizer statistics.  Everything
+* runs in-process on the loopback interface.
+*
+* Options are given as name=value arguments; any argument whose name starts with
+* "mcf." is passed to the node as an authorizer setting, e.g. mcf.cache.max_entries=10000.
+*/
+public class MCFLoadTest
+{
+  protected static final String INDEX = "mcf_loadtest";
+  protected static final String TYPE = "doc";
+  protected static final String[] WORDS = new String[]{"report","budget","contract","invoice","minutes","design","roadmap","review"};
+
+  protected final Map<String,String> options = new HashMap<String,String>();
+  protected final Map<String,String> authorizerSettings = new TreeMap<String,String>();
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    MCFLoadTest loadTest = new MCFLoadTest(args);
+    loadTest.run();
+  }
+
+  public MCFLoadTest(String[] args)
+  {
+    for (String arg : args)
+    {
+      int index = arg.indexOf('=');
+      if (index < 0)
+        throw new IllegalArgumentException("Arguments must be name=value, not '" + arg + "'");
+      String name = arg.substring(0,index);
+      String value = arg.substring(index + 1);
+      if (name.startsWith("mcf."))
+        authorizerSettings.put(name,value);
+      else
+        options.put(name,value);
+    }
+  }
+
+  protected int intOption(String name, int defaultValue)
+  {
+    String value = options.get(name);
+    return (value == null)?defaultValue:Integer.parseInt(value);
+  }
+
+  protected double doubleOption(String name, double defaultValue)
+  {
+    String value = options.get(name);
+    return (value == null)?defaultValue:Double.parseDouble(value);
+  }
+
+  public void run()
+    throws Exception
+  {
+    int userCount = intOption("users",1000);
+    int documentCount = intOption("documents",100000);
+    int threadCount = intOption("threads",16);
+    int warmupSeconds = intOption("warmup",10);
+    int durationSeconds = intOption("duration",60);
+    int shardCount = intOption("shards",1);
+    int tokensPerUser = intOption("authority.tokens",50);
+    int groupCount = intOption("authority.groups",2000);
+    long authorityLatency = intOption("authority.latency",20);
+    double authorityErrorRate = doubleOption("authority.error_rate",0.0);
+
+    MCFStubAuthorityService authority = new MCFStubAuthorityService(tokensPerUser,groupCount,authorityLatency,authorityErrorRate);
+    String baseURL = authority.start();
+    File home = createTempDirectory();
+    Node node = null;
+    try
+    {
+      ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder()
+        .put("cluster.name","mcf-loadtest-" + System.currentTimeMillis())
+        .put("path.home",home.getAbsolutePath())
+        .put("node.local",true)
+        .put("network.host","127.0.0.1")
+        .put("http.enabled",true)
+        .put("index.number_of_shards",shardCount)
+        .put("index.number_of_replicas",0)
+        .put("plugin.types",MCFAuthorizerPlugin.class.getName())
+        .put("mcf.authority_service_base_url",baseURL);
+      for (Map.Entry<String,String> entry : authorizerSettings.entrySet())
+      {
+        settings.put(entry.getKey(),entry.getValue());
+      }
+      node = NodeBuilder.nodeBuilder().settings(settings).node();
+      Client client = node.client();
+      client.admin().cluster().prepareHealth().setWaitForGreenStatus().get();
+
+      System.out.println("Indexing " + documentCount + " documents...");
+      indexDocuments(client,documentCount,groupCount);
+
+      NodesInfoResponse nodesInfo = client.admin().cluster().prepareNodesInfo().setHttp(true).get();
+      InetSocketAddress httpAddress = ((InetSocketTransportAddress)nodesInfo.getNodes()[0].getHttp().address().publishAddress()).address();
+      String esURL = "http://" + httpAddress.getAddress().getHostAddress() + ":" + httpAddress.getPort();
+
+      PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+      connectionManager.setMaxTotal(threadCount);
+      connectionManager.setDefaultMaxPerRoute(threadCount);
+      DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+      try
+      {
+        System.out.println("Warming up for " + warmupSeconds + " s...");
+        drive(httpClient,esURL,userCount,threadCount,warmupSeconds);
+        System.out.println("Measuring for " + durationSeconds + " s with " + threadCount + " threads and " + userCount + " users...");
+        Result result = drive(httpClient,esURL,userCount,threadCount,durationSeconds);
+        report(result,durationSeconds);
+        System.out.println("Authority service: " + authority.getRequests() + " requests, " + authority.getErrors() + " injected errors");
+        System.out.println("Authorizer statistics:");
+        HttpResponse response = httpClient.execute(new HttpGet(esURL + "/_mcf/stats?pretty"));
+        System.out.println(EntityUtils.toString(response.getEntity(),"utf-8"));
+      }
+      finally
+      {
+        connectionManager.shutdown();
+      }
+    }
+    finally
+    {
+      if (node != null)
+        node.close();
+      authority.stop();
+      deleteRecursively(home);
+    }
+  }
+
+  /** Index documents, each visible to a few groups, or to everyone.
+  */
+  protected void indexDocuments(Client client, int documentCount, int groupCount)
+    throws IOException
+  {
+    // Access tokens must be indexed as they are
+    XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE)
+      .startArray("dynamic_templates").startObject().startObject("access_tokens")
+      .field("match","*_token_*")
+      .startObject("mapping").field("type","string").field("index","not_analyzed").endObject()
+      .endObject().endObject().endArray()
+      .endObject().endObject();
+    client.admin().indices().prepareCreate(INDEX).addMapping(TYPE,mapping).get();
+
+    Random random = new Random(0L);
+    BulkRequestBuilder bulk = client.prepareBulk();
+    for (int i = 0; i < documentCount; i++)
+    {
+      List<String> allowTokens = new ArrayList<String>();
+      if (random.nextInt(10) == 0)
+        allowTokens.add(MCFAuthorizer.NOSECURITY_TOKEN);
+      else
+      {
+        int count = 1 + random.nextInt(5);
+        for (int j = 0; j < count; j++)
+        {
+          allowTokens.add(MCFStubAuthorityService.groupToken(random.nextInt(groupCount)));
+        }
+      }
+      XContentBuilder document = XContentFactory.jsonBuilder().startObject()
+        .field("content",WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)])
+        .field("allow_token_document",allowTokens)
+        .field("deny_token_document",MCFAuthorizer.NOSECURITY_TOKEN)
+        .field("allow_token_parent",MCFAuthorizer.NOSECURITY_TOKEN)
+        .field("deny_token_parent",MCFAuthorizer.NOSECURITY_TOKEN)
+        .field("allow_token_share",MCFAuthorizer.NOSECURITY_TOKEN)
+        .field("deny_token_share",MCFAuthorizer.NOSECURITY_TOKEN)
+        .endObject();
+      bulk.add(client.prepareIndex(INDEX,TYPE,Integer.toString(i)).setSource(document));
+      if (bulk.numberOfActions() == 1000 || i == documentCount - 1)
+      {
+        bulk.get();
+        bulk = client.prepareBulk();
+      }
+    }
+    client.admin().indices().prepareRefresh(INDEX).get();
+  }
+
+  /** Run secured searches from several threads for a while.
+  */
+  protected Result drive(final DefaultHttpClient httpClient, final String esURL, final int userCount, int threadCount, int seconds)
+    throws InterruptedException
+  {
+    final Result result = new Result();
+    final long endTime = System.nanoTime() + seconds * 1000000000L;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++)
+    {
+      final Random random = new Random(t);
+      Thread thread = new Thread(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            while (System.nanoTime() < endTime)
+            {
+              String user = "user" + random.nextInt(userCount);
+              String body = "{\"query\":{\"match\":{\"content\":\"" + WORDS[random.nextInt(WORDS.length)] + "\"}},\"size\":10}";
+              long startTime = System.nanoTime();
+              try
+              {
+                HttpPost method = new HttpPost(esURL + "/" + INDEX + "/_search?u=" + URLEncoder.encode(user,"utf-8"));
+                method.setEntity(new StringEntity(body,ContentType.APPLICATION_JSON));
+                HttpResponse response = httpClient.execute(method);
+                EntityUtils.consume(response.getEntity());
+                if (response.getStatusLine().getStatusCode() != 200)
+                  result.errors.incrementAndGet();
+              }
+              catch (IOException e)
+              {
+                result.errors.incrementAndGet();
+              }
+              result.latency.record((System.nanoTime() - startTime) / 1000L);
+            }
+          }
+        },"mcf-loadtest-" + t);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads)
+    {
+      thread.join();
+    }
+    return result;
+  }
+
+  protected void report(Result result, int seconds)
+  {
+    long count = result.latency.getCount();
+    System.out.println("Requests:   " + count + " (" + result.errors.get() + " failed)");
+    System.out.println("Throughput: " + (count / Math.max(seconds,1)) + " requests/s");
+    System.out.println("Latency:    p50 " + result.latency.percentile(50.0) + " us, p90 " + result.latency.percentile(90.0)
+      + " us, p99 " + result.latency.percentile(99.0) + " us");
+  }
+
+  protected static File createTempDirectory()
+    throws IOException
+  {
+    File file = File.createTempFile("mcf-loadtest",null);
+    if (!file.delete() || !file.mkdir())
+      throw new IOException("Couldn't create directory " + file);
+    return file;
+  }
+
+  protected static void deleteRecursively(File file)
+  {
+    File[] children = file.listFiles();
+    if (children != null)
+    {
+      for (File child : children)
+      {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  /** The outcome of a run.
+  */
+  protected static class Result
+  {
+    public final MCFHistogram latency = new MCFHistogram();
+    public final AtomicLong errors = new AtomicLong();
+  }
+}
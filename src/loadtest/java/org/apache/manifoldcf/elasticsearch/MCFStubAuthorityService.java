@@ -0,0 +1,165 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/** This class is an in-process stand-in for the ManifoldCF authority service.
+* It answers /UserACLs requests with a fixed number of access tokens per user,
+* drawn deterministically from a pool of groups, after a configurable delay, and
+* fails a configurable fraction of requests with a server error.
+*/
+public class MCFStubAuthorityService
+{
+  protected final int tokensPerUser;
+  protected final int groupCount;
+  protected final long latency;
+  protected final double errorRate;
+  protected final AtomicLong requests = new AtomicLong();
+  protected final AtomicLong errors = new AtomicLong();
+  protected Server server = null;
+
+  /** Constructor.
+  *@param tokensPerUser is the number of access tokens each user has.
+  *@param groupCount is the number of distinct access tokens.
+  *@param latency is the delay before each answer, in milliseconds.
+  *@param errorRate is the fraction of requests answered with a server error, between 0 and 1.
+  */
+  public MCFStubAuthorityService(int tokensPerUser, int groupCount, long latency, double errorRate)
+  {
+    this.tokensPerUser = tokensPerUser;
+    this.groupCount = groupCount;
+    this.latency = latency;
+    this.errorRate = errorRate;
+  }
+
+  /** Get the access tokens of a user, as the authorizer will see them.
+  */
+  public static List<String> userTokens(String userName, int tokensPerUser, int groupCount)
+  {
+    Random random = new Random(userName.hashCode());
+    Set<String> tokens = new LinkedHashSet<String>();
+    while (tokens.size() < Math.min(tokensPerUser,groupCount))
+    {
+      tokens.add(groupToken(random.nextInt(groupCount)));
+    }
+    return new ArrayList<String>(tokens);
+  }
+
+  public static String groupToken(int group)
+  {
+    return "ad:S-1-5-21-1004336348-1177238915-682003330-" + Integer.toString(10000 + group);
+  }
+
+  /** Start listening on a free local port.
+  *@return the base URL to configure the authorizer with.
+  */
+  public String start()
+    throws Exception
+  {
+    server = new Server(new InetSocketAddress("127.0.0.1",0));
+    ServletContextHandler context = new ServletContextHandler();
+    context.setContextPath("/mcf-authority-service");
+    context.addServlet(new ServletHolder(new UserACLsServlet()),"/UserACLs");
+    server.setHandler(context);
+    server.start();
+    int port = ((ServerConnector)server.getConnectors()[0]).getLocalPort();
+    return "http://127.0.0.1:" + port + "/mcf-authority-service";
+  }
+
+  public void stop()
+    throws Exception
+  {
+    if (server != null)
+    {
+      server.stop();
+      server = null;
+    }
+  }
+
+  public long getRequests()
+  {
+    return requests.get();
+  }
+
+  public long getErrors()
+  {
+    return errors.get();
+  }
+
+  protected class UserACLsServlet extends HttpServlet
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException
+    {
+      requests.incrementAndGet();
+      if (latency > 0L)
+      {
+        try
+        {
+          Thread.sleep(latency);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      if (errorRate > 0.0 && Math.random() < errorRate)
+      {
+        errors.incrementAndGet();
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,"Injected error");
+        return;
+      }
+      String userName = request.getParameter("username");
+      if (userName == null)
+        userName = request.getParameter("username_0");
+      if (userName == null)
+      {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,"No user name");
+        return;
+      }
+      response.setContentType("text/plain; charset=utf-8");
+      Writer w = response.getWriter();
+      w.write("AUTHORIZED:ad\n");
+      for (String token : userTokens(userName,tokensPerUser,groupCount))
+      {
+        w.write("TOKEN:");
+        w.write(token);
+        w.write("\n");
+      }
+      w.flush();
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.PForDeltaDocIdSet;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class caches, for each segment, the set of documents having a given
+* access token in a given field.  It is bounded by the memory the sets use; the
+* least recently used sets are evicted first, and all of a segment's sets are
+* dropped as soon as the segment is closed.  Tokens few documents have, which are
+* most of them, are kept as compressed lists of documents rather than bit sets
+* as large as the segment.  Sets are built from the segment core, so deleted
+* documents must be excluded by the caller.  All public methods are thread-safe.
+*/
+public class MCFACLBitSetCache implements ToXContent
+{
+  /** The set of a token no document has */
+  public static final DocIdSet EMPTY = DocIdSet.EMPTY;
+  /** A token is kept as a bit set when more than one document in this many has it */
+  protected static final int DENSE_RATIO = 32;
+
+  protected final long maxBytes;
+  protected final LinkedHashMap<Key,DocIdSet> map = new LinkedHashMap<Key,DocIdSet>(16,0.75f,true);
+  protected long bytes = 0L;
+  /** Segment cores we listen to, so their sets are dropped when they close */
+  protected final Set<Object> listenedCores = Collections.newSetFromMap(new ConcurrentHashMap<Object,Boolean>());
+
+  protected final AtomicLong hits = new AtomicLong();
+  protected final AtomicLong misses = new AtomicLong();
+  protected final AtomicLong evictions = new AtomicLong();
+
+  /** Constructor.
+  *@param maxBytes is the maximum memory, in bytes, the cached sets may use.
+  */
+  public MCFACLBitSetCache(long maxBytes)
+  {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Get the documents of a segment that have a token in a field.
+  *@return the documents, as a FixedBitSet or another DocIdSet, which must not be
+  * modified.  It is EMPTY if no document has the token.
+  */
+  public DocIdSet get(AtomicReader reader, String field, String token)
+    throws IOException
+  {
+    Object coreKey = reader.getCoreCacheKey();
+    Key key = new Key(coreKey,field,token);
+    synchronized (this)
+    {
+      DocIdSet bits = map.get(key);
+      if (bits != null)
+      {
+        hits.incrementAndGet();
+        return bits;
+      }
+    }
+    misses.incrementAndGet();
+    DocIdSet bits = build(reader,field,token);
+    if (maxBytes <= 0L)
+      return bits;
+    if (listenedCores.add(coreKey))
+    {
+      reader.addCoreClosedListener(new AtomicReader.CoreClosedListener()
+        {
+          @Override
+          public void onClose(Object ownerCoreCacheKey)
+          {
+            removeCore(ownerCoreCacheKey);
+          }
+        });
+    }
+    put(key,bits);
+    // If the segment closed since we looked, its listener may have run before the put
+    if (!listenedCores.contains(coreKey) || reader.getRefCount() <= 0)
+      removeCore(coreKey);
+    return bits;
+  }
+
+  /** Drop all of a segment's sets.
+  */
+  protected void removeCore(Object coreKey)
+  {
+    listenedCores.remove(coreKey);
+    synchronized (this)
+    {
+      Iterator<Map.Entry<Key,DocIdSet>> iter = map.entrySet().iterator();
+      while (iter.hasNext())
+      {
+        Map.Entry<Key,DocIdSet> entry = iter.next();
+        if (entry.getKey().coreKey == coreKey)
+        {
+          bytes -= ramBytes(entry.getValue());
+          iter.remove();
+        }
+      }
+    }
+  }
+
+  protected synchronized void put(Key key, DocIdSet bits)
+  {
+    DocIdSet previous = map.put(key,bits);
+    if (previous != null)
+      bytes -= ramBytes(previous);
+    bytes += ramBytes(bits);
+    // Access order iterates from least to most recently used
+    Iterator<Map.Entry<Key,DocIdSet>> iter = map.entrySet().iterator();
+    while (bytes > maxBytes && iter.hasNext())
+    {
+      Map.Entry<Key,DocIdSet> entry = iter.next();
+      bytes -= ramBytes(entry.getValue());
+      iter.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  protected static DocIdSet build(AtomicReader reader, String field, String token)
+    throws IOException
+  {
+    Terms terms = reader.terms(field);
+    if (terms == null)
+      return EMPTY;
+    TermsEnum termsEnum = terms.iterator(null);
+    if (!termsEnum.seekExact(new BytesRef(token)))
+      return EMPTY;
+    DocsEnum docsEnum = termsEnum.docs(null,null,DocsEnum.FLAG_NONE);
+    if ((long)termsEnum.docFreq() * DENSE_RATIO < (long)reader.maxDoc())
+      return new PForDeltaDocIdSet.Builder().add(docsEnum).build();
+    FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+    int doc;
+    while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+    {
+      bits.set(doc);
+    }
+    return bits;
+  }
+
+  protected static long ramBytes(DocIdSet bits)
+  {
+    // The set, plus the key and map entry objects
+    return bits.ramBytesUsed() + 128L;
+  }
+
+  public synchronized int size()
+  {
+    return map.size();
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    int size;
+    long currentBytes;
+    synchronized (this)
+    {
+      size = map.size();
+      currentBytes = bytes;
+    }
+    builder.startObject("acl_bitsets");
+    builder.field("entries",size);
+    builder.field("bytes",currentBytes);
+    builder.field("max_bytes",maxBytes);
+    builder.field("hits",hits.get());
+    builder.field("misses",misses.get());
+    builder.field("evictions",evictions.get());
+    builder.endObject();
+    return builder;
+  }
+
+  /** The key of a set: the segment core, the field and the token.
+  */
+  protected static class Key
+  {
+    public final Object coreKey;
+    public final String field;
+    public final String token;
+    protected final int hashCode;
+
+    public Key(Object coreKey, String field, String token)
+    {
+      this.coreKey = coreKey;
+      this.field = field;
+      this.token = token;
+      this.hashCode = (System.identityHashCode(coreKey) * 31 + field.hashCode()) * 31 + token.hashCode();
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key)o;
+      return coreKey == other.coreKey && field.equals(other.field) && token.equals(other.token);
+    }
+  }
+}
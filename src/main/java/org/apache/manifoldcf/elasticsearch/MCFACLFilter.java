@@ -0,0 +1,148 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+
+/** This class is a Lucene filter implementing ManifoldCF security directly, with
+* the same meaning as the bool filter MCFAuthorizer builds.  For each of the share,
+* parent and document levels, a document is visible if its allow and deny fields
+* are both open, or if its allow field has one of the user's tokens; and if its
+* deny field has none of them.  A document must be visible at every level.
+* Each level is computed as unions and differences of the cached per-segment sets
+* of documents having each token.
+*/
+public class MCFACLFilter extends Filter
+{
+  protected final String[] allowFields;
+  protected final String[] denyFields;
+  /** The user's access tokens, sorted and without duplicates */
+  protected final String[] tokens;
+  protected final MCFACLBitSetCache cache;
+
+  /** Constructor.
+  *@param allowFieldPrefix is the allow field prefix, e.g. "allow_token_".
+  *@param denyFieldPrefix is the deny field prefix, e.g. "deny_token_".
+  *@param tokens are the user's access tokens.
+  *@param cache is the cache of per-segment token sets.
+  */
+  public MCFACLFilter(String allowFieldPrefix, String denyFieldPrefix, Collection<String> tokens, MCFACLBitSetCache cache)
+  {
+    this.allowFields = new String[]{allowFieldPrefix+"share",allowFieldPrefix+"parent",allowFieldPrefix+"document"};
+    this.denyFields = new String[]{denyFieldPrefix+"share",denyFieldPrefix+"parent",denyFieldPrefix+"document"};
+    this.tokens = new TreeSet<String>(tokens).toArray(new String[0]);
+    this.cache = cache;
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs)
+    throws IOException
+  {
+    AtomicReader reader = context.reader();
+    FixedBitSet result = null;
+    for (int level = 0; level < allowFields.length; level++)
+    {
+      FixedBitSet levelBits = calculateLevel(reader,allowFields[level],denyFields[level]);
+      if (result == null)
+        result = levelBits;
+      else
+        result.and(levelBits);
+      if (result.nextSetBit(0) == -1)
+        return null;
+    }
+    return BitsFilteredDocIdSet.wrap(result,acceptDocs);
+  }
+
+  /** Calculate the documents visible at one level.
+  */
+  protected FixedBitSet calculateLevel(AtomicReader reader, String allowField, String denyField)
+    throws IOException
+  {
+    FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+    // The cached sets must not be modified, so combine them into our own
+    DocIdSet allowOpen = cache.get(reader,allowField,MCFAuthorizer.NOSECURITY_TOKEN);
+    if (allowOpen != MCFACLBitSetCache.EMPTY)
+    {
+      DocIdSet denyOpen = cache.get(reader,denyField,MCFAuthorizer.NOSECURITY_TOKEN);
+      if (denyOpen != MCFACLBitSetCache.EMPTY)
+      {
+        or(bits,allowOpen);
+        if (denyOpen instanceof FixedBitSet)
+          bits.and((FixedBitSet)denyOpen);
+        else
+          bits.and(denyOpen.iterator());
+      }
+    }
+    for (String token : tokens)
+    {
+      DocIdSet allowed = cache.get(reader,allowField,token);
+      if (allowed != MCFACLBitSetCache.EMPTY)
+        or(bits,allowed);
+    }
+    for (String token : tokens)
+    {
+      DocIdSet denied = cache.get(reader,denyField,token);
+      if (denied == MCFACLBitSetCache.EMPTY)
+        continue;
+      if (denied instanceof FixedBitSet)
+        bits.andNot((FixedBitSet)denied);
+      else
+        bits.andNot(denied.iterator());
+    }
+    return bits;
+  }
+
+  protected static void or(FixedBitSet bits, DocIdSet other)
+    throws IOException
+  {
+    if (other instanceof FixedBitSet)
+      bits.or((FixedBitSet)other);
+    else
+      bits.or(other.iterator());
+  }
+
+  @Override
+  public boolean equals(Object o)
+  {
+    if (!(o instanceof MCFACLFilter))
+      return false;
+    MCFACLFilter other = (MCFACLFilter)o;
+    return Arrays.equals(allowFields,other.allowFields) && Arrays.equals(denyFields,other.denyFields) && Arrays.equals(tokens,other.tokens);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return (Arrays.hashCode(allowFields) * 31 + Arrays.hashCode(denyFields)) * 31 + Arrays.hashCode(tokens);
+  }
+
+  @Override
+  public String toString()
+  {
+    return "mcf_acl("+allowFields[0]+","+denyFields[0]+","+Arrays.toString(tokens)+")";
+  }
+}
@@ -0,0 +1,61 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.BaseFilterBuilder;
+
+/** This class builds an "mcf_acl" filter, which is parsed by MCFACLFilterParser.
+*/
+public class MCFACLFilterBuilder extends BaseFilterBuilder
+{
+  protected final List<String> tokens;
+  protected final String allowFieldPrefix;
+  protected final String denyFieldPrefix;
+
+  /** Constructor.
+  *@param tokens are the user's access tokens.
+  *@param allowFieldPrefix is the allow field prefix, e.g. "allow_token_".
+  *@param denyFieldPrefix is the deny field prefix, e.g. "deny_token_".
+  */
+  public MCFACLFilterBuilder(List<String> tokens, String allowFieldPrefix, String denyFieldPrefix)
+  {
+    this.tokens = tokens;
+    this.allowFieldPrefix = allowFieldPrefix;
+    this.denyFieldPrefix = denyFieldPrefix;
+  }
+
+  @Override
+  protected void doXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    builder.startObject(MCFACLFilterParser.NAME);
+    builder.startArray("tokens");
+    for (String token : tokens)
+    {
+      builder.value(token);
+    }
+    builder.endArray();
+    builder.field("allow_field_prefix",allowFieldPrefix);
+    builder.field("deny_field_prefix",denyFieldPrefix);
+    builder.endObject();
+  }
+}
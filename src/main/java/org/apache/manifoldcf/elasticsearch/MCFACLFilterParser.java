@@ -0,0 +1,116 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.search.Filter;
+
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.cache.filter.support.CacheKeyFilter;
+import org.elasticsearch.index.query.FilterParser;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryParsingException;
+
+/** This class parses the "mcf_acl" filter, which enforces ManifoldCF security for
+* a list of access tokens, e.g.
+* {"mcf_acl":{"tokens":["token1","token2"],"allow_field_prefix":"allow_token_","deny_field_prefix":"deny_token_"}}
+* The field prefixes default to the node's configuration.  Like other filters, it
+* also accepts "_name", "_cache" and "_cache_key"; it is not cached as a whole by
+* default, since the per-token sets it is made of already are.
+*/
+public class MCFACLFilterParser implements FilterParser
+{
+  public static final String NAME = "mcf_acl";
+
+  protected final MCFAuthorizerService authorizerService;
+
+  @Inject
+  public MCFACLFilterParser(MCFAuthorizerService authorizerService)
+  {
+    this.authorizerService = authorizerService;
+  }
+
+  @Override
+  public String[] names()
+  {
+    return new String[]{NAME};
+  }
+
+  @Override
+  public Filter parse(QueryParseContext parseContext)
+    throws IOException, QueryParsingException
+  {
+    XContentParser parser = parseContext.parser();
+    MCFConfigurationParameters conf = authorizerService.configuration();
+    List<String> tokens = null;
+    String allowFieldPrefix = conf.allowFieldPrefix;
+    String denyFieldPrefix = conf.denyFieldPrefix;
+    String filterName = null;
+    boolean cache = false;
+    CacheKeyFilter.Key cacheKey = null;
+
+    String currentFieldName = null;
+    XContentParser.Token token;
+    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT)
+    {
+      if (token == XContentParser.Token.FIELD_NAME)
+        currentFieldName = parser.currentName();
+      else if (token == XContentParser.Token.START_ARRAY)
+      {
+        if (!"tokens".equals(currentFieldName))
+          throw new QueryParsingException(parseContext.index(),"["+NAME+"] filter does not support ["+currentFieldName+"]");
+        tokens = new ArrayList<String>();
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY)
+        {
+          if (!token.isValue())
+            throw new QueryParsingException(parseContext.index(),"["+NAME+"] filter tokens must be strings");
+          tokens.add(parser.text());
+        }
+      }
+      else if (token.isValue())
+      {
+        if ("allow_field_prefix".equals(currentFieldName))
+          allowFieldPrefix = parser.text();
+        else if ("deny_field_prefix".equals(currentFieldName))
+          denyFieldPrefix = parser.text();
+        else if ("_name".equals(currentFieldName))
+          filterName = parser.text();
+        else if ("_cache".equals(currentFieldName))
+          cache = parser.booleanValue();
+        else if ("_cache_key".equals(currentFieldName) || "_cacheKey".equals(currentFieldName))
+          cacheKey = new CacheKeyFilter.Key(parser.text());
+        else
+          throw new QueryParsingException(parseContext.index(),"["+NAME+"] filter does not support ["+currentFieldName+"]");
+      }
+      else
+        throw new QueryParsingException(parseContext.index(),"["+NAME+"] filter does not support ["+currentFieldName+"]");
+    }
+    if (tokens == null)
+      throw new QueryParsingException(parseContext.index(),"["+NAME+"] filter requires [tokens]");
+
+    Filter filter = new MCFACLFilter(allowFieldPrefix,denyFieldPrefix,tokens,authorizerService.aclBitSetCache());
+    if (cache)
+      filter = parseContext.cacheFilter(filter,cacheKey);
+    if (filterName != null)
+      parseContext.addNamedFilter(filterName,filter);
+    return filter;
+  }
+}
@@ -0,0 +1,145 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.concurrent.atomic.*;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+
+/** This class holds the HTTP client and connection pool used to talk to a set
+* of ManifoldCF authority service instances, together with the settings they were
+* built from.  It never changes; when the settings change, the authorizer builds a
+* new one and retires the old one, which is shut down once the requests that were
+* using it have finished.  Requests must bracket their use of the client with
+* acquire() and release().  All methods are thread-safe.
+*/
+public class MCFAuthorityClient
+{
+  protected final MCFAuthorityEndpoints endpoints;
+  protected final int connectionTimeout;
+  protected final int socketTimeout;
+  protected final int poolSize;
+  protected final ClientConnectionManager connectionManager;
+  protected final HttpClient httpClient;
+  /** Number of requests using the client */
+  protected final AtomicInteger inFlight = new AtomicInteger();
+  protected volatile boolean retired = false;
+
+  /** Constructor.
+  *@param endpoints are the authority service instances.
+  *@param connectionTimeout is the connection timeout in milliseconds.
+  *@param socketTimeout is the socket timeout in milliseconds.
+  *@param poolSize is the maximum number of connections to each instance.
+  */
+  public MCFAuthorityClient(MCFAuthorityEndpoints endpoints, int connectionTimeout, int socketTimeout, int poolSize)
+  {
+    this.endpoints = endpoints;
+    this.connectionTimeout = connectionTimeout;
+    this.socketTimeout = socketTimeout;
+    this.poolSize = poolSize;
+
+    PoolingClientConnectionManager localConnectionManager = new PoolingClientConnectionManager();
+    localConnectionManager.setMaxTotal(poolSize * endpoints.size());
+    localConnectionManager.setDefaultMaxPerRoute(poolSize);
+    connectionManager = localConnectionManager;
+
+    BasicHttpParams params = new BasicHttpParams();
+    params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY,true);
+    params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK,true);
+    params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT,socketTimeout);
+    params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,connectionTimeout);
+    DefaultHttpClient localClient = new DefaultHttpClient(connectionManager,params);
+    localClient.setRedirectStrategy(new DefaultRedirectStrategy());
+    httpClient = localClient;
+  }
+
+  public MCFAuthorityEndpoints getEndpoints()
+  {
+    return endpoints;
+  }
+
+  public int getConnectionTimeout()
+  {
+    return connectionTimeout;
+  }
+
+  public int getSocketTimeout()
+  {
+    return socketTimeout;
+  }
+
+  public int getPoolSize()
+  {
+    return poolSize;
+  }
+
+  public HttpClient getHttpClient()
+  {
+    return httpClient;
+  }
+
+  /** Start using the client.
+  *@return false if the client has been retired, in which case it must not be used.
+  */
+  public boolean acquire()
+  {
+    inFlight.incrementAndGet();
+    if (retired)
+    {
+      inFlight.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /** Stop using the client.
+  */
+  public void release()
+  {
+    inFlight.decrementAndGet();
+  }
+
+  /** Get the number of requests using the client.
+  */
+  public int getInFlight()
+  {
+    return inFlight.get();
+  }
+
+  /** Refuse any further use of the client.  Requests that already acquired it
+  * may go on using it until they release it.
+  */
+  public void retire()
+  {
+    retired = true;
+  }
+
+  /** Shut the connection pool down, closing its connections.
+  */
+  public void shutdown()
+  {
+    retired = true;
+    connectionManager.shutdown();
+  }
+}
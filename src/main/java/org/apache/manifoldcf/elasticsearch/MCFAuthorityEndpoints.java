@@ -0,0 +1,250 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class describes the set of ManifoldCF authority service instances a
+* node may send requests to, and chooses between them.  An endpoint that fails
+* too many times in a row is ejected, and is only chosen again after it has been
+* readmitted by a successful request or health check.  So that an ejected endpoint
+* can recover without health checks, one trial request is let through to it each
+* time a readmission interval has passed.  If every endpoint has been ejected, all
+* of them are considered, so that requests are never refused outright.
+* All methods are thread-safe.
+*/
+public class MCFAuthorityEndpoints implements ToXContent
+{
+  /** Choose endpoints in turn */
+  public static final String SELECTION_ROUND_ROBIN = "round_robin";
+  /** Choose the endpoint with the fewest outstanding requests */
+  public static final String SELECTION_LEAST_OUTSTANDING = "least_outstanding";
+
+  /** A logger we can use */
+  private static final ESLogger LOG = Loggers.getLogger(MCFAuthorityEndpoints.class);
+
+  protected final List<Endpoint> endpoints;
+  protected final boolean leastOutstanding;
+  protected final int maxFailures;
+  protected final long readmitInterval;
+  protected final AtomicInteger nextEndpoint = new AtomicInteger();
+
+  /** Constructor.
+  *@param baseURLs are the base URLs of the authority service instances.
+  *@param selection is the selection policy, SELECTION_ROUND_ROBIN or SELECTION_LEAST_OUTSTANDING.
+  *@param maxFailures is the number of consecutive failures after which an endpoint is ejected.
+  *@param readmitInterval is the time in milliseconds between trial requests to an ejected
+  * endpoint, or 0 if only health checks readmit endpoints.
+  */
+  public MCFAuthorityEndpoints(String[] baseURLs, String selection, int maxFailures, long readmitInterval)
+  {
+    if (baseURLs.length == 0)
+      throw new ElasticsearchIllegalArgumentException("At least one authority service base URL is required");
+    if (SELECTION_LEAST_OUTSTANDING.equals(selection))
+      leastOutstanding = true;
+    else if (SELECTION_ROUND_ROBIN.equals(selection))
+      leastOutstanding = false;
+    else
+      throw new ElasticsearchIllegalArgumentException("Unsupported authority selection ["+selection+"], can either be ["+SELECTION_ROUND_ROBIN+"] or ["+SELECTION_LEAST_OUTSTANDING+"]");
+    this.maxFailures = maxFailures;
+    this.readmitInterval = readmitInterval;
+    List<Endpoint> endpointList = new ArrayList<Endpoint>(baseURLs.length);
+    for (String baseURL : baseURLs)
+    {
+      endpointList.add(new Endpoint(baseURL));
+    }
+    endpoints = Collections.unmodifiableList(endpointList);
+  }
+
+  /** Get all the endpoints, healthy or not.
+  */
+  public List<Endpoint> getEndpoints()
+  {
+    return endpoints;
+  }
+
+  public int size()
+  {
+    return endpoints.size();
+  }
+
+  /** Check whether these are the endpoints with the given base URLs, in the same order.
+  */
+  public boolean hasBaseURLs(String[] baseURLs)
+  {
+    if (baseURLs.length != endpoints.size())
+      return false;
+    for (int i = 0; i < baseURLs.length; i++)
+    {
+      if (!baseURLs[i].equals(endpoints.get(i).getBaseURL()))
+        return false;
+    }
+    return true;
+  }
+
+  /** Choose an endpoint for a request.
+  *@param exclude are endpoints that must not be chosen, e.g. because the request already failed on them.
+  *@return the endpoint, or null if every endpoint is excluded.
+  */
+  public Endpoint select(Collection<Endpoint> exclude)
+  {
+    Endpoint rval = select(exclude,true);
+    if (rval == null)
+      rval = select(exclude,false);
+    return rval;
+  }
+
+  protected Endpoint select(Collection<Endpoint> exclude, boolean healthyOnly)
+  {
+    int size = endpoints.size();
+    // Start from a rotating position, so ties are spread over the endpoints
+    int start = (nextEndpoint.getAndIncrement() & Integer.MAX_VALUE) % size;
+    Endpoint rval = null;
+    for (int i = 0; i < size; i++)
+    {
+      Endpoint endpoint = endpoints.get((start + i) % size);
+      if (exclude.contains(endpoint))
+        continue;
+      if (healthyOnly && !endpoint.isHealthy())
+      {
+        // The request is the ejected endpoint's trial; its outcome readmits it or not
+        if (claimTrial(endpoint))
+          return endpoint;
+        continue;
+      }
+      if (!leastOutstanding)
+        return endpoint;
+      if (rval == null || endpoint.getOutstanding() < rval.getOutstanding())
+        rval = endpoint;
+    }
+    return rval;
+  }
+
+  /** Claim an ejected endpoint's next trial request, if it is due.
+  *@return true if the caller should send a request to the endpoint.
+  */
+  protected boolean claimTrial(Endpoint endpoint)
+  {
+    if (readmitInterval <= 0L)
+      return false;
+    long currentTime = System.currentTimeMillis();
+    long trialTime = endpoint.nextTrialTime.get();
+    // Only one request gets each trial
+    return currentTime >= trialTime && endpoint.nextTrialTime.compareAndSet(trialTime,currentTime + readmitInterval);
+  }
+
+  /** Note that an endpoint answered properly, readmitting it if it had been ejected.
+  */
+  public void recordSuccess(Endpoint endpoint)
+  {
+    endpoint.consecutiveFailures.set(0);
+    if (!endpoint.healthy)
+    {
+      endpoint.healthy = true;
+      LOG.info("Readmitting ManifoldCF authority service endpoint "+endpoint.getBaseURL());
+    }
+  }
+
+  /** Note that an endpoint failed, ejecting it if it has failed too often in a row.
+  */
+  public void recordFailure(Endpoint endpoint, String reason)
+  {
+    int failures = endpoint.consecutiveFailures.incrementAndGet();
+    if (endpoint.healthy && failures >= maxFailures)
+    {
+      endpoint.nextTrialTime.set(System.currentTimeMillis() + readmitInterval);
+      endpoint.healthy = false;
+      LOG.warn("Ejecting ManifoldCF authority service endpoint "+endpoint.getBaseURL()+" after "+failures+" consecutive failures: "+reason);
+    }
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    builder.startArray("endpoints");
+    for (Endpoint endpoint : endpoints)
+    {
+      builder.startObject();
+      builder.field("url",endpoint.getBaseURL());
+      builder.field("healthy",endpoint.isHealthy());
+      builder.field("outstanding",endpoint.getOutstanding());
+      builder.field("consecutive_failures",endpoint.consecutiveFailures.get());
+      builder.endObject();
+    }
+    builder.endArray();
+    return builder;
+  }
+
+  /** One authority service instance.
+  */
+  public static class Endpoint
+  {
+    protected final String baseURL;
+    protected final AtomicInteger outstanding = new AtomicInteger();
+    protected final AtomicInteger consecutiveFailures = new AtomicInteger();
+    /** When an ejected endpoint may next be sent a trial request */
+    protected final AtomicLong nextTrialTime = new AtomicLong();
+    protected volatile boolean healthy = true;
+
+    public Endpoint(String baseURL)
+    {
+      this.baseURL = baseURL;
+    }
+
+    public String getBaseURL()
+    {
+      return baseURL;
+    }
+
+    public boolean isHealthy()
+    {
+      return healthy;
+    }
+
+    /** Get the number of requests currently being sent to this endpoint.
+    */
+    public int getOutstanding()
+    {
+      return outstanding.get();
+    }
+
+    /** Note the start of a request.
+    */
+    public void begin()
+    {
+      outstanding.incrementAndGet();
+    }
+
+    /** Note the end of a request.
+    */
+    public void end()
+    {
+      outstanding.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import org.elasticsearch.rest.RestStatus;
+
+/** This class represents failures to get access tokens because the ManifoldCF
+* authority service is down or unreachable, as opposed to problems with the
+* request itself.  They are reported to the client as 503 Service Unavailable.
+*/
+public class MCFAuthorityUnavailableException extends MCFAuthorizerException
+{
+  private static final long serialVersionUID = 1L;
+
+  /** Constructor */
+  public MCFAuthorityUnavailableException(String message)
+  {
+    super(message);
+  }
+  
+  public MCFAuthorityUnavailableException(String message, Throwable cause)
+  {
+    super(message,cause);
+  }
+
+  @Override
+  public RestStatus status()
+  {
+    return RestStatus.SERVICE_UNAVAILABLE;
+  }
+}
@@ -21,24 +21,32 @@ package org.apache.manifoldcf.elasticsearch;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.charset.Charset;
+import java.security.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.GZIPInputStream;
 
 import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.BoolFilterBuilder;
 import org.elasticsearch.index.query.TermFilterBuilder;
+import org.elasticsearch.index.query.TermsFilterBuilder;
+import org.elasticsearch.index.query.TermsLookupFilterBuilder;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.ActionListener;
 
 import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 
-import org.apache.http.client.HttpClient;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.HttpResponse;
-import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.util.EntityUtils;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.client.DefaultRedirectStrategy;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
 
 /** This class represents the main Java API for modifying SearchRequestBuilder 
 * objects within ElasticSearch.  It is a singleton class whose main public method
@@ -50,69 +58,436 @@ public class MCFAuthorizer
   /** Special token for null security fields */
   static final public String NOSECURITY_TOKEN = "__nosecurity__";
 
+  /** Filter shape using one term filter per access token */
+  static final public String FILTER_SHAPE_TERM = "term";
+  /** Filter shape using one terms filter per allow or deny field */
+  static final public String FILTER_SHAPE_TERMS = "terms";
+  /** Filter shape using one mcf_acl filter, evaluated by the plugin itself */
+  static final public String FILTER_SHAPE_ACL = "acl";
+  /** Filter shape using one terms lookup filter per allow or deny field, against a stored token set */
+  static final public String FILTER_SHAPE_LOOKUP = "lookup";
+  /** Filter shape chosen by the number of access tokens: term, then terms, then lookup */
+  static final public String FILTER_SHAPE_ADAPTIVE = "adaptive";
+
+  /** Type of the documents holding stored token sets */
+  static final public String TOKEN_SET_TYPE = "tokens";
+  /** Field of the documents holding stored token sets */
+  static final public String TOKEN_SET_FIELD = "tokens";
+
+  /** Cache access tokens as strings on the Java heap */
+  static final public String CACHE_STORAGE_HEAP = "heap";
+  /** Cache access tokens encoded in direct buffers, outside the Java heap */
+  static final public String CACHE_STORAGE_OFF_HEAP = "off_heap";
+
+  /** When the authority service is unavailable, fail the request */
+  static final public String FALLBACK_FAIL = "fail";
+  /** When the authority service is unavailable, use recently expired cached access tokens if there are any */
+  static final public String FALLBACK_STALE = "stale";
+
+  /** Timeout of health checks in milliseconds, when the configured timeouts are both infinite */
+  static final protected int DEFAULT_HEALTH_CHECK_TIMEOUT = 10000;
+
   /** A logger we can use */
   private static final ESLogger LOG = Loggers.getLogger(MCFAuthorizer.class);
 
   // Member variables
 
-  protected final String authorityBaseURL;
+  protected final String allowFieldPrefix;
+  protected final String denyFieldPrefix;
   protected final String fieldAllowDocument;
   protected final String fieldDenyDocument;
   protected final String fieldAllowParent;
   protected final String fieldDenyParent;
   protected final String fieldAllowShare;
   protected final String fieldDenyShare;
-  protected final int connectionTimeout;
-  protected final int socketTimeout;
-  protected final int poolSize;
+  protected final String authoritySelection;
+  protected final int authorityMaxFailures;
+  protected final long authorityReadmitInterval;
+  protected final int authorityRetries;
+  protected final String healthCheckPath;
+  /** Whether the authority service is asked to gzip its responses */
+  protected final boolean authorityCompression;
+  /** Shares access token strings between users, or null if tokens are not shared */
+  protected final MCFTokenDictionary tokenDictionary;
+  /** Logs the status lines of UserACLs responses */
+  protected final MCFRateLimitedLogger authorityStatusLogger;
+  protected final String filterShape;
+  protected final String termsExecution;
+  /** Number of access tokens above which the adaptive shape uses terms filters */
+  protected final int termsThreshold;
+  /** Number of access tokens above which the adaptive shape uses terms lookup filters, or 0 if it never does */
+  protected final int lookupThreshold;
+  /** Index holding the token sets of terms lookup filters */
+  protected final String lookupIndex;
+  /** Whether authorization filters carry cache keys derived from their token sets */
+  protected final boolean filterCacheKeys;
+  /** Guards calls to the authority service, or null if there is no circuit breaker */
+  protected final MCFCircuitBreaker circuitBreaker;
+  /** Whether expired cached access tokens are used when the authority service is unavailable */
+  protected final boolean staleFallback;
   
-  protected final ClientConnectionManager connectionManager;
-  protected final HttpClient httpClient;
+  /** Cache of access tokens, keyed by canonical user identity, or null if caching is disabled */
+  protected final MCFCache<String,List<String>> tokenCache;
+  /** Lifetime of cached access tokens, or 0 if they never expire */
+  protected final long cacheTimeToLive;
+  /** Age after which cached access tokens are refreshed in the background */
+  protected final long cacheSoftTimeToLive;
+  /** Resolves the access tokens of batches of users */
+  protected final ExecutorService batchExecutor;
+  /** Maximum number of users of one batch resolved at the same time */
+  protected final int batchConcurrency;
+  /** Refreshes cached access tokens, or null if they are never refreshed ahead of expiry */
+  protected final ExecutorService refreshExecutor;
+  /** Users whose access tokens are being refreshed, keyed by canonical user identity */
+  protected final ConcurrentMap<String,Boolean> refreshingUsers = new ConcurrentHashMap<String,Boolean>();
+  /** Cache of serialized filters, keyed by canonical access token set, or null if caching is disabled */
+  protected final MCFLRUCache<String,MCFSerializedFilterBuilder> filterCache;
+  /** Outstanding authority service requests, keyed by canonical user identity */
+  protected final ConcurrentMap<String,FutureTask<List<String>>> inFlightRequests = new ConcurrentHashMap<String,FutureTask<List<String>>>();
+  /** The filter matching only open documents, used for users without access tokens */
+  protected final MCFSerializedFilterBuilder openDocumentsFilter;
+
+  /** The authority service instances and the HTTP client talking to them, or null if there are none */
+  protected volatile MCFAuthorityClient authorityClient;
+  /** Serializes changes of the authority client */
+  protected final Object authorityClientLock = new Object();
+  /** Runs the authority service health checks, or null if there are none */
+  protected final ScheduledExecutorService healthCheckExecutor;
+
+  /** Where token sets for terms lookup filters are stored, or null if they can't be */
+  protected volatile MCFTokenSetStore tokenSetStore = null;
+  /** Logs failures to store token sets */
+  protected final MCFRateLimitedLogger tokenSetStoreLogger;
+
+  /** Other nodes to ask for access tokens before the authority service, or null if there are none */
+  protected volatile MCFPeerTokenLookup peerLookup = null;
+
+  /** Access tokens saved on disk, looked up when they are not cached in memory, or null if there are none */
+  protected volatile MCFDiskTokenCache diskCache = null;
+
+  /** Counters and histograms describing this authorizer's activity */
+  protected final MCFAuthorizerStats stats = new MCFAuthorizerStats();
 
   /** Constructor, which includes configuration information */
   public MCFAuthorizer(MCFConfigurationParameters cp)
   {
-    authorityBaseURL = cp.authorityServiceBaseURL;
+    allowFieldPrefix = cp.allowFieldPrefix;
+    denyFieldPrefix = cp.denyFieldPrefix;
     fieldAllowDocument = cp.allowFieldPrefix+"document";
     fieldDenyDocument = cp.denyFieldPrefix+"document";
     fieldAllowShare = cp.allowFieldPrefix+"share";
     fieldDenyShare = cp.denyFieldPrefix+"share";
     fieldAllowParent = cp.allowFieldPrefix+"parent";
     fieldDenyParent = cp.denyFieldPrefix+"parent";
-    connectionTimeout = cp.connectionTimeout;
-    socketTimeout = cp.socketTimeout;
-    poolSize = cp.connectionPoolSize;
+    authoritySelection = cp.authoritySelection;
+    authorityMaxFailures = cp.authorityMaxFailures;
+    authorityReadmitInterval = cp.authorityReadmitInterval;
+    authorityRetries = cp.authorityRetries;
+    healthCheckPath = cp.healthCheckPath;
+    authorityCompression = cp.authorityCompression;
+    tokenDictionary = (cp.tokenDictionarySize > 0)?new MCFTokenDictionary(cp.tokenDictionarySize):null;
+    authorityStatusLogger = new MCFRateLimitedLogger(LOG,cp.authorityLogInterval);
+    if (!FILTER_SHAPE_TERM.equals(cp.filterShape) && !FILTER_SHAPE_TERMS.equals(cp.filterShape) && !FILTER_SHAPE_ACL.equals(cp.filterShape)
+      && !FILTER_SHAPE_LOOKUP.equals(cp.filterShape) && !FILTER_SHAPE_ADAPTIVE.equals(cp.filterShape))
+      throw new ElasticsearchIllegalArgumentException("Unsupported filter shape ["+cp.filterShape+"], can either be ["+FILTER_SHAPE_TERM+"], ["+FILTER_SHAPE_TERMS+"], ["
+        +FILTER_SHAPE_ACL+"], ["+FILTER_SHAPE_LOOKUP+"] or ["+FILTER_SHAPE_ADAPTIVE+"]");
+    filterShape = cp.filterShape;
+    termsExecution = cp.termsExecution;
+    termsThreshold = cp.filterTermsThreshold;
+    lookupThreshold = cp.filterLookupThreshold;
+    lookupIndex = cp.filterLookupIndex;
+    tokenSetStoreLogger = new MCFRateLimitedLogger(LOG,cp.authorityLogInterval);
+    filterCacheKeys = cp.filterCacheKeys;
+    if (!FALLBACK_FAIL.equals(cp.breakerFallback) && !FALLBACK_STALE.equals(cp.breakerFallback))
+      throw new ElasticsearchIllegalArgumentException("Unsupported circuit breaker fallback ["+cp.breakerFallback+"], can either be ["+FALLBACK_FAIL+"] or ["+FALLBACK_STALE+"]");
+    staleFallback = FALLBACK_STALE.equals(cp.breakerFallback);
+    if (cp.breakerEnabled)
+      circuitBreaker = new MCFCircuitBreaker(cp.breakerWindowSize,cp.breakerMinimumCalls,cp.breakerFailureRateThreshold,
+        cp.breakerSlowCallDuration,cp.breakerSlowCallRateThreshold,cp.breakerOpenDuration,cp.breakerHalfOpenProbes);
+    else
+      circuitBreaker = null;
     
-    // Set up client pool etc, if there's indication that we should do that
-    if (authorityBaseURL != null)
-    {
-      PoolingClientConnectionManager localConnectionManager = new PoolingClientConnectionManager();
-      localConnectionManager.setMaxTotal(poolSize);
-      localConnectionManager.setDefaultMaxPerRoute(poolSize);
-      connectionManager = localConnectionManager;
-      
-      BasicHttpParams params = new BasicHttpParams();
-      params.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY,true);
-      params.setBooleanParameter(CoreConnectionPNames.STALE_CONNECTION_CHECK,true);
-      params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT,socketTimeout);
-      params.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,connectionTimeout);
-      DefaultHttpClient localClient = new DefaultHttpClient(connectionManager,params);
-      localClient.setRedirectStrategy(new DefaultRedirectStrategy());
-      httpClient = localClient;
+    if (!CACHE_STORAGE_HEAP.equals(cp.cacheStorage) && !CACHE_STORAGE_OFF_HEAP.equals(cp.cacheStorage))
+      throw new ElasticsearchIllegalArgumentException("Unsupported cache storage ["+cp.cacheStorage+"], can either be ["+CACHE_STORAGE_HEAP+"] or ["+CACHE_STORAGE_OFF_HEAP+"]");
+    // Tokens older than the lifetime are never used, so a later refresh would never happen
+    if (cp.cacheMaxEntries > 0 && cp.cacheTimeToLive > 0L && cp.cacheSoftTimeToLive >= cp.cacheTimeToLive)
+      throw new ElasticsearchIllegalArgumentException("Cache soft time to live ["+cp.cacheSoftTimeToLive+"] must be less than the cache time to live ["
+        +cp.cacheTimeToLive+"]; set mcf.cache.soft_ttl to 0 to disable background refreshing");
+    if (cp.cacheMaxEntries > 0)
+    {
+      if (CACHE_STORAGE_OFF_HEAP.equals(cp.cacheStorage))
+        tokenCache = new MCFOffHeapTokenCache(cp.cacheOffHeapSize,cp.cacheMaxEntries,cp.cacheTimeToLive,staleFallback?cp.breakerMaxStaleness:0L,tokenDictionary);
+      else
+        tokenCache = new MCFLRUCache<String,List<String>>(cp.cacheMaxEntries,cp.cacheTimeToLive,staleFallback?cp.breakerMaxStaleness:0L);
+    }
+    else
+      tokenCache = null;
+    cacheTimeToLive = cp.cacheTimeToLive;
+    cacheSoftTimeToLive = cp.cacheSoftTimeToLive;
+    if (tokenCache != null && cp.cacheSoftTimeToLive > 0L && cp.cacheRefreshThreads > 0)
+    {
+      // A refresh that can't be queued is simply skipped; the entry will be refetched when it expires
+      refreshExecutor = new ThreadPoolExecutor(cp.cacheRefreshThreads,cp.cacheRefreshThreads,
+        60L,TimeUnit.SECONDS,new ArrayBlockingQueue<Runnable>(cp.cacheMaxEntries),
+        EsExecutors.daemonThreadFactory("mcf_token_refresh"),new ThreadPoolExecutor.DiscardPolicy());
     }
     else
+      refreshExecutor = null;
+
+    if (cp.filterCacheMaxEntries > 0)
+      filterCache = new MCFLRUCache<String,MCFSerializedFilterBuilder>(cp.filterCacheMaxEntries,0L);
+    else
+      filterCache = null;
+    openDocumentsFilter = MCFSerializedFilterBuilder.serialize(calculateAuthorizationFilter(null));
+
+    // Set up client pool etc, if there's indication that we should do that
+    if (cp.authorityServiceBaseURLs != null)
+      authorityClient = new MCFAuthorityClient(new MCFAuthorityEndpoints(cp.authorityServiceBaseURLs,authoritySelection,authorityMaxFailures,authorityReadmitInterval),
+        cp.connectionTimeout,cp.socketTimeout,cp.connectionPoolSize);
+    else
+      authorityClient = null;
+
+    // The authority service may be configured later, so these are set up even if there is none yet
+    batchConcurrency = Math.max(cp.authorityBatchConcurrency,1);
+    // Batch workers that have nothing left to do by the time they start exit at once, so the queue needs no bound
+    batchExecutor = new ThreadPoolExecutor(batchConcurrency,batchConcurrency,60L,TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),EsExecutors.daemonThreadFactory("mcf_token_batch"));
+    if (cp.healthCheckInterval > 0L)
     {
-      connectionManager = null;
-      httpClient = null;
+      healthCheckExecutor = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("mcf_authority_health_check"));
+      healthCheckExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            checkEndpoints();
+          }
+        },cp.healthCheckInterval,cp.healthCheckInterval,TimeUnit.MILLISECONDS);
     }
+    else
+      healthCheckExecutor = null;
   }
 
   /** Shut down the pool etc.
   */
   public void shutdown()
   {
-    if (connectionManager != null)
-      connectionManager.shutdown();
+    if (refreshExecutor != null)
+      refreshExecutor.shutdownNow();
+    if (batchExecutor != null)
+      batchExecutor.shutdownNow();
+    if (healthCheckExecutor != null)
+      healthCheckExecutor.shutdownNow();
+    MCFAuthorityClient client;
+    synchronized (authorityClientLock)
+    {
+      client = authorityClient;
+      authorityClient = null;
+    }
+    if (client != null)
+      client.shutdown();
+  }
+
+  /** Get the authority service instances, or null if there are none.
+  */
+  public MCFAuthorityEndpoints getEndpoints()
+  {
+    MCFAuthorityClient client = authorityClient;
+    return (client == null)?null:client.getEndpoints();
+  }
+
+  /** Change the authority service instances and the settings of the HTTP client
+  * talking to them.  If anything changed, a new client and connection pool are
+  * swapped in at once; the old pool is shut down in the background once the
+  * requests still using it have finished, or once they would have timed out.
+  * The health of the instances is kept if their base URLs did not change.
+  *@param baseURLs are the base URLs of the authority service instances, or null if there are none.
+  *@param connectionTimeout is the connection timeout in milliseconds.
+  *@param socketTimeout is the socket timeout in milliseconds.
+  *@param poolSize is the maximum number of connections to each instance.
+  *@return true if a new client was swapped in.
+  */
+  public boolean updateAuthorityClient(String[] baseURLs, int connectionTimeout, int socketTimeout, int poolSize)
+  {
+    if (baseURLs != null && baseURLs.length == 0)
+      baseURLs = null;
+    if (poolSize <= 0)
+      throw new ElasticsearchIllegalArgumentException("Connection pool size must be positive, was ["+poolSize+"]");
+    final MCFAuthorityClient oldClient;
+    synchronized (authorityClientLock)
+    {
+      oldClient = authorityClient;
+      if (oldClient == null && baseURLs == null)
+        return false;
+      if (oldClient != null && baseURLs != null && oldClient.getEndpoints().hasBaseURLs(baseURLs)
+        && oldClient.getConnectionTimeout() == connectionTimeout && oldClient.getSocketTimeout() == socketTimeout
+        && oldClient.getPoolSize() == poolSize)
+        return false;
+      if (baseURLs == null)
+        authorityClient = null;
+      else
+      {
+        MCFAuthorityEndpoints newEndpoints;
+        if (oldClient != null && oldClient.getEndpoints().hasBaseURLs(baseURLs))
+          newEndpoints = oldClient.getEndpoints();
+        else
+          newEndpoints = new MCFAuthorityEndpoints(baseURLs,authoritySelection,authorityMaxFailures,authorityReadmitInterval);
+        authorityClient = new MCFAuthorityClient(newEndpoints,connectionTimeout,socketTimeout,poolSize);
+      }
+    }
+    stats.authorityClientSwaps.incrementAndGet();
+    LOG.info("Updated ManifoldCF authority service client: base URLs "+((baseURLs == null)?"none":Arrays.toString(baseURLs))
+      +", connection timeout "+connectionTimeout+", socket timeout "+socketTimeout+", pool size "+poolSize);
+    if (oldClient != null)
+    {
+      // Requests that picked up the old client before the swap finish on it
+      oldClient.retire();
+      drainAuthorityClient(oldClient);
+    }
+    return true;
+  }
+
+  /** Shut a retired authority client down in the background, once no request is using it.
+  */
+  protected void drainAuthorityClient(final MCFAuthorityClient client)
+  {
+    // A request can't use the client for longer than it takes all of its attempts to time out, unless they never do
+    final long drainTimeout = (client.getSocketTimeout() == 0 || client.getConnectionTimeout() == 0)?Long.MAX_VALUE:
+      ((long)client.getConnectionTimeout() + (long)client.getSocketTimeout()) * (long)(authorityRetries + 1);
+    EsExecutors.daemonThreadFactory("mcf_authority_drain").newThread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          long startTime = System.currentTimeMillis();
+          try
+          {
+            while (client.getInFlight() > 0 && System.currentTimeMillis() - startTime < drainTimeout)
+            {
+              Thread.sleep(100L);
+            }
+          }
+          catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+          }
+          if (client.getInFlight() > 0)
+            LOG.warn("Shutting down old ManifoldCF authority service client with "+client.getInFlight()+" requests still in flight");
+          client.shutdown();
+        }
+      }).start();
+  }
+
+  /** Get the current authority client for a request, which must release it when done.
+  *@return the client, or null if there is no authority service.
+  */
+  protected MCFAuthorityClient acquireAuthorityClient()
+  {
+    while (true)
+    {
+      MCFAuthorityClient client = authorityClient;
+      if (client == null || client.acquire())
+        return client;
+      // Retired between reading and acquiring it; the replacement is already in place
+    }
+  }
+
+  /** Get the users whose access tokens are cached, most recently used first.
+  *@param maxUsers is the maximum number of users to return.
+  *@return the users, each as a map from domain to user name.
+  */
+  public List<Map<String,String>> getCachedUsers(int maxUsers)
+  {
+    List<Map<String,String>> rval = new ArrayList<Map<String,String>>();
+    if (tokenCache == null)
+      return rval;
+    for (String userKey : tokenCache.keys(maxUsers))
+    {
+      // Invert canonicalUserKey()
+      String[] parts = userKey.split("\u0000",-1);
+      Map<String,String> domainMap = new HashMap<String,String>();
+      for (int i = 0; i + 1 < parts.length; i += 2)
+      {
+        domainMap.put(parts[i],parts[i+1]);
+      }
+      rval.add(domainMap);
+    }
+    return rval;
+  }
+
+  /** Set the other nodes to ask for access tokens before the authority service.
+  * Their answers are kept in the token cache by prefetchAccessTokens(), so they
+  * are only asked if there is a token cache.
+  *@param peerLookup is the lookup, or null to only ask the authority service.
+  */
+  public void setPeerLookup(MCFPeerTokenLookup peerLookup)
+  {
+    this.peerLookup = peerLookup;
+  }
+
+  /** Set where token sets for terms lookup filters are stored.
+  *@param tokenSetStore is the store, or null if terms filters should be used instead.
+  */
+  public void setTokenSetStore(MCFTokenSetStore tokenSetStore)
+  {
+    this.tokenSetStore = tokenSetStore;
+  }
+
+  /** Set the disk tier of the access token cache.
+  *@param diskCache is the disk tier, or null to only cache access tokens in memory.
+  */
+  public void setDiskCache(MCFDiskTokenCache diskCache)
+  {
+    this.diskCache = diskCache;
+  }
+
+  /** Get the disk tier of the access token cache, or null if there is none.
+  */
+  public MCFDiskTokenCache getDiskCache()
+  {
+    return diskCache;
+  }
+
+  /** Get the circuit breaker guarding the authority service, or null if there is none.
+  */
+  public MCFCircuitBreaker getCircuitBreaker()
+  {
+    return circuitBreaker;
+  }
+
+  /** Get the dictionary sharing access token strings between users, or null if there is none.
+  */
+  public MCFTokenDictionary getTokenDictionary()
+  {
+    return tokenDictionary;
+  }
+
+  /** Get the statistics describing this authorizer's activity.
+  */
+  public MCFAuthorizerStats getStats()
+  {
+    return stats;
+  }
+
+  /** Get the cache of access tokens, or null if caching is disabled.
+  */
+  public MCFCache<String,List<String>> getTokenCache()
+  {
+    return tokenCache;
+  }
+
+  /** Get the number of users whose access tokens are currently cached.
+  */
+  public int getTokenCacheSize()
+  {
+    return (tokenCache == null)?0:tokenCache.size();
+  }
+
+  /** Get the number of authorization filters currently cached.
+  */
+  public int getFilterCacheSize()
+  {
+    return (filterCache == null)?0:filterCache.size();
   }
 
   /** Main method for building a filter representing appropriate security.
@@ -121,6 +496,22 @@ public class MCFAuthorizer
    */
   public FilterBuilder buildAuthorizationFilter(String[] authenticatedUserNamesAndDomains)
     throws  MCFAuthorizerException{
+    return buildAuthorizationFilter(parseUserNamesAndDomains(authenticatedUserNamesAndDomains),null);
+  }
+
+  /** Main method for building a filter representing appropriate security.
+   *@param authenticatedUserNamesAndDomains is a list of user names and its domains in the form "user:mcfdomain".
+   *@param profile receives the time spent on access tokens and on the filter, or is null.
+   *@return the filter builder.
+   */
+  public FilterBuilder buildAuthorizationFilter(String[] authenticatedUserNamesAndDomains, MCFRequestProfile profile)
+    throws  MCFAuthorizerException{
+    return buildAuthorizationFilter(parseUserNamesAndDomains(authenticatedUserNamesAndDomains),profile);
+  }
+
+  /** Convert user names and domains in the form "user:mcfdomain" to a map from domain to user name.
+  */
+  public static Map<String,String> parseUserNamesAndDomains(String[] authenticatedUserNamesAndDomains) {
     Map<String,String> domainMap = new HashMap<String,String>();
     for(String buffer : authenticatedUserNamesAndDomains){
       String[] authenticatedUserNameAndDomain = buffer.split(":", 2);
@@ -130,7 +521,18 @@ public class MCFAuthorizer
       else authenticatedUserDomain=authenticatedUserNameAndDomain[1];
       domainMap.put(authenticatedUserDomain, authenticatedUserName);
     }
-    return buildAuthorizationFilter(domainMap);
+    return domainMap;
+  }
+
+  /** Convert a map from domain to user name to user names and domains in the form "user:mcfdomain".
+  */
+  public static String[] formatUserNamesAndDomains(Map<String,String> domainMap) {
+    String[] rval = new String[domainMap.size()];
+    int i = 0;
+    for (Map.Entry<String,String> entry : new TreeMap<String,String>(domainMap).entrySet()) {
+      rval[i++] = (entry.getKey().length() == 0)?entry.getValue():entry.getValue()+":"+entry.getKey();
+    }
+    return rval;
   }
 
   /** Main method for building a filter representing appropriate security.
@@ -141,7 +543,19 @@ public class MCFAuthorizer
   public FilterBuilder buildAuthorizationFilter(Map<String,String> domainMap)
     throws MCFAuthorizerException
   {
-    if (authorityBaseURL == null)
+    return buildAuthorizationFilter(domainMap,null);
+  }
+
+  /** Main method for building a filter representing appropriate security.
+  *@param domainMap is a map from MCF authorization domain name to user name,
+  * and describes a complete user identity.
+  *@param profile receives the time spent on access tokens and on the filter, or is null.
+  *@return the filter builder.
+  */
+  public FilterBuilder buildAuthorizationFilter(Map<String,String> domainMap, MCFRequestProfile profile)
+    throws MCFAuthorizerException
+  {
+    if (authorityClient == null)
       throw new IllegalStateException("Authority base URL required for finding access tokens for a user");
     
     if (domainMap == null || domainMap.size() == 0)
@@ -162,7 +576,11 @@ public class MCFAuthorizer
       LOG.info("Trying to match docs for user '"+sb.toString()+"'");
     }
 
-    return buildAuthorizationFilter(getAccessTokens(domainMap));
+    long startTime = System.nanoTime();
+    List<String> userAccessTokens = getAccessTokens(domainMap);
+    if (profile != null)
+      profile.tokensTime += MCFRequestProfile.elapsed(startTime);
+    return buildAuthorizationFilter(userAccessTokens,profile);
   }
   
   /** Main method for building a filter representing appropriate security.
@@ -195,6 +613,210 @@ public class MCFAuthorizer
   public FilterBuilder buildAuthorizationFilter(List<String> userAccessTokens)
     throws MCFAuthorizerException
   {
+    return buildAuthorizationFilter(userAccessTokens,null);
+  }
+
+  /** Main method for building a filter representing appropriate security.
+  *@param userAccessTokens are a set of tokens to use to construct the filter (presumably from mod_authz_annotate, upstream)
+  *@param profile receives the time spent on the filter and its size, or is null.
+  *@return the wrapped query enforcing ManifoldCF security.
+  */
+  public FilterBuilder buildAuthorizationFilter(List<String> userAccessTokens, MCFRequestProfile profile)
+    throws MCFAuthorizerException
+  {
+    long startTime = System.nanoTime();
+    try
+    {
+      return buildAuthorizationFilterInternal(userAccessTokens,profile);
+    }
+    finally
+    {
+      if (profile != null)
+        profile.filterTime += MCFRequestProfile.elapsed(startTime);
+    }
+  }
+
+  protected FilterBuilder buildAuthorizationFilterInternal(List<String> userAccessTokens, MCFRequestProfile profile)
+    throws MCFAuthorizerException
+  {
+    if (userAccessTokens == null || userAccessTokens.size() == 0)
+    {
+      int clauseCount = countFilterClauses(0);
+      stats.recordFilterShape(effectiveShape(0));
+      stats.filterClauses.record(clauseCount);
+      if (profile != null)
+      {
+        profile.tokenCount = 0;
+        profile.clauseCount = clauseCount;
+      }
+      return openDocumentsFilter;
+    }
+    // Users with the same tokens, in whatever order the authority service returned them, get identical filters
+    List<String> canonicalTokens = canonicalTokens(userAccessTokens);
+    int clauseCount = countFilterClauses(canonicalTokens.size());
+    stats.filterClauses.record(clauseCount);
+    if (profile != null)
+    {
+      profile.tokenCount = canonicalTokens.size();
+      profile.clauseCount = clauseCount;
+    }
+    String preferredShape = effectiveShape(canonicalTokens.size());
+    String shape = chooseShape(preferredShape,canonicalTokens);
+    // Count every filter handed out, whether or not it was cached
+    stats.recordFilterShape(shape);
+    if (filterCache == null)
+      return calculateAuthorizationFilter(canonicalTokens,shape);
+
+    // The shape is part of the key, so that a token set's filter changes shape once its preferred shape becomes possible
+    String tokenKey = shape+":"+canonicalTokenKey(canonicalTokens);
+    MCFSerializedFilterBuilder filter = filterCache.get(tokenKey);
+    if (filter == null)
+    {
+      stats.filterCacheMisses.incrementAndGet();
+      filter = MCFSerializedFilterBuilder.serialize(calculateAuthorizationFilter(canonicalTokens,shape));
+      // A fallback is only good until the preferred shape can be used, so it isn't cached
+      if (shape.equals(preferredShape))
+        filterCache.put(tokenKey,filter);
+    }
+    else
+      stats.filterCacheHits.incrementAndGet();
+    return filter;
+  }
+
+  /** Choose the shape of the filter for a canonical token set, falling back from
+  * terms lookup filters to terms filters if the token set isn't stored.
+  *@param preferredShape is the shape effectiveShape() chose.
+  */
+  protected String chooseShape(String preferredShape, List<String> canonicalTokens)
+  {
+    if (FILTER_SHAPE_LOOKUP.equals(preferredShape) && !storeTokenSet(tokenSetId(canonicalTokens),canonicalTokens))
+      return FILTER_SHAPE_TERMS;
+    return preferredShape;
+  }
+
+  /** Count the leaf clauses of the filter calculateAuthorizationFilter() builds.
+  *@param tokenCount is the number of user access tokens.
+  *@return the number of term and terms filters in the filter.
+  */
+  protected int countFilterClauses(int tokenCount)
+  {
+    // Each of the three levels has its two open clauses, plus its token clauses
+    if (tokenCount == 0)
+      return 6;
+    String shape = effectiveShape(tokenCount);
+    if (FILTER_SHAPE_ACL.equals(shape))
+      return 1;
+    if (FILTER_SHAPE_TERMS.equals(shape) || FILTER_SHAPE_LOOKUP.equals(shape))
+      return 3 * (2 + 2);
+    return 3 * (2 + 2 * tokenCount);
+  }
+
+  /** Choose the shape of the filter for a number of access tokens.  Small token
+  * sets are cheapest as term filters, larger ones as terms filters, and very large
+  * ones are stored once and fetched by terms lookup filters, rather than being sent
+  * to and parsed by every shard of every search.
+  */
+  protected String effectiveShape(int tokenCount)
+  {
+    String shape = filterShape;
+    if (FILTER_SHAPE_ADAPTIVE.equals(shape))
+    {
+      if (lookupThreshold > 0 && tokenCount > lookupThreshold)
+        shape = FILTER_SHAPE_LOOKUP;
+      else if (tokenCount > termsThreshold)
+        shape = FILTER_SHAPE_TERMS;
+      else
+        shape = FILTER_SHAPE_TERM;
+    }
+    if (FILTER_SHAPE_LOOKUP.equals(shape) && tokenSetStore == null)
+      shape = FILTER_SHAPE_TERMS;
+    return shape;
+  }
+
+  /** Sort a list of access tokens and remove duplicates.
+  */
+  protected static List<String> canonicalTokens(List<String> userAccessTokens)
+  {
+    return new ArrayList<String>(new TreeSet<String>(userAccessTokens));
+  }
+
+  /** Calculate the shard filter cache key of the filters for a set of access tokens.
+  * It is a hash of the canonical token set, so that filters for the same tokens share
+  * cached results, and differs between filter shapes and field prefixes.
+  */
+  protected String filterCacheKey(String shape, List<String> userAccessTokens)
+  {
+    return hashKey(shape+"\u0000"+allowFieldPrefix+"\u0000"+denyFieldPrefix+"\u0000"+canonicalTokenKey(userAccessTokens));
+  }
+
+  /** Calculate the id of the stored document holding a set of access tokens.
+  */
+  protected static String tokenSetId(List<String> userAccessTokens)
+  {
+    return hashKey(canonicalTokenKey(userAccessTokens));
+  }
+
+  /** Hash a string to a short key, "mcf_" followed by the hexadecimal SHA-256 of the string.
+  */
+  protected static String hashKey(String value)
+  {
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder sb = new StringBuilder("mcf_");
+      for (byte b : digest.digest(value.getBytes("utf-8")))
+      {
+        sb.append(Character.forDigit((b >> 4) & 0xf,16)).append(Character.forDigit(b & 0xf,16));
+      }
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new MCFAuthorizerException("Unsupported digest: "+e.getMessage(),e);
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new MCFAuthorizerException("Unsupported encoding: "+e.getMessage(),e);
+    }
+  }
+
+  /** Calculate the canonical key for a set of access tokens.  Token lists that
+  * contain the same tokens always produce the same key, regardless of order or
+  * duplication.
+  */
+  protected static String canonicalTokenKey(List<String> userAccessTokens)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (String accessToken : new TreeSet<String>(userAccessTokens))
+    {
+      sb.append(accessToken).append('\u0000');
+    }
+    return sb.toString();
+  }
+
+  /** Build the filter tree representing appropriate security.
+  *@param userAccessTokens are a set of tokens to use to construct the filter.
+  *@return the filter builder.
+  */
+  protected FilterBuilder calculateAuthorizationFilter(List<String> userAccessTokens)
+  {
+    String shape = effectiveShape((userAccessTokens == null)?0:userAccessTokens.size());
+    if (userAccessTokens != null && userAccessTokens.size() > 0)
+      shape = chooseShape(shape,userAccessTokens);
+    return calculateAuthorizationFilter(userAccessTokens,shape);
+  }
+
+  /** Calculate a filter with a given shape.
+  *@param shape is the shape; for the lookup shape, the token set must already be stored.
+  */
+  protected FilterBuilder calculateAuthorizationFilter(List<String> userAccessTokens, String shape)
+  {
+    if (FILTER_SHAPE_ACL.equals(shape) && userAccessTokens != null && userAccessTokens.size() > 0)
+    {
+      // The whole tree is evaluated by MCFACLFilter, from cached per-token sets
+      return new MCFACLFilterBuilder(userAccessTokens,allowFieldPrefix,denyFieldPrefix);
+    }
+
     BoolFilterBuilder bq = new BoolFilterBuilder();
     
     FilterBuilder allowShareOpen = new TermFilterBuilder(fieldAllowShare,NOSECURITY_TOKEN);
@@ -220,10 +842,43 @@ public class MCFAuthorizer
     }
     else
     {
-      // Extend the query appropriately for each user access token.
-      bq.must(calculateCompleteSubquery(fieldAllowShare,fieldDenyShare,allowShareOpen,denyShareOpen,userAccessTokens));
-      bq.must(calculateCompleteSubquery(fieldAllowDocument,fieldDenyDocument,allowDocumentOpen,denyDocumentOpen,userAccessTokens));
-      bq.must(calculateCompleteSubquery(fieldAllowParent,fieldDenyParent,allowParentOpen,denyParentOpen,userAccessTokens));
+      BoolFilterBuilder shareClause;
+      BoolFilterBuilder documentClause;
+      BoolFilterBuilder parentClause;
+      if (FILTER_SHAPE_LOOKUP.equals(shape))
+      {
+        String tokenSetId = tokenSetId(userAccessTokens);
+        // Match the stored token set for each field; the shards fetch it once and cache it
+        shareClause = calculateCompleteLookupSubquery(fieldAllowShare,fieldDenyShare,allowShareOpen,denyShareOpen,lookupIndex,tokenSetId);
+        documentClause = calculateCompleteLookupSubquery(fieldAllowDocument,fieldDenyDocument,allowDocumentOpen,denyDocumentOpen,lookupIndex,tokenSetId);
+        parentClause = calculateCompleteLookupSubquery(fieldAllowParent,fieldDenyParent,allowParentOpen,denyParentOpen,lookupIndex,tokenSetId);
+      }
+      else if (FILTER_SHAPE_TERMS.equals(shape))
+      {
+        // Match all the user access tokens at once for each field.
+        shareClause = calculateCompleteTermsSubquery(fieldAllowShare,fieldDenyShare,allowShareOpen,denyShareOpen,userAccessTokens,termsExecution);
+        documentClause = calculateCompleteTermsSubquery(fieldAllowDocument,fieldDenyDocument,allowDocumentOpen,denyDocumentOpen,userAccessTokens,termsExecution);
+        parentClause = calculateCompleteTermsSubquery(fieldAllowParent,fieldDenyParent,allowParentOpen,denyParentOpen,userAccessTokens,termsExecution);
+      }
+      else
+      {
+        // Extend the query appropriately for each user access token.
+        shareClause = calculateCompleteSubquery(fieldAllowShare,fieldDenyShare,allowShareOpen,denyShareOpen,userAccessTokens);
+        documentClause = calculateCompleteSubquery(fieldAllowDocument,fieldDenyDocument,allowDocumentOpen,denyDocumentOpen,userAccessTokens);
+        parentClause = calculateCompleteSubquery(fieldAllowParent,fieldDenyParent,allowParentOpen,denyParentOpen,userAccessTokens);
+      }
+      if (filterCacheKeys)
+      {
+        // Cache each level and the whole filter under a short key, rather than under the filter's structure
+        String cacheKey = filterCacheKey(shape,userAccessTokens);
+        shareClause.cache(true).cacheKey(cacheKey+"_share");
+        documentClause.cache(true).cacheKey(cacheKey+"_document");
+        parentClause.cache(true).cacheKey(cacheKey+"_parent");
+        bq.cache(true).cacheKey(cacheKey);
+      }
+      bq.must(shareClause);
+      bq.must(documentClause);
+      bq.must(parentClause);
     }
 
     return bq;
@@ -233,11 +888,10 @@ public class MCFAuthorizer
   * ((fieldAllowShare is empty AND fieldDenyShare is empty) OR fieldAllowShare HAS token1 OR fieldAllowShare HAS token2 ...)
   *     AND fieldDenyShare DOESN'T_HAVE token1 AND fieldDenyShare DOESN'T_HAVE token2 ...
   */
-  protected static FilterBuilder calculateCompleteSubquery(String allowField, String denyField, FilterBuilder allowOpen, FilterBuilder denyOpen, List<String> userAccessTokens)
+  protected static BoolFilterBuilder calculateCompleteSubquery(String allowField, String denyField, FilterBuilder allowOpen, FilterBuilder denyOpen, List<String> userAccessTokens)
   {
     BoolFilterBuilder bq = new BoolFilterBuilder();
-    // No ES equivalent - hope this is done right inside
-    //bq.setMaxClauseCount(1000000);
+    // No ES equivalent of setMaxClauseCount(); the adaptive shape only builds this for small token sets
     
     // Add the empty-acl case
     BoolFilterBuilder subUnprotectedClause = new BoolFilterBuilder();
@@ -252,89 +906,627 @@ public class MCFAuthorizer
     return bq;
   }
 
-  /** Get access tokens given a username */
-  protected List<String> getAccessTokens(Map<String,String> domainMap)
-    throws MCFAuthorizerException
+  /** Calculate a complete subclause with the same meaning as calculateCompleteSubquery(),
+  * but matching a stored token set with a terms lookup filter for each of the allow and
+  * deny fields, so that the tokens themselves are not part of the filter.
+  */
+  protected static BoolFilterBuilder calculateCompleteLookupSubquery(String allowField, String denyField, FilterBuilder allowOpen, FilterBuilder denyOpen, String index, String tokenSetId)
+  {
+    BoolFilterBuilder bq = new BoolFilterBuilder();
+    
+    // Add the empty-acl case
+    BoolFilterBuilder subUnprotectedClause = new BoolFilterBuilder();
+    subUnprotectedClause.must(allowOpen);
+    subUnprotectedClause.must(denyOpen);
+    bq.should(subUnprotectedClause);
+    bq.should(new TermsLookupFilterBuilder(allowField).lookupIndex(index).lookupType(TOKEN_SET_TYPE).lookupId(tokenSetId).lookupPath(TOKEN_SET_FIELD));
+    bq.mustNot(new TermsLookupFilterBuilder(denyField).lookupIndex(index).lookupType(TOKEN_SET_TYPE).lookupId(tokenSetId).lookupPath(TOKEN_SET_FIELD));
+    return bq;
+  }
+
+  /** Store a token set for terms lookup filters.
+  *@return true if it is stored, or false if it isn't yet and the tokens must be part of the filter.
+  */
+  protected boolean storeTokenSet(String tokenSetId, List<String> userAccessTokens)
   {
+    MCFTokenSetStore currentStore = tokenSetStore;
+    if (currentStore == null)
+      return false;
     try
     {
-      StringBuilder urlBuffer = new StringBuilder(authorityBaseURL);
-      urlBuffer.append("/UserACLs");
-      int i = 0;
-      for (String domain : domainMap.keySet())
-      {
-        if (i == 0)
-          urlBuffer.append("?");
-        else
-          urlBuffer.append("&");
-        // For backwards compatibility, handle the singleton case specially
-        if (domainMap.size() == 1 && domain.length() == 0)
-        {
-          urlBuffer.append("username=").append(URLEncoder.encode(domainMap.get(domain),"utf-8"));
-        }
-        else
-        {
-          urlBuffer.append("username_").append(Integer.toString(i)).append("=").append(URLEncoder.encode(domainMap.get(domain),"utf-8")).append("&")
-            .append("domain_").append(Integer.toString(i)).append("=").append(URLEncoder.encode(domain,"utf-8"));
+      return currentStore.store(tokenSetId,userAccessTokens);
+    }
+    catch (RuntimeException e)
+    {
+      if (tokenSetStoreLogger.shouldLog())
+        tokenSetStoreLogger.info("Couldn't store token set; using terms filters instead: "+e.getMessage());
+      return false;
+    }
+  }
+
+  /** Calculate the canonical key for a user identity.  Two domain maps that
+  * describe the same identity always produce the same key, regardless of their
+  * iteration order.
+  */
+  protected static String canonicalUserKey(Map<String,String> domainMap)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String,String> entry : new TreeMap<String,String>(domainMap).entrySet())
+    {
+      sb.append(entry.getKey()).append('\u0000').append(entry.getValue()).append('\u0000');
+    }
+    return sb.toString();
+  }
+
+  /** Calculate a complete subclause with the same meaning as calculateCompleteSubquery(),
+  * but expressed with a single terms filter for each of the allow and deny fields:
+  * ((fieldAllowShare is empty AND fieldDenyShare is empty) OR fieldAllowShare HAS_ANY_OF tokens)
+  *     AND fieldDenyShare HAS_NONE_OF tokens
+  */
+  protected static BoolFilterBuilder calculateCompleteTermsSubquery(String allowField, String denyField, FilterBuilder allowOpen, FilterBuilder denyOpen, List<String> userAccessTokens, String execution)
+  {
+    BoolFilterBuilder bq = new BoolFilterBuilder();
+    
+    // Add the empty-acl case
+    BoolFilterBuilder subUnprotectedClause = new BoolFilterBuilder();
+    subUnprotectedClause.must(allowOpen);
+    subUnprotectedClause.must(denyOpen);
+    bq.should(subUnprotectedClause);
+    bq.should(new TermsFilterBuilder(allowField,userAccessTokens).execution(execution));
+    bq.mustNot(new TermsFilterBuilder(denyField,userAccessTokens).execution(execution));
+    return bq;
+  }
+
+  /** Get access tokens given a username, consulting the token cache first.
+  * Other nodes are never asked here; see prefetchAccessTokens().
+  */
+  public List<String> getAccessTokens(Map<String,String> domainMap)
+    throws MCFAuthorizerException
+  {
+    String userKey = canonicalUserKey(domainMap);
+    if (tokenCache != null)
+    {
+      MCFLRUCache.Entry<List<String>> entry = tokenCache.getEntry(userKey);
+      if (entry != null)
+      {
+        stats.tokenCacheHits.incrementAndGet();
+        if (refreshExecutor != null && entry.getAge(System.currentTimeMillis()) >= cacheSoftTimeToLive)
+          refreshAccessTokens(userKey,domainMap);
+        return entry.value;
+      }
+      stats.tokenCacheMisses.incrementAndGet();
+    }
+    MCFDiskTokenCache currentDiskCache = diskCache;
+    if (currentDiskCache != null)
+    {
+      MCFLRUCache.Entry<List<String>> entry = currentDiskCache.get(userKey);
+      if (entry != null)
+      {
+        // Keep the original fetch time, so that the tokens still expire and are refreshed on time
+        if (tokenCache != null)
+          tokenCache.put(userKey,entry.value,entry.created);
+        if (refreshExecutor != null && entry.getAge(System.currentTimeMillis()) >= cacheSoftTimeToLive)
+          refreshAccessTokens(userKey,domainMap);
+        return entry.value;
+      }
+    }
+    try
+    {
+      return fetchAccessTokensShared(userKey,domainMap);
+    }
+    catch (MCFAuthorityUnavailableException e)
+    {
+      if (staleFallback && tokenCache != null)
+      {
+        MCFLRUCache.Entry<List<String>> staleEntry = tokenCache.getStaleEntry(userKey);
+        if (staleEntry != null)
+        {
+          stats.staleTokensServed.incrementAndGet();
+          LOG.debug("Using expired cached access tokens, because the authority service is unavailable: "+e.getMessage());
+          return staleEntry.value;
         }
-        i++;
       }
-      String theURL = urlBuffer.toString();
+      throw e;
+    }
+  }
+
+  /** Ask the nodes owning users for the access tokens this node has not cached,
+  * and then run a task.  The answers are put in the token cache, where the task
+  * finds them; users whose owner is this node or does not answer are left to the
+  * authority service.  No thread waits for the other nodes, so that two nodes
+  * asking each other can't exhaust each other's threads.
+  *@param domainMaps are the user identities, each a map from domain to user name.
+  *@param then is run once every owner asked has answered or failed, on the calling
+  * thread if none was asked and on a transport thread otherwise, so it must not block.
+  */
+  public void prefetchAccessTokens(List<Map<String,String>> domainMaps, final Runnable then)
+  {
+    MCFPeerTokenLookup currentPeerLookup = peerLookup;
+    if (currentPeerLookup == null || tokenCache == null)
+    {
+      then.run();
+      return;
+    }
+    // One more than the lookups sent, so that the task doesn't run before they all are
+    final AtomicInteger remaining = new AtomicInteger(1);
+    Set<String> seenUsers = new HashSet<String>();
+    for (Map<String,String> domainMap : domainMaps)
+    {
+      final String userKey = canonicalUserKey(domainMap);
+      if (!seenUsers.add(userKey) || tokenCache.getEntry(userKey) != null)
+        continue;
+      MCFDiskTokenCache currentDiskCache = diskCache;
+      if (currentDiskCache != null && currentDiskCache.get(userKey) != null)
+        continue;
+      remaining.incrementAndGet();
+      boolean sent = currentPeerLookup.lookup(userKey,domainMap,new ActionListener<List<String>>()
+        {
+          @Override
+          public void onResponse(List<String> tokens)
+          {
+            try
+            {
+              storeAccessTokens(userKey,tokens);
+            }
+            finally
+            {
+              if (remaining.decrementAndGet() == 0)
+                then.run();
+            }
+          }
 
-      HttpGet method = new HttpGet(theURL);
+          @Override
+          public void onFailure(Throwable t)
+          {
+            // The authority service will be asked instead
+            if (remaining.decrementAndGet() == 0)
+              then.run();
+          }
+        });
+      if (!sent)
+        remaining.decrementAndGet();
+    }
+    if (remaining.decrementAndGet() == 0)
+      then.run();
+  }
+
+  /** Get the access tokens of many users at once, resolving the users that are
+  * not cached in parallel over the connection pool.  The calling thread takes part,
+  * so a batch takes about as long as its slowest user, and a batch of one user is
+  * resolved entirely in the calling thread.
+  *@param domainMaps are the user identities, each a map from domain to user name.
+  *@param maxConcurrency is the maximum number of users resolved at the same time; it
+  * is also limited by "mcf.authority.batch_concurrency".
+  *@return the outcome for each user, in the same order as domainMaps.  A user
+  * whose tokens could not be resolved has an error, and does not affect the others.
+  */
+  public List<MCFUserTokens> getAccessTokens(List<Map<String,String>> domainMaps, int maxConcurrency)
+  {
+    stats.tokenBatches.incrementAndGet();
+    stats.tokenBatchUsers.record(domainMaps.size());
+    // Resolve each distinct identity once; cached users are answered straight away
+    Map<String,Integer> uniqueIndexes = new HashMap<String,Integer>();
+    int[] resultIndexes = new int[domainMaps.size()];
+    final List<Map<String,String>> uniqueUsers = new ArrayList<Map<String,String>>();
+    List<Integer> pending = new ArrayList<Integer>();
+    for (int i = 0; i < domainMaps.size(); i++)
+    {
+      Map<String,String> domainMap = domainMaps.get(i);
+      String userKey = canonicalUserKey(domainMap);
+      Integer index = uniqueIndexes.get(userKey);
+      if (index == null)
+      {
+        index = uniqueUsers.size();
+        uniqueIndexes.put(userKey,index);
+        uniqueUsers.add(domainMap);
+        if (tokenCache == null || tokenCache.getEntry(userKey) == null)
+          pending.add(index);
+      }
+      resultIndexes[i] = index;
+    }
+    MCFUserTokens[] uniqueResults = new MCFUserTokens[uniqueUsers.size()];
+    Set<Integer> pendingSet = new HashSet<Integer>(pending);
+    for (int i = 0; i < uniqueResults.length; i++)
+    {
+      if (!pendingSet.contains(i))
+        uniqueResults[i] = resolveUserTokens(uniqueUsers.get(i));
+    }
+
+    if (pending.size() > 0)
+    {
+      final int[] work = new int[pending.size()];
+      for (int i = 0; i < work.length; i++)
+      {
+        work[i] = pending.get(i);
+      }
+      // The workers only ever write here, so that once the caller stops waiting
+      // nothing it returns can change under it
+      final AtomicReferenceArray<MCFUserTokens> workResults = new AtomicReferenceArray<MCFUserTokens>(work.length);
+      final AtomicInteger next = new AtomicInteger(0);
+      final CountDownLatch done = new CountDownLatch(work.length);
+      Runnable worker = new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            int w;
+            while ((w = next.getAndIncrement()) < work.length)
+            {
+              workResults.set(w,resolveUserTokens(uniqueUsers.get(work[w])));
+              done.countDown();
+            }
+          }
+        };
+      int helpers = (batchExecutor == null)?0:Math.min(Math.min(maxConcurrency,batchConcurrency),work.length) - 1;
+      List<Future<?>> helperFutures = new ArrayList<Future<?>>(Math.max(helpers,0));
+      for (int i = 0; i < helpers; i++)
+      {
+        try
+        {
+          helperFutures.add(batchExecutor.submit(worker));
+        }
+        catch (RejectedExecutionException e)
+        {
+          // Shutting down; the calling thread does the work
+          break;
+        }
+      }
+      worker.run();
       try
       {
-        HttpResponse httpResponse = httpClient.execute(method);
-        int rval = httpResponse.getStatusLine().getStatusCode();
-        if (rval != 200)
+        done.await();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        // Give up on whatever the helpers have not finished
+        next.set(work.length);
+        for (Future<?> helperFuture : helperFutures)
         {
-          String response = EntityUtils.toString(httpResponse.getEntity(),"utf-8");
-          throw new MCFAuthorizerException("Couldn't fetch user's access tokens from ManifoldCF authority service: "+Integer.toString(rval)+"; "+response);
+          helperFuture.cancel(true);
         }
-        InputStream is = httpResponse.getEntity().getContent();
-        try
+        for (int w = 0; w < work.length; w++)
         {
-          String charSet = EntityUtils.getContentCharSet(httpResponse.getEntity());
-          if (charSet == null)
-            charSet = "utf-8";
-          Reader r = new InputStreamReader(is,charSet);
-          try
+          if (workResults.get(w) == null)
+            workResults.compareAndSet(w,null,new MCFUserTokens(uniqueUsers.get(work[w]),null,
+              new MCFAuthorizerException("Interrupted waiting for user's access tokens",e)));
+        }
+      }
+      for (int w = 0; w < work.length; w++)
+      {
+        uniqueResults[work[w]] = workResults.get(w);
+      }
+    }
+
+    List<MCFUserTokens> rval = new ArrayList<MCFUserTokens>(domainMaps.size());
+    for (int i = 0; i < resultIndexes.length; i++)
+    {
+      rval.add(uniqueResults[resultIndexes[i]]);
+    }
+    return rval;
+  }
+
+  /** Resolve one user of a batch, capturing any error.
+  */
+  protected MCFUserTokens resolveUserTokens(Map<String,String> domainMap)
+  {
+    try
+    {
+      return new MCFUserTokens(domainMap,getAccessTokens(domainMap),null);
+    }
+    catch (MCFAuthorizerException e)
+    {
+      return new MCFUserTokens(domainMap,null,e);
+    }
+    catch (RuntimeException e)
+    {
+      return new MCFUserTokens(domainMap,null,new MCFAuthorizerException("Couldn't fetch user's access tokens: "+e.getMessage(),e));
+    }
+  }
+
+  /** Refresh a user's cached access tokens in the background, unless that is already happening.
+  * The current tokens keep being served until the refresh completes or they expire.
+  */
+  protected void refreshAccessTokens(final String userKey, Map<String,String> domainMap)
+  {
+    if (refreshingUsers.putIfAbsent(userKey,Boolean.TRUE) != null)
+      return;
+    final Map<String,String> refreshDomainMap = new HashMap<String,String>(domainMap);
+    MCFPeerTokenLookup currentPeerLookup = peerLookup;
+    if (currentPeerLookup != null)
+    {
+      boolean sent = currentPeerLookup.lookup(userKey,refreshDomainMap,new ActionListener<List<String>>()
+        {
+          @Override
+          public void onResponse(List<String> tokens)
           {
-            BufferedReader br = new BufferedReader(r);
             try
             {
-              // Read the tokens, one line at a time.  If any authorities are down, we have no current way to note that, but someday we will.
-              List<String> tokenList = new ArrayList<String>();
-              while (true)
-              {
-                String line = br.readLine();
-                if (line == null)
-                  break;
-                if (line.startsWith("TOKEN:"))
-                {
-                  tokenList.add(line.substring("TOKEN:".length()));
-                }
-                else
-                {
-                  // It probably says something about the state of the authority(s) involved, so log it
-                  LOG.info("Saw authority response "+line);
-                }
-              }
-              return tokenList;
+              stats.tokenRefreshes.incrementAndGet();
+              storeAccessTokens(userKey,tokens);
             }
             finally
             {
-              br.close();
+              refreshingUsers.remove(userKey);
             }
           }
+
+          @Override
+          public void onFailure(Throwable t)
+          {
+            // The owner couldn't answer, so ask the authority service
+            submitRefresh(userKey,refreshDomainMap);
+          }
+        });
+      if (sent)
+        return;
+    }
+    submitRefresh(userKey,refreshDomainMap);
+  }
+
+  /** Refresh a user's cached access tokens from the authority service on the refresh executor.
+  */
+  protected void submitRefresh(final String userKey, final Map<String,String> refreshDomainMap)
+  {
+    Runnable refresh = new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            stats.tokenRefreshes.incrementAndGet();
+            fetchAccessTokensShared(userKey,refreshDomainMap);
+          }
+          catch (Throwable t)
+          {
+            LOG.debug("Failed to refresh cached access tokens",t);
+          }
           finally
           {
-            r.close();
+            refreshingUsers.remove(userKey);
+          }
+        }
+      };
+    try
+    {
+      refreshExecutor.execute(refresh);
+    }
+    catch (RejectedExecutionException e)
+    {
+      // Shutting down
+      refreshingUsers.remove(userKey);
+    }
+  }
+
+  /** Get access tokens given a username, from the authority service, sharing one
+  * request between all threads asking for the same user at the same time.  The
+  * result is also stored in the token cache.
+  */
+  protected List<String> fetchAccessTokensShared(final String userKey, final Map<String,String> domainMap)
+    throws MCFAuthorizerException
+  {
+    FutureTask<List<String>> task = new FutureTask<List<String>>(new Callable<List<String>>()
+      {
+        @Override
+        public List<String> call()
+          throws MCFAuthorizerException
+        {
+          // Cache before the request stops being visible to other threads, so no one misses both
+          return storeAccessTokens(userKey,fetchAccessTokens(domainMap));
+        }
+      });
+    FutureTask<List<String>> sharedTask = inFlightRequests.putIfAbsent(userKey,task);
+    if (sharedTask == null)
+    {
+      // We own the request, so run it in this thread
+      sharedTask = task;
+      try
+      {
+        task.run();
+      }
+      finally
+      {
+        inFlightRequests.remove(userKey,task);
+      }
+    }
+    else
+      stats.coalescedRequests.incrementAndGet();
+
+    try
+    {
+      return sharedTask.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new MCFAuthorizerException("Interrupted waiting for user's access tokens",e);
+    }
+    catch (ExecutionException e)
+    {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      if (cause instanceof Error)
+        throw (Error)cause;
+      throw new MCFAuthorizerException("Couldn't fetch user's access tokens: "+cause.getMessage(),cause);
+    }
+  }
+
+  /** Store a user's freshly fetched access tokens in the token caches.
+  *@return the tokens, as they were stored.
+  */
+  protected List<String> storeAccessTokens(String userKey, List<String> tokens)
+  {
+    tokens = Collections.unmodifiableList(tokens);
+    long currentTime = System.currentTimeMillis();
+    if (tokenCache != null)
+      tokenCache.put(userKey,tokens,currentTime);
+    MCFDiskTokenCache currentDiskCache = diskCache;
+    if (currentDiskCache != null)
+      currentDiskCache.put(userKey,tokens,currentTime,(cacheTimeToLive > 0L)?currentTime + cacheTimeToLive:Long.MAX_VALUE);
+    return tokens;
+  }
+
+  /** Get access tokens given a username, from the authority service, recording statistics */
+  protected List<String> fetchAccessTokens(Map<String,String> domainMap)
+    throws MCFAuthorizerException
+  {
+    if (circuitBreaker != null && !circuitBreaker.allowCall())
+      throw new MCFAuthorityUnavailableException("ManifoldCF authority service is unavailable; circuit breaker is open");
+    stats.authorityRequests.incrementAndGet();
+    long startTime = System.nanoTime();
+    boolean succeeded = false;
+    boolean unavailable = false;
+    try
+    {
+      List<String> tokens = requestAccessTokens(domainMap);
+      stats.tokensPerUser.record(tokens.size());
+      succeeded = true;
+      return tokens;
+    }
+    catch (MCFAuthorityUnavailableException e)
+    {
+      unavailable = true;
+      throw e;
+    }
+    finally
+    {
+      long elapsedMicros = (System.nanoTime() - startTime) / 1000L;
+      stats.authorityLatency.record(elapsedMicros);
+      if (!succeeded)
+        stats.authorityFailures.incrementAndGet();
+      // The breaker only cares whether the service answered, not whether it liked the request
+      if (circuitBreaker != null)
+      {
+        if (unavailable)
+          circuitBreaker.recordFailure();
+        else
+          circuitBreaker.recordSuccess(elapsedMicros / 1000L);
+      }
+    }
+  }
+
+  /** Get access tokens given a username, from the authority service, retrying on
+  * other authority service instances if the chosen one cannot answer */
+  protected List<String> requestAccessTokens(Map<String,String> domainMap)
+    throws MCFAuthorizerException
+  {
+    String pathAndQuery = buildUserACLsPath(domainMap);
+    MCFAuthorityClient client = acquireAuthorityClient();
+    if (client == null)
+      throw new IllegalStateException("Authority base URL required for finding access tokens for a user");
+    try
+    {
+      List<MCFAuthorityEndpoints.Endpoint> triedEndpoints = new ArrayList<MCFAuthorityEndpoints.Endpoint>();
+      RetryableAuthorityException lastException = null;
+      for (int attempt = 0; attempt <= authorityRetries; attempt++)
+      {
+        MCFAuthorityEndpoints.Endpoint endpoint = client.getEndpoints().select(triedEndpoints);
+        if (endpoint == null)
+          break;
+        triedEndpoints.add(endpoint);
+        if (attempt > 0)
+          stats.authorityRetries.incrementAndGet();
+        try
+        {
+          return requestAccessTokens(client,endpoint,pathAndQuery);
+        }
+        catch (RetryableAuthorityException e)
+        {
+          lastException = e;
+        }
+      }
+      throw lastException;
+    }
+    finally
+    {
+      client.release();
+    }
+  }
+
+  /** Build the path and query of the UserACLs request for a user */
+  protected static String buildUserACLsPath(Map<String,String> domainMap)
+    throws MCFAuthorizerException
+  {
+    try
+    {
+      StringBuilder urlBuffer = new StringBuilder("/UserACLs");
+      int i = 0;
+      for (String domain : domainMap.keySet())
+      {
+        if (i == 0)
+          urlBuffer.append("?");
+        else
+          urlBuffer.append("&");
+        // For backwards compatibility, handle the singleton case specially
+        if (domainMap.size() == 1 && domain.length() == 0)
+        {
+          urlBuffer.append("username=").append(URLEncoder.encode(domainMap.get(domain),"utf-8"));
+        }
+        else
+        {
+          urlBuffer.append("username_").append(Integer.toString(i)).append("=").append(URLEncoder.encode(domainMap.get(domain),"utf-8")).append("&")
+            .append("domain_").append(Integer.toString(i)).append("=").append(URLEncoder.encode(domain,"utf-8"));
+        }
+        i++;
+      }
+      return urlBuffer.toString();
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new MCFAuthorizerException("Unsupported encoding: "+e.getMessage(),e);
+    }
+  }
+
+  /** Get access tokens from one authority service instance.
+  *@throws RetryableAuthorityException if the instance could not answer, so another one may be tried.
+  */
+  protected List<String> requestAccessTokens(MCFAuthorityClient client, MCFAuthorityEndpoints.Endpoint endpoint, String pathAndQuery)
+    throws MCFAuthorizerException
+  {
+    MCFAuthorityEndpoints endpoints = client.getEndpoints();
+    endpoint.begin();
+    try
+    {
+      HttpGet method = new HttpGet(endpoint.getBaseURL()+pathAndQuery);
+      if (authorityCompression)
+        method.setHeader("Accept-Encoding","gzip");
+      try
+      {
+        HttpResponse httpResponse = client.getHttpClient().execute(method);
+        int rval = httpResponse.getStatusLine().getStatusCode();
+        stats.recordAuthorityStatus(rval);
+        HttpEntity entity = httpResponse.getEntity();
+        boolean gzipped = isGzipped(entity);
+        if (rval != 200)
+        {
+          String response = EntityUtils.toString(gzipped?new GzipDecompressingEntity(entity):entity,"utf-8");
+          String message = "Couldn't fetch user's access tokens from ManifoldCF authority service: "+Integer.toString(rval)+"; "+response;
+          if (rval >= 500)
+          {
+            endpoints.recordFailure(endpoint,message);
+            throw new RetryableAuthorityException(message);
           }
+          // The instance is working; it is the request it didn't like
+          endpoints.recordSuccess(endpoint);
+          throw new MCFAuthorizerException(message);
+        }
+        Charset charset = responseCharset(entity);
+        // Count the bytes as they came over the wire
+        CountingInputStream is = new CountingInputStream(entity.getContent());
+        try
+        {
+          // Read the tokens, one line at a time.  If any authorities are down, we have no current way to note that, but someday we will.
+          InputStream content = gzipped?new GZIPInputStream(is):is;
+          List<String> tokenList = new MCFUserACLsParser(charset,tokenDictionary,authorityStatusLogger).parse(content);
+          endpoints.recordSuccess(endpoint);
+          return tokenList;
         }
         finally
         {
           is.close();
+          stats.authorityBytesRead.addAndGet(is.getCount());
         }
       }
       finally
@@ -344,7 +1536,170 @@ public class MCFAuthorizer
     }
     catch (IOException e)
     {
-      throw new MCFAuthorizerException("IO exception: "+e.getMessage(),e);
+      if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException)
+        stats.authorityTimeouts.incrementAndGet();
+      else
+        stats.authorityIOExceptions.incrementAndGet();
+      endpoints.recordFailure(endpoint,e.getMessage());
+      throw new RetryableAuthorityException("IO exception: "+e.getMessage(),e);
+    }
+    finally
+    {
+      endpoint.end();
+    }
+  }
+
+  /** Check whether a response body is gzipped.
+  */
+  protected static boolean isGzipped(HttpEntity entity)
+  {
+    Header contentEncoding = entity.getContentEncoding();
+    return contentEncoding != null && contentEncoding.getValue() != null && contentEncoding.getValue().trim().equalsIgnoreCase("gzip");
+  }
+
+  /** Get the character set of a response body, which defaults to UTF-8.
+  */
+  protected static Charset responseCharset(HttpEntity entity)
+    throws MCFAuthorizerException
+  {
+    String charSet = EntityUtils.getContentCharSet(entity);
+    if (charSet == null)
+      return Charset.forName("utf-8");
+    try
+    {
+      return Charset.forName(charSet);
+    }
+    catch (IllegalArgumentException e)
+    {
+      throw new MCFAuthorizerException("Unsupported encoding: "+charSet,e);
+    }
+  }
+
+  /** Check whether each authority service instance is up, ejecting or readmitting it accordingly.
+  */
+  protected void checkEndpoints()
+  {
+    MCFAuthorityClient client = acquireAuthorityClient();
+    if (client == null)
+      return;
+    try
+    {
+      MCFAuthorityEndpoints endpoints = client.getEndpoints();
+      // Health checks only matter when there is another endpoint to fail over to
+      if (endpoints.size() <= 1)
+        return;
+      for (MCFAuthorityEndpoints.Endpoint endpoint : endpoints.getEndpoints())
+      {
+        HttpGet method = new HttpGet(endpoint.getBaseURL()+healthCheckPath);
+        // Don't let a hung instance hold up the checks of the others
+        int timeout = healthCheckTimeout(client.getConnectionTimeout(),client.getSocketTimeout());
+        method.getParams().setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT,timeout);
+        method.getParams().setIntParameter(CoreConnectionPNames.SO_TIMEOUT,timeout);
+        try
+        {
+          HttpResponse httpResponse = client.getHttpClient().execute(method);
+          int rval = httpResponse.getStatusLine().getStatusCode();
+          EntityUtils.consume(httpResponse.getEntity());
+          // Any answer short of a server error means the instance is up
+          if (rval < 500)
+            endpoints.recordSuccess(endpoint);
+          else
+            endpoints.recordFailure(endpoint,"Health check returned "+Integer.toString(rval));
+        }
+        catch (IOException e)
+        {
+          endpoints.recordFailure(endpoint,"Health check failed: "+e.getMessage());
+        }
+        catch (RuntimeException e)
+        {
+          // Keep the checks scheduled
+          LOG.warn("Unexpected error checking ManifoldCF authority service endpoint "+endpoint.getBaseURL(),e);
+        }
+        finally
+        {
+          method.abort();
+        }
+      }
+    }
+    finally
+    {
+      client.release();
+    }
+  }
+
+  /** Choose the timeout of health checks, which is never infinite.
+  *@param connectionTimeout is the configured connection timeout, or 0 if it is infinite.
+  *@param socketTimeout is the configured socket timeout, or 0 if it is infinite.
+  *@return the shorter of the finite timeouts, or DEFAULT_HEALTH_CHECK_TIMEOUT if both are infinite.
+  */
+  protected static int healthCheckTimeout(int connectionTimeout, int socketTimeout)
+  {
+    if (connectionTimeout <= 0)
+      return (socketTimeout <= 0)?DEFAULT_HEALTH_CHECK_TIMEOUT:socketTimeout;
+    if (socketTimeout <= 0)
+      return connectionTimeout;
+    return Math.min(connectionTimeout,socketTimeout);
+  }
+
+  /** Thrown when an authority service instance could not answer, so that the
+  * request may be retried on another instance */
+  protected static class RetryableAuthorityException extends MCFAuthorityUnavailableException
+  {
+    private static final long serialVersionUID = 1L;
+
+    public RetryableAuthorityException(String message)
+    {
+      super(message);
+    }
+
+    public RetryableAuthorityException(String message, Throwable cause)
+    {
+      super(message,cause);
+    }
+  }
+
+  /** Input stream that counts the bytes read through it */
+  protected static class CountingInputStream extends FilterInputStream
+  {
+    protected long count = 0L;
+
+    public CountingInputStream(InputStream in)
+    {
+      super(in);
+    }
+
+    public long getCount()
+    {
+      return count;
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      int rval = super.read();
+      if (rval != -1)
+        count++;
+      return rval;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      int rval = super.read(b,off,len);
+      if (rval > 0)
+        count += rval;
+      return rval;
+    }
+
+    @Override
+    public long skip(long n)
+      throws IOException
+    {
+      long rval = super.skip(n);
+      count += rval;
+      return rval;
     }
   }
 
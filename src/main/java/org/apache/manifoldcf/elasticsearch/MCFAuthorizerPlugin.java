@@ -18,10 +18,16 @@
 */
 package org.apache.manifoldcf.elasticsearch;
 
+import java.util.*;
+
+import org.elasticsearch.cluster.settings.ClusterDynamicSettingsModule;
+import org.elasticsearch.cluster.settings.Validator;
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 
+import org.elasticsearch.indices.query.IndicesQueriesModule;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 
@@ -44,10 +50,41 @@ public class MCFAuthorizerPlugin extends AbstractPlugin
     return "Plugin to connect elasticsearch with ManifoldCF";
   }
 
+  @Override
+  public Collection<Class<? extends Module>> modules() {
+    Collection<Class<? extends Module>> modules = new ArrayList<Class<? extends Module>>();
+    modules.add(MCFAuthorizerModule.class);
+    return modules;
+  }
+
+  // The plugin API declares services() with the raw LifecycleComponent type
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Collection<Class<? extends LifecycleComponent>> services() {
+    Collection<Class<? extends LifecycleComponent>> services = new ArrayList<Class<? extends LifecycleComponent>>();
+    services.add(MCFAuthorizerService.class);
+    return services;
+  }
+
+  // IndicesQueriesModule.addFilter() only takes Class<FilterParser>, so the parser class is passed raw below
+  @SuppressWarnings("unchecked")
   @Override
   public void processModule(Module module) {
     if (module instanceof RestModule) {
       ((RestModule) module).addRestAction(MCFAuthorizerRestSearchAction.class);
+      ((RestModule) module).addRestAction(MCFAuthorizerRestMultiSearchAction.class);
+      ((RestModule) module).addRestAction(MCFAuthorizerRestCountAction.class);
+      ((RestModule) module).addRestAction(MCFAuthorizerRestStatsAction.class);
+    }
+    if (module instanceof IndicesQueriesModule) {
+      ((IndicesQueriesModule) module).addFilter((Class) MCFACLFilterParser.class);
+    }
+    if (module instanceof ClusterDynamicSettingsModule) {
+      // Applied by MCFAuthorizerService; lists are stored as one setting per element
+      ((ClusterDynamicSettingsModule) module).addDynamicSettings("mcf.authority_service_base_url", "mcf.authority_service_base_url.*");
+      ((ClusterDynamicSettingsModule) module).addDynamicSetting("mcf.http.connection_timeout", Validator.NON_NEGATIVE_INTEGER);
+      ((ClusterDynamicSettingsModule) module).addDynamicSetting("mcf.http.socket_timeout", Validator.NON_NEGATIVE_INTEGER);
+      ((ClusterDynamicSettingsModule) module).addDynamicSetting("mcf.http.connection_pool_size", Validator.POSITIVE_INTEGER);
     }
   }
 }
@@ -0,0 +1,163 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.count.CountRequest;
+import org.elasticsearch.action.count.CountResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.QuerySourceBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.count.RestCountAction;
+import org.elasticsearch.rest.action.support.RestActions;
+import org.elasticsearch.rest.action.support.RestBuilderListener;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.elasticsearch.action.count.CountRequest.DEFAULT_MIN_SCORE;
+import static org.elasticsearch.search.internal.SearchContext.DEFAULT_TERMINATE_AFTER;
+
+/** This REST action secures count requests that have a "u" parameter.  Counts
+* neither score nor fetch documents, so they are the cheapest way to get the
+* number of documents a user may see.
+*/
+public class MCFAuthorizerRestCountAction extends RestCountAction {
+
+  protected final MCFAuthorizer authorizer;
+  /** Bounded executor on which secured requests wait for the authority service,
+  * so that the node's HTTP worker threads never do. */
+  protected final ExecutorService authorizationExecutor;
+
+  @Inject
+  public MCFAuthorizerRestCountAction(Settings settings, final RestController restController, Client client, MCFAuthorizerService authorizerService) {
+    super(settings,restController,client);
+    authorizer = authorizerService.authorizer();
+    authorizationExecutor = authorizerService.authorizationExecutor();
+  }
+
+  @Override
+  public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) {
+    if(request.param("u")==null) {
+      // Nothing to authorize, so there is no reason to leave this thread
+      super.handleRequest(request, channel, client);
+      return;
+    }
+
+    // The request content may not outlive this call, so take a copy for the authorizer thread
+    final BytesReference content;
+    if(request.hasContent() || request.hasParam("source")) {
+      content = RestActions.getRestContent(request).copyBytesArray();
+    } else {
+      content = null;
+    }
+
+    // Other nodes' answers are awaited without holding an authorizer thread
+    Map<String,String> domainMap = MCFAuthorizer.parseUserNamesAndDomains(request.param("u").split(","));
+    authorizer.prefetchAccessTokens(Collections.singletonList(domainMap), new Runnable() {
+      @Override
+      public void run() {
+        countAuthorized(request, channel, client, content);
+      }
+    });
+  }
+
+  protected void countAuthorized(final RestRequest request, final RestChannel channel, final Client client, final BytesReference content) {
+    try {
+      authorizationExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          CountRequest countRequest;
+          try {
+            countRequest = parseCountRequestMCF(request, content);
+          } catch (Throwable t) {
+            sendFailure(channel, t);
+            return;
+          }
+          final int terminateAfter = countRequest.terminateAfter();
+          client.count(countRequest, new RestBuilderListener<CountResponse>(channel) {
+            @Override
+            public RestResponse buildResponse(CountResponse response, XContentBuilder builder) throws Exception {
+              builder.startObject();
+              if (terminateAfter != DEFAULT_TERMINATE_AFTER) {
+                builder.field("terminated_early", response.terminatedEarly());
+              }
+              builder.field("count", response.getCount());
+              RestActions.buildBroadcastShardsHeader(builder, response);
+              builder.endObject();
+              return new BytesRestResponse(response.status(), builder);
+            }
+          });
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      sendFailure(channel, new EsRejectedExecutionException("Too many secured requests waiting for the ManifoldCF authority service"));
+    }
+  }
+
+  protected void sendFailure(RestChannel channel, Throwable t) {
+    try {
+      channel.sendResponse(new BytesRestResponse(channel, t));
+    } catch (IOException e) {
+      logger.error("Failed to send failure response", e);
+    }
+  }
+
+  protected CountRequest parseCountRequestMCF(final RestRequest request, BytesReference content) throws MCFAuthorizerException {
+    CountRequest countRequest = new CountRequest(Strings.splitStringByCommaToArray(request.param("index")));
+    countRequest.indicesOptions(IndicesOptions.fromRequest(request, countRequest.indicesOptions()));
+    countRequest.listenerThreaded(false);
+
+    if(content == null) {
+      // Count bodies are {"query":{...}}, so a query from the parameters, or none, is secured the same way
+      QuerySourceBuilder querySourceBuilder = RestActions.parseQuerySource(request);
+      if(querySourceBuilder != null) {
+        content = querySourceBuilder.buildAsBytes(XContentType.JSON);
+      } else {
+        content = new BytesArray("{}");
+      }
+    }
+    FilterBuilder authorizationFilter = authorizer.buildAuthorizationFilter(request.param("u").split(","));
+    long rewriteStartTime = System.nanoTime();
+    countRequest.source(MCFSearchSourceRewriter.rewriteSearchSource(content, authorizationFilter), false);
+    authorizer.getStats().rewriteTime.record((System.nanoTime() - rewriteStartTime) / 1000L);
+
+    countRequest.routing(request.param("routing"));
+    countRequest.minScore(request.paramAsFloat("min_score", DEFAULT_MIN_SCORE));
+    countRequest.types(Strings.splitStringByCommaToArray(request.param("type")));
+    countRequest.preference(request.param("preference"));
+    int terminateAfter = request.paramAsInt("terminate_after", DEFAULT_TERMINATE_AFTER);
+    if(terminateAfter < 0) {
+      throw new ElasticsearchIllegalArgumentException("terminateAfter must be > 0");
+    } else if(terminateAfter > 0) {
+      countRequest.terminateAfter(terminateAfter);
+    }
+    return countRequest;
+  }
+}
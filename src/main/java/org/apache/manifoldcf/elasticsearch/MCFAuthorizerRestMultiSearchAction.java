@@ -0,0 +1,338 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.search.RestMultiSearchAction;
+import org.elasticsearch.rest.action.support.RestActions;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This REST action secures multi-search requests.  The user may be given for
+* the whole request with the "u" parameter, or for a single search with a "u"
+* field in its header line.  A header may not name another user than the "u"
+* parameter, so that a request can't search as someone else.  Each distinct user's
+* authorization filter is built once per request and shared by all of that
+* user's searches, and the secured searches are sent on as one multi-search.
+* Searches without a user are not filtered, like plain searches without "u".
+*/
+public class MCFAuthorizerRestMultiSearchAction extends RestMultiSearchAction {
+
+  protected final MCFAuthorizer authorizer;
+  /** Bounded executor on which secured requests wait for the authority service,
+  * so that the node's HTTP worker threads never do. */
+  protected final ExecutorService authorizationExecutor;
+  protected final boolean allowExplicitIndex;
+
+  @Inject
+  public MCFAuthorizerRestMultiSearchAction(Settings settings, final RestController restController, Client client, MCFAuthorizerService authorizerService) {
+    super(settings,restController,client);
+    authorizer = authorizerService.authorizer();
+    authorizationExecutor = authorizerService.authorizationExecutor();
+    allowExplicitIndex = settings.getAsBoolean("rest.action.multi.allow_explicit_index", true);
+  }
+
+  @Override
+  public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) throws Exception {
+    // The request content may not outlive this call, so split it into copies for the authorizer thread
+    final Searches searches;
+    try {
+      searches = splitMultiSearchSource(RestActions.getRestContent(request).copyBytesArray(), request.param("u"));
+    } catch (Throwable t) {
+      sendFailure(channel, t);
+      return;
+    }
+    List<Map<String,String>> domainMaps = searches.domainMaps();
+    if (domainMaps.isEmpty()) {
+      // Nothing to authorize, so there is no reason to leave this thread
+      MultiSearchRequest multiSearchRequest;
+      try {
+        multiSearchRequest = parseMultiSearchRequestMCF(request, searches);
+      } catch (Throwable t) {
+        sendFailure(channel, t);
+        return;
+      }
+      multiSearchRequest.listenerThreaded(false);
+      client.multiSearch(multiSearchRequest, new RestToXContentListener<MultiSearchResponse>(channel));
+      return;
+    }
+    // Other nodes' answers are awaited without holding an authorizer thread
+    authorizer.prefetchAccessTokens(domainMaps, new Runnable() {
+      @Override
+      public void run() {
+        multiSearchAuthorized(request, channel, client, searches);
+      }
+    });
+  }
+
+  protected void multiSearchAuthorized(final RestRequest request, final RestChannel channel, final Client client, final Searches searches) {
+    try {
+      authorizationExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          MultiSearchRequest multiSearchRequest;
+          try {
+            multiSearchRequest = parseMultiSearchRequestMCF(request, searches);
+          } catch (Throwable t) {
+            sendFailure(channel, t);
+            return;
+          }
+          multiSearchRequest.listenerThreaded(false);
+          client.multiSearch(multiSearchRequest, new RestToXContentListener<MultiSearchResponse>(channel));
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      sendFailure(channel, new EsRejectedExecutionException("Too many secured requests waiting for the ManifoldCF authority service"));
+    }
+  }
+
+  protected void sendFailure(RestChannel channel, Throwable t) {
+    try {
+      channel.sendResponse(new BytesRestResponse(channel, t));
+    } catch (IOException e) {
+      logger.error("Failed to send failure response", e);
+    }
+  }
+
+  protected MultiSearchRequest parseMultiSearchRequestMCF(final RestRequest request, final BytesReference content) throws MCFAuthorizerException {
+    return parseMultiSearchRequestMCF(request, splitMultiSearchSource(content, request.param("u")));
+  }
+
+  protected MultiSearchRequest parseMultiSearchRequestMCF(final RestRequest request, final Searches searches) throws MCFAuthorizerException {
+    MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+    String[] indices = Strings.splitStringByCommaToArray(request.param("index"));
+    String[] types = Strings.splitStringByCommaToArray(request.param("type"));
+    IndicesOptions indicesOptions = IndicesOptions.fromRequest(request, multiSearchRequest.indicesOptions());
+    boolean isTemplateRequest = request.path().endsWith("/template");
+    BytesReference securedContent = secureMultiSearchSource(searches, isTemplateRequest);
+    try {
+      multiSearchRequest.add(securedContent, isTemplateRequest, indices, types, request.param("search_type"), request.param("routing"), indicesOptions, allowExplicitIndex);
+    } catch (Exception e) {
+      throw new MCFAuthorizerException("Invalid multi-search request: "+e.getMessage(), e);
+    }
+    return multiSearchRequest;
+  }
+
+  /** The searches of a multi-search body, with the users taken out of their headers.
+  */
+  protected static class Searches {
+    public final List<BytesReference> headers = new ArrayList<BytesReference>();
+    public final List<BytesReference> bodies = new ArrayList<BytesReference>();
+    /** The user of each search, or null if the search is not secured */
+    public final List<String> users = new ArrayList<String>();
+    /** The size of the body the searches were split from */
+    public int length = 0;
+
+    /** Get the identities of the distinct users.
+    */
+    public List<Map<String,String>> domainMaps() {
+      List<Map<String,String>> domainMaps = new ArrayList<Map<String,String>>();
+      for (String user : new LinkedHashSet<String>(users)) {
+        if (user != null)
+          domainMaps.add(MCFAuthorizer.parseUserNamesAndDomains(user.split(",")));
+      }
+      return domainMaps;
+    }
+  }
+
+  /** Split a multi-search body, which is made of pairs of lines: a header line,
+  * which may be empty, and a search body line.
+  *@param defaultUser is the user for searches whose header has no "u" field, or null.
+  *@return the searches, with the "u" fields removed from the headers.
+  */
+  protected static Searches splitMultiSearchSource(BytesReference content, String defaultUser) throws MCFAuthorizerException {
+    BytesArray data = content.toBytesArray();
+    byte[] bytes = data.array();
+    int end = data.arrayOffset() + data.length();
+    int position = data.arrayOffset();
+    Searches searches = new Searches();
+    searches.length = data.length();
+    List<BytesReference> headers = searches.headers;
+    List<BytesReference> bodies = searches.bodies;
+    List<String> users = searches.users;
+    try {
+      while (position < end) {
+        int headerEnd = nextLine(bytes, position, end);
+        int bodyStart = Math.min(headerEnd + 1, end);
+        int bodyEnd = nextLine(bytes, bodyStart, end);
+        BytesReference header = new BytesArray(bytes, position, headerEnd - position);
+        BytesReference body = new BytesArray(bytes, bodyStart, bodyEnd - bodyStart);
+        position = bodyEnd + 1;
+        if (isBlank(header) && isBlank(body))
+          continue;
+
+        String[] user = new String[]{defaultUser};
+        BytesStreamOutput headerOut = new BytesStreamOutput(header.length());
+        copyHeader(header, headerOut, user);
+        headers.add(headerOut.bytes());
+        bodies.add(body);
+        users.add(user[0]);
+      }
+      return searches;
+    } catch (IOException e) {
+      throw new MCFAuthorizerException("JSON parser error: "+e.getMessage(), e);
+    }
+  }
+
+  /** Secure every search of a multi-search body.  The access tokens of all the
+  * users are resolved together before any search is rewritten.
+  *@param defaultUser is the user for searches whose header has no "u" field, or null.
+  *@return the body with the "u" fields removed from the headers and the searches rewritten.
+  */
+  protected BytesReference secureMultiSearchSource(BytesReference content, String defaultUser, boolean isTemplateRequest) throws MCFAuthorizerException {
+    return secureMultiSearchSource(splitMultiSearchSource(content, defaultUser), isTemplateRequest);
+  }
+
+  protected BytesReference secureMultiSearchSource(Searches searches, boolean isTemplateRequest) throws MCFAuthorizerException {
+    List<BytesReference> headers = searches.headers;
+    List<BytesReference> bodies = searches.bodies;
+    List<String> users = searches.users;
+    try {
+      Map<String,FilterBuilder> userFilters = buildUserFilters(users);
+
+      BytesStreamOutput out = new BytesStreamOutput(searches.length + 256);
+      for (int i = 0; i < bodies.size(); i++) {
+        headers.get(i).writeTo(out);
+        out.writeByte((byte)'\n');
+        BytesReference body = bodies.get(i);
+        String user = users.get(i);
+        if (user != null) {
+          FilterBuilder authorizationFilter = userFilters.get(user);
+          long rewriteStartTime = System.nanoTime();
+          if (isTemplateRequest)
+            body = MCFSearchSourceRewriter.rewriteTemplateSource(body, authorizationFilter);
+          else
+            body = MCFSearchSourceRewriter.rewriteSearchSource(body, authorizationFilter);
+          authorizer.getStats().rewriteTime.record((System.nanoTime() - rewriteStartTime) / 1000L);
+        }
+        body.writeTo(out);
+        out.writeByte((byte)'\n');
+      }
+      return out.bytes();
+    } catch (IOException e) {
+      throw new MCFAuthorizerException("JSON parser error: "+e.getMessage(), e);
+    }
+  }
+
+  /** Build the filter of each distinct user, resolving all their access tokens in one batch.
+  *@param users are the users of the searches, with null for searches that are not secured.
+  *@return the filters, keyed by user.
+  */
+  protected Map<String,FilterBuilder> buildUserFilters(List<String> users) throws MCFAuthorizerException {
+    Map<String,FilterBuilder> userFilters = new HashMap<String,FilterBuilder>();
+    List<String> distinctUsers = new ArrayList<String>(new LinkedHashSet<String>(users));
+    distinctUsers.remove(null);
+    if (distinctUsers.isEmpty())
+      return userFilters;
+    if (distinctUsers.size() == 1) {
+      // Nothing to batch
+      String user = distinctUsers.get(0);
+      userFilters.put(user, authorizer.buildAuthorizationFilter(user.split(",")));
+      return userFilters;
+    }
+    List<Map<String,String>> domainMaps = new ArrayList<Map<String,String>>(distinctUsers.size());
+    for (String user : distinctUsers) {
+      domainMaps.add(MCFAuthorizer.parseUserNamesAndDomains(user.split(",")));
+    }
+    List<MCFUserTokens> userTokens = authorizer.getAccessTokens(domainMaps, Integer.MAX_VALUE);
+    for (int i = 0; i < distinctUsers.size(); i++) {
+      MCFUserTokens result = userTokens.get(i);
+      // One search of the request can't be failed on its own, so the whole request fails
+      if (!result.isResolved())
+        throw result.error;
+      userFilters.put(distinctUsers.get(i), authorizer.buildAuthorizationFilter(result.tokens));
+    }
+    return userFilters;
+  }
+
+  /** Copy a header line without its "u" field.
+  *@param user holds the user given by the "u" parameter, or null, and receives the
+  * value of the "u" field, if there is one.
+  */
+  protected static void copyHeader(BytesReference header, OutputStream out, String[] user) throws IOException, MCFAuthorizerException {
+    if (isBlank(header))
+      return;
+    BytesArray data = header.toBytesArray();
+    JsonParser parser = MCFSearchSourceRewriter.JSON_FACTORY.createParser(data.array(), data.arrayOffset(), data.length());
+    try {
+      JsonGenerator generator = MCFSearchSourceRewriter.JSON_FACTORY.createGenerator(out);
+      try {
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+          throw new MCFAuthorizerException("Multi-search header must be a JSON object");
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String fieldName = parser.getCurrentName();
+          JsonToken valueToken = parser.nextToken();
+          if ("u".equals(fieldName)) {
+            if (valueToken != JsonToken.VALUE_STRING)
+              throw new MCFAuthorizerException("Multi-search header field [u] must be a string");
+            String headerUser = parser.getText();
+            // Otherwise a caller restricted to the "u" parameter could search as anyone
+            if (user[0] != null && !user[0].equals(headerUser))
+              throw new ElasticsearchIllegalArgumentException("Multi-search header field [u] must match the [u] parameter");
+            user[0] = headerUser;
+          } else {
+            generator.writeFieldName(fieldName);
+            generator.copyCurrentStructure(parser);
+          }
+        }
+        generator.writeEndObject();
+      } finally {
+        generator.close();
+      }
+    } finally {
+      parser.close();
+    }
+  }
+
+  protected static int nextLine(byte[] bytes, int from, int end) {
+    for (int i = from; i < end; i++) {
+      if (bytes[i] == '\n')
+        return i;
+    }
+    return end;
+  }
+
+  protected static boolean isBlank(BytesReference value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (!Character.isWhitespace((char)value.get(i)))
+        return false;
+    }
+    return true;
+  }
+}
@@ -19,19 +19,24 @@
 package org.apache.manifoldcf.elasticsearch;
 
 import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.*;
 import org.elasticsearch.rest.action.search.RestSearchAction;
+import org.elasticsearch.rest.action.support.RestBuilderListener;
 import org.elasticsearch.rest.action.support.RestStatusToXContentListener;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.*;
 import org.elasticsearch.rest.RestRequest;
@@ -44,26 +49,127 @@ import org.elasticsearch.search.suggest.SuggestBuilders;
 import org.elasticsearch.search.suggest.term.TermSuggestionBuilder;
 
 import java.io.*;
-
+import java.util.*;
+import java.util.concurrent.*;
+
+/** This REST action secures searches made with a "u" parameter.  The time each
+* phase of a secured search takes is recorded; it is returned in an "mcf_profile"
+* section and an X-MCF-Profile header when the "profile" parameter is true, and
+* searches slower than "mcf.slowlog.threshold" are logged to the
+* "index.search.slowlog.mcf" logger.
+*/
 public class MCFAuthorizerRestSearchAction extends RestSearchAction {
 
+  /** Response header holding the phase times, in microseconds */
+  public static final String PROFILE_HEADER = "X-MCF-Profile";
+
+  /** Logger for slow secured searches; a child of the search slow log, so that it goes where that goes by default */
+  protected static final ESLogger SLOW_LOG = Loggers.getLogger("index.search.slowlog.mcf");
+
   protected final MCFAuthorizer authorizer;
+  /** Bounded executor on which secured requests wait for the authority service,
+  * so that the node's HTTP worker threads never do. */
+  protected final ExecutorService authorizationExecutor;
+  /** Time in milliseconds above which secured searches are logged, or a negative value if none are */
+  protected final long slowLogThreshold;
   
   @Inject
-  public MCFAuthorizerRestSearchAction(Settings settings, final RestController restController, Client client) {
+  public MCFAuthorizerRestSearchAction(Settings settings, final RestController restController, Client client, MCFAuthorizerService authorizerService) {
     super(settings,restController,client);
-    final MCFConfigurationParameters conf = new MCFConfigurationParameters(settings);
-    authorizer = new MCFAuthorizer(conf);
+    authorizer = authorizerService.authorizer();
+    authorizationExecutor = authorizerService.authorizationExecutor();
+    slowLogThreshold = authorizerService.configuration().slowLogThreshold;
   }
 
   @Override
-  public void handleRequest(RestRequest request, RestChannel channel, Client client) {
-    SearchRequest searchRequest = parseSearchRequestMCF(request);
-    searchRequest.listenerThreaded(false);
-    client.search(searchRequest, new RestStatusToXContentListener(channel));
+  public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) {
+    if(request.param("u")==null) {
+      // Nothing to authorize, so there is no reason to leave this thread
+      SearchRequest searchRequest = parseSearchRequestMCF(request);
+      searchRequest.listenerThreaded(false);
+      client.search(searchRequest, new RestStatusToXContentListener(channel));
+      return;
+    }
+
+    // The request content may not outlive this call, so take a copy for the authorizer thread
+    final BytesReference content;
+    if(request.hasContent() || request.hasParam("source")) {
+      content = RestActions.getRestContent(request).copyBytesArray();
+    } else {
+      content = null;
+    }
+
+    final MCFRequestProfile profile = new MCFRequestProfile(request.param("u"));
+    // Other nodes' answers are awaited without holding an authorizer thread
+    authorizer.prefetchAccessTokens(Collections.singletonList(userDomainMap(request)), new Runnable() {
+      @Override
+      public void run() {
+        searchAuthorized(request, channel, client, content, profile);
+      }
+    });
+  }
+
+  protected void searchAuthorized(final RestRequest request, final RestChannel channel, final Client client, final BytesReference content,
+    final MCFRequestProfile profile) {
+    try {
+      authorizationExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          profile.dequeued();
+          SearchRequest searchRequest;
+          long parseStartTime = System.nanoTime();
+          try {
+            searchRequest = parseSearchRequestMCF(request, content, profile);
+          } catch (Throwable t) {
+            sendFailure(channel, t);
+            return;
+          }
+          profile.parsed(parseStartTime);
+          searchRequest.listenerThreaded(false);
+          client.search(searchRequest, new ProfiledSearchListener(channel, request, profile));
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      sendFailure(channel, new EsRejectedExecutionException("Too many secured requests waiting for the ManifoldCF authority service"));
+    }
+  }
+
+  /** Get the identity a secured search request is authorized as.
+  */
+  protected static Map<String,String> userDomainMap(final RestRequest request) {
+    if(request.param("q") == null && !(request.hasContent() || request.hasParam("source"))) {
+      // The whole parameter is one user name in the default domain
+      Map<String,String> domainMap = new HashMap<String,String>();
+      domainMap.put("", request.param("u"));
+      return domainMap;
+    }
+    return MCFAuthorizer.parseUserNamesAndDomains(request.param("u").split(","));
+  }
+
+  protected void sendFailure(RestChannel channel, Throwable t) {
+    try {
+      channel.sendResponse(new BytesRestResponse(channel, t));
+    } catch (IOException e) {
+      logger.error("Failed to send failure response", e);
+    }
   }
   
   protected SearchRequest parseSearchRequestMCF(final RestRequest request) throws MCFAuthorizerException {
+    BytesReference content = null;
+    if(request.hasContent() || request.hasParam("source")) {
+      content = RestActions.getRestContent(request);
+    }
+    return parseSearchRequestMCF(request, content);
+  }
+
+  protected SearchRequest parseSearchRequestMCF(final RestRequest request, final BytesReference content) throws MCFAuthorizerException {
+    return parseSearchRequestMCF(request, content, null);
+  }
+
+  /** Parse and secure a search request.
+  *@param profile receives the time spent in each phase, or is null.
+  */
+  protected SearchRequest parseSearchRequestMCF(final RestRequest request, final BytesReference content, final MCFRequestProfile profile) throws MCFAuthorizerException {
     SearchRequest searchRequest;
     if(request.param("u")!=null) {
       String[] authenticatedUserNamesAndDomains = request.param("u").split(",");
@@ -71,41 +177,33 @@ public class MCFAuthorizerRestSearchAction extends RestSearchAction {
       searchRequest = new SearchRequest(indices);
       boolean isTemplateRequest = request.path().endsWith("/template");
 
-      if(request.hasContent() || request.hasParam("source")) {
-        FilterBuilder authorizationFilter = authorizer.buildAuthorizationFilter(authenticatedUserNamesAndDomains);
-        FilteredQueryBuilder filteredQueryBuilder;
-
-        ObjectMapper objectMapper = new ObjectMapper();
-        ObjectNode modifiedJSON, innerJSON;
-        JsonNode requestJSON;
-
-        try {
-          requestJSON = objectMapper.readTree(RestActions.getRestContent(request).toBytes());
-          if (isTemplateRequest) {
-            modifiedJSON = (ObjectNode) requestJSON;
-            innerJSON = (ObjectNode)requestJSON.findValue("template");
-            filteredQueryBuilder = QueryBuilders.filteredQuery(QueryBuilders.wrapperQuery(innerJSON.findValue("query").toString()), authorizationFilter);
-            modifiedJSON.replace("template",innerJSON.set("query", objectMapper.readTree(filteredQueryBuilder.buildAsBytes().toBytes())));
-            searchRequest.templateSource(modifiedJSON.toString());
-          } else {
-            filteredQueryBuilder = QueryBuilders.filteredQuery(QueryBuilders.wrapperQuery(requestJSON.findValue("query").toString()), authorizationFilter);
-            modifiedJSON = (ObjectNode) requestJSON;
-            modifiedJSON.set("query", objectMapper.readTree(filteredQueryBuilder.buildAsBytes().toBytes()));
-            searchRequest.source(modifiedJSON.toString());
-          }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new MCFAuthorizerException("JSON parser error");
-          }
+      MCFSearchSourceRewriter.SourceInfo sourceInfo = new MCFSearchSourceRewriter.SourceInfo();
+      if(content != null) {
+        FilterBuilder authorizationFilter = authorizer.buildAuthorizationFilter(authenticatedUserNamesAndDomains, profile);
+        long rewriteStartTime = System.nanoTime();
+        if (isTemplateRequest) {
+          searchRequest.templateSource(MCFSearchSourceRewriter.rewriteTemplateSource(content, authorizationFilter), false);
+        } else {
+          searchRequest.source(MCFSearchSourceRewriter.rewriteSearchSource(content, authorizationFilter, sourceInfo), false);
+        }
+        long rewriteTime = MCFRequestProfile.elapsed(rewriteStartTime);
+        authorizer.getStats().rewriteTime.record(rewriteTime);
+        if (profile != null)
+          profile.rewriteTime += rewriteTime;
       }
 
-      searchRequest.extraSource(parseSearchSourceMCF(request));
+      searchRequest.extraSource(parseSearchSourceMCF(request, profile));
       searchRequest.searchType(request.param("search_type"));
       searchRequest.queryCache(request.paramAsBoolean("query_cache", (Boolean)null));
       String scroll = request.param("scroll");
       if(scroll != null) {
         searchRequest.scroll(new Scroll(TimeValue.parseTimeValue(scroll, (TimeValue)null)));
       }
+      // Searches for counts and aggregations only don't need a fetch phase, nor scores for sorting hits
+      int size = request.paramAsInt("size", sourceInfo.size);
+      if(size == 0 && request.param("search_type") == null && scroll == null) {
+        searchRequest.searchType(SearchType.COUNT);
+      }
 
       searchRequest.types(Strings.splitStringByCommaToArray(request.param("type")));
       searchRequest.routing(request.param("routing"));
@@ -119,11 +217,15 @@ public class MCFAuthorizerRestSearchAction extends RestSearchAction {
   }
 
   protected SearchSourceBuilder parseSearchSourceMCF(final RestRequest request) throws MCFAuthorizerException {
+    return parseSearchSourceMCF(request, null);
+  }
+
+  protected SearchSourceBuilder parseSearchSourceMCF(final RestRequest request, final MCFRequestProfile profile) throws MCFAuthorizerException {
     SearchSourceBuilder searchSourceBuilder = null;
     String queryString = request.param("q");
     if(queryString != null) {
       String[] authenticatedUserNamesAndDomains = request.param("u").split(",");
-      FilterBuilder authorizationFilter = authorizer.buildAuthorizationFilter(authenticatedUserNamesAndDomains);
+      FilterBuilder authorizationFilter = authorizer.buildAuthorizationFilter(authenticatedUserNamesAndDomains, profile);
       QueryStringQueryBuilder from = QueryBuilders.queryStringQuery(queryString);
       from.defaultField(request.param("df"));
       from.analyzer(request.param("analyzer"));
@@ -154,8 +256,13 @@ public class MCFAuthorizerRestSearchAction extends RestSearchAction {
           if(searchSourceBuilder == null) {
             searchSourceBuilder = new SearchSourceBuilder();
           }
-          FilterBuilder authorizationFilter = authorizer.buildAuthorizationFilter(request.param("u"));
-          searchSourceBuilder.query(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),authorizationFilter));
+          FilterBuilder authorizationFilter = authorizer.buildAuthorizationFilter(userDomainMap(request), profile);
+          if(request.paramAsInt("size", -1) == 0) {
+            // Nothing to score, so evaluate the filter alone
+            searchSourceBuilder.query(QueryBuilders.constantScoreQuery(authorizationFilter));
+          } else {
+            searchSourceBuilder.query(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),authorizationFilter));
+          }
         }
     }
 
@@ -340,4 +447,38 @@ public class MCFAuthorizerRestSearchAction extends RestSearchAction {
     return searchSourceBuilder;
   }
 
+  /** Sends a secured search's response, adding its profile if asked to, and logs it if it was slow.
+  */
+  protected class ProfiledSearchListener extends RestBuilderListener<SearchResponse> {
+
+    protected final RestRequest request;
+    protected final MCFRequestProfile profile;
+    protected final long searchStartTime = System.nanoTime();
+
+    public ProfiledSearchListener(RestChannel channel, RestRequest request, MCFRequestProfile profile) {
+      super(channel);
+      this.request = request;
+      this.profile = profile;
+    }
+
+    @Override
+    public RestResponse buildResponse(SearchResponse response, XContentBuilder builder) throws Exception {
+      profile.searched(searchStartTime);
+      boolean includeProfile = request.paramAsBoolean("profile", false);
+      builder.startObject();
+      response.toXContent(builder, request);
+      if (includeProfile) {
+        builder.startObject("mcf_profile");
+        profile.toXContent(builder, request);
+        builder.endObject();
+      }
+      builder.endObject();
+      RestResponse restResponse = new BytesRestResponse(response.status(), builder);
+      if (includeProfile)
+        restResponse.addHeader(PROFILE_HEADER, profile.toHeaderValue());
+      if (slowLogThreshold >= 0L && profile.getTotalTime() >= slowLogThreshold * 1000L)
+        SLOW_LOG.warn("{}", profile);
+      return restResponse;
+    }
+  }
 }
@@ -0,0 +1,56 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.action.support.RestBuilderListener;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/** This REST action reports the MCF authorizer statistics of every node of the
+* cluster, at GET /_mcf/stats.
+*/
+public class MCFAuthorizerRestStatsAction extends BaseRestHandler {
+
+  protected final MCFAuthorizerService authorizerService;
+
+  @Inject
+  public MCFAuthorizerRestStatsAction(Settings settings, RestController restController, Client client, MCFAuthorizerService authorizerService) {
+    super(settings,restController,client);
+    this.authorizerService = authorizerService;
+    restController.registerHandler(GET, "/_mcf/stats", this);
+  }
+
+  @Override
+  protected void handleRequest(final RestRequest request, final RestChannel channel, final Client client) {
+    authorizerService.nodesStats(new RestBuilderListener<MCFNodesStatsResponse>(channel) {
+      @Override
+      public RestResponse buildResponse(MCFNodesStatsResponse response, XContentBuilder builder) throws Exception {
+        builder.startObject();
+        response.toXContent(builder, request);
+        builder.endObject();
+        return new BytesRestResponse(RestStatus.OK, builder);
+      }
+    });
+  }
+}
@@ -0,0 +1,643 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.gateway.GatewayService;
+import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.elasticsearch.node.settings.NodeSettingsService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportService;
+
+/** This class is the node-level service of the MCF authorizer plugin.  It owns
+* the node's single MCFAuthorizer and the executor secured requests wait on,
+* so that every REST action of the node shares one authority connection pool,
+* one set of caches and one set of statistics.  It also answers statistics
+* requests from the other nodes of the cluster.
+*
+* Users are assigned to nodes by a consistent hash ring.  A node that needs a
+* user's access tokens it does not have asks the node owning the user, which
+* answers from its cache or is the one node that calls the authority service, so
+* that authority service traffic does not grow with the size of the cluster.
+*
+* When the node starts, the authorizer is warmed up in the background with the
+* configured users and the users that were most recently used before it stopped.
+*
+* The authority service base URLs, HTTP timeouts and connection pool size are
+* dynamic cluster settings.  When they are updated, the authorizer swaps in a new
+* HTTP client; the node configuration is used again once an update is removed.
+*/
+public class MCFAuthorizerService extends AbstractLifecycleComponent<MCFAuthorizerService>
+{
+  /** Transport action returning a node's statistics */
+  public static final String NODE_STATS_ACTION = "cluster:monitor/mcf/stats";
+  /** Transport action returning a user's access tokens from the node owning the user */
+  public static final String TOKEN_LOOKUP_ACTION = "internal:mcf/tokens/lookup";
+
+  protected final ClusterService clusterService;
+  protected final TransportService transportService;
+  protected final Client client;
+  protected final NodeSettingsService nodeSettingsService;
+  protected final MCFAuthorizer authorizer;
+  /** Bounded executor on which secured requests wait for the authority service,
+  * so that the node's HTTP worker threads never do. */
+  protected final ThreadPoolExecutor authorizationExecutor;
+  protected final MCFCacheWarmer warmer;
+  protected final MCFConfigurationParameters configuration;
+  /** Per-segment token sets shared by every mcf_acl filter of the node */
+  protected final MCFACLBitSetCache aclBitSetCache;
+  /** The access tokens saved on disk, or null if they aren't */
+  protected final MCFDiskTokenCache diskCache;
+  /** The thread warming the authorizer up, if it is running */
+  protected Thread warmupThread = null;
+  /** Where token sets are kept for terms lookup filters, or null if they aren't used */
+  protected final IndexTokenSetStore tokenSetStore;
+  /** Applies updates of the dynamic cluster settings to the authorizer */
+  protected final ApplySettings applySettings = new ApplySettings();
+
+  @Inject
+  public MCFAuthorizerService(Settings settings, ClusterService clusterService, TransportService transportService, Client client, Environment environment,
+    NodeSettingsService nodeSettingsService)
+  {
+    super(settings);
+    this.clusterService = clusterService;
+    this.transportService = transportService;
+    this.client = client;
+    this.nodeSettingsService = nodeSettingsService;
+    final MCFConfigurationParameters conf = new MCFConfigurationParameters(settings);
+    configuration = conf;
+    aclBitSetCache = new MCFACLBitSetCache(conf.aclCacheSize);
+    authorizer = new MCFAuthorizer(conf);
+    authorizationExecutor = new ThreadPoolExecutor(conf.authorizerThreads, conf.authorizerThreads,
+      60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(conf.authorizerQueueSize),
+      EsExecutors.daemonThreadFactory(settings, "mcf_authorizer"));
+    transportService.registerHandler(NODE_STATS_ACTION, new NodeStatsRequestHandler());
+    transportService.registerHandler(TOKEN_LOOKUP_ACTION, new TokenLookupRequestHandler());
+    if (conf.peerEnabled)
+    {
+      // Other nodes' answers are handed over through the token cache
+      if (authorizer.getTokenCache() == null)
+        logger.warn("mcf.peer.enabled has no effect unless the token cache is enabled with mcf.cache.max_entries");
+      else
+        authorizer.setPeerLookup(new PeerTokenLookup(conf.peerTimeout, conf.peerVirtualNodes));
+    }
+    // Only a node that may build terms lookup filters needs the token set index
+    if (MCFAuthorizer.FILTER_SHAPE_LOOKUP.equals(conf.filterShape)
+      || (MCFAuthorizer.FILTER_SHAPE_ADAPTIVE.equals(conf.filterShape) && conf.filterLookupThreshold > 0))
+    {
+      tokenSetStore = new IndexTokenSetStore(conf.filterLookupIndex);
+      authorizer.setTokenSetStore(tokenSetStore);
+    }
+    else
+      tokenSetStore = null;
+    File hotSetFile = null;
+    if (conf.warmupHotSetFile != null)
+    {
+      // Relative paths are relative to the node's first data directory
+      hotSetFile = new File(conf.warmupHotSetFile);
+      if (!hotSetFile.isAbsolute())
+        hotSetFile = new File(environment.dataFiles()[0], conf.warmupHotSetFile);
+    }
+    if (conf.cacheDiskFile != null)
+    {
+      File diskCacheFile = new File(conf.cacheDiskFile);
+      if (!diskCacheFile.isAbsolute())
+        diskCacheFile = new File(environment.dataFiles()[0], conf.cacheDiskFile);
+      diskCache = new MCFDiskTokenCache(diskCacheFile, conf.cacheDiskCompactionInterval);
+      authorizer.setDiskCache(diskCache);
+    }
+    else
+      diskCache = null;
+    warmer = new MCFCacheWarmer(authorizer, client, conf, hotSetFile);
+    nodeSettingsService.addListener(applySettings);
+  }
+
+  /** Get the node's authorizer.
+  */
+  public MCFAuthorizer authorizer()
+  {
+    return authorizer;
+  }
+
+  /** Get the node's configuration.
+  */
+  public MCFConfigurationParameters configuration()
+  {
+    return configuration;
+  }
+
+  /** Get the per-segment token sets used by mcf_acl filters.
+  */
+  public MCFACLBitSetCache aclBitSetCache()
+  {
+    return aclBitSetCache;
+  }
+
+  /** Get the executor secured requests should be authorized on.
+  */
+  public ExecutorService authorizationExecutor()
+  {
+    return authorizationExecutor;
+  }
+
+  @Override
+  protected void doStart()
+  {
+    // The token set index is created once the node has joined the cluster
+    if (tokenSetStore != null)
+      clusterService.add(tokenSetStore);
+    // Searches are served while warming up, so don't hold the node's start up
+    warmupThread = EsExecutors.daemonThreadFactory(settings, "mcf_warmup").newThread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          // Users found on disk needn't be fetched again
+          if (diskCache != null)
+            diskCache.load();
+          warmer.warmUp();
+        }
+      });
+    warmupThread.start();
+  }
+
+  @Override
+  protected void doStop()
+  {
+    if (tokenSetStore != null)
+      clusterService.remove(tokenSetStore);
+    if (warmupThread != null)
+    {
+      warmupThread.interrupt();
+      warmupThread = null;
+    }
+    warmer.saveHotSet();
+  }
+
+  @Override
+  protected void doClose()
+  {
+    nodeSettingsService.removeListener(applySettings);
+    transportService.removeHandler(NODE_STATS_ACTION);
+    transportService.removeHandler(TOKEN_LOOKUP_ACTION);
+    authorizer.setPeerLookup(null);
+    authorizer.setTokenSetStore(null);
+    authorizer.setDiskCache(null);
+    if (diskCache != null)
+      diskCache.close();
+    authorizationExecutor.shutdown();
+    authorizer.shutdown();
+  }
+
+  /** Render this node's statistics.
+  */
+  public MCFNodeStatsResponse localNodeStats()
+    throws IOException
+  {
+    XContentBuilder builder = XContentFactory.jsonBuilder();
+    builder.startObject();
+    builder.startObject("executor");
+    builder.field("threads",authorizationExecutor.getPoolSize());
+    builder.field("active",authorizationExecutor.getActiveCount());
+    builder.field("queue",authorizationExecutor.getQueue().size());
+    builder.field("completed",authorizationExecutor.getCompletedTaskCount());
+    builder.endObject();
+    builder.field("token_cache_size",authorizer.getTokenCacheSize());
+    builder.field("filter_cache_size",authorizer.getFilterCacheSize());
+    if (authorizer.getEndpoints() != null)
+      authorizer.getEndpoints().toXContent(builder,ToXContent.EMPTY_PARAMS);
+    if (authorizer.getCircuitBreaker() != null)
+      authorizer.getCircuitBreaker().toXContent(builder,ToXContent.EMPTY_PARAMS);
+    if (authorizer.getTokenDictionary() != null)
+      authorizer.getTokenDictionary().toXContent(builder,ToXContent.EMPTY_PARAMS);
+    // Off-heap memory is reported on its own, as it is not part of the heap
+    if (authorizer.getTokenCache() instanceof MCFOffHeapTokenCache)
+      ((MCFOffHeapTokenCache)authorizer.getTokenCache()).toXContent(builder,ToXContent.EMPTY_PARAMS);
+    if (diskCache != null)
+      diskCache.toXContent(builder,ToXContent.EMPTY_PARAMS);
+    authorizer.getStats().toXContent(builder,ToXContent.EMPTY_PARAMS);
+    aclBitSetCache.toXContent(builder,ToXContent.EMPTY_PARAMS);
+    builder.endObject();
+    DiscoveryNode localNode = clusterService.localNode();
+    return new MCFNodeStatsResponse(localNode.id(),localNode.name(),builder.bytes());
+  }
+
+  /** Collect the statistics of every node in the cluster.
+  *@param listener is notified once every node has responded or failed.
+  */
+  public void nodesStats(final ActionListener<MCFNodesStatsResponse> listener)
+  {
+    final String clusterName = clusterService.state().getClusterName().value();
+    DiscoveryNodes nodes = clusterService.state().nodes();
+    final List<MCFNodeStatsResponse> responses = Collections.synchronizedList(new ArrayList<MCFNodeStatsResponse>());
+    final Map<String,String> failures = new ConcurrentHashMap<String,String>();
+    final AtomicInteger remaining = new AtomicInteger(nodes.size());
+    for (final DiscoveryNode node : nodes)
+    {
+      transportService.sendRequest(node, NODE_STATS_ACTION, new MCFNodeStatsRequest(), new BaseTransportResponseHandler<MCFNodeStatsResponse>()
+        {
+          @Override
+          public MCFNodeStatsResponse newInstance()
+          {
+            return new MCFNodeStatsResponse();
+          }
+
+          @Override
+          public void handleResponse(MCFNodeStatsResponse response)
+          {
+            responses.add(response);
+            nodeDone();
+          }
+
+          @Override
+          public void handleException(TransportException e)
+          {
+            failures.put(node.id(),e.getDetailedMessage());
+            nodeDone();
+          }
+
+          @Override
+          public String executor()
+          {
+            return ThreadPool.Names.SAME;
+          }
+
+          protected void nodeDone()
+          {
+            if (remaining.decrementAndGet() == 0)
+              listener.onResponse(new MCFNodesStatsResponse(clusterName,new ArrayList<MCFNodeStatsResponse>(responses),failures));
+          }
+        });
+    }
+  }
+
+  /** Handler answering the statistics requests of other nodes.
+  */
+  protected class NodeStatsRequestHandler extends BaseTransportRequestHandler<MCFNodeStatsRequest>
+  {
+    @Override
+    public MCFNodeStatsRequest newInstance()
+    {
+      return new MCFNodeStatsRequest();
+    }
+
+    @Override
+    public void messageReceived(MCFNodeStatsRequest request, TransportChannel channel)
+      throws Exception
+    {
+      channel.sendResponse(localNodeStats());
+    }
+
+    @Override
+    public String executor()
+    {
+      return ThreadPool.Names.MANAGEMENT;
+    }
+  }
+
+  /** Handler answering other nodes' requests for the access tokens of users this node owns.
+  * The answer may need an authority service call, so it is computed on the authorization
+  * executor rather than a transport thread.
+  */
+  protected class TokenLookupRequestHandler extends BaseTransportRequestHandler<MCFTokenLookupRequest>
+  {
+    @Override
+    public MCFTokenLookupRequest newInstance()
+    {
+      return new MCFTokenLookupRequest();
+    }
+
+    @Override
+    public void messageReceived(final MCFTokenLookupRequest request, final TransportChannel channel)
+      throws Exception
+    {
+      authorizer.getStats().peerRequestsServed.incrementAndGet();
+      try
+      {
+        authorizationExecutor.execute(new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              try
+              {
+                // Never asks yet another node
+                channel.sendResponse(new MCFTokenLookupResponse(authorizer.getAccessTokens(request.getDomainMap())));
+              }
+              catch (Throwable t)
+              {
+                sendFailure(channel, t);
+              }
+            }
+          });
+      }
+      catch (RejectedExecutionException e)
+      {
+        // The asking node calls the authority service itself
+        sendFailure(channel, new EsRejectedExecutionException("Too many secured requests waiting for the ManifoldCF authority service"));
+      }
+    }
+
+    protected void sendFailure(TransportChannel channel, Throwable t)
+    {
+      try
+      {
+        channel.sendResponse(t);
+      }
+      catch (IOException e)
+      {
+        logger.warn("Failed to send access token lookup failure", e);
+      }
+    }
+
+    @Override
+    public String executor()
+    {
+      return ThreadPool.Names.SAME;
+    }
+  }
+
+  /** Asks the node owning a user for the user's access tokens.
+  */
+  protected class PeerTokenLookup implements MCFPeerTokenLookup
+  {
+    protected final long timeout;
+    protected final int virtualNodes;
+    /** The nodes the ring was built from */
+    protected DiscoveryNodes ringNodes = null;
+    protected MCFConsistentHashRing ring = null;
+
+    public PeerTokenLookup(long timeout, int virtualNodes)
+    {
+      this.timeout = timeout;
+      this.virtualNodes = virtualNodes;
+    }
+
+    @Override
+    public boolean lookup(String userKey, Map<String,String> domainMap, final ActionListener<List<String>> listener)
+    {
+      DiscoveryNodes nodes = clusterService.state().nodes();
+      String ownerId = ring(nodes).owner(userKey);
+      if (ownerId == null || ownerId.equals(nodes.localNodeId()))
+        return false;
+      final DiscoveryNode owner = nodes.get(ownerId);
+      if (owner == null)
+        return false;
+      final MCFAuthorizerStats stats = authorizer.getStats();
+      stats.peerLookups.incrementAndGet();
+      transportService.sendRequest(owner, TOKEN_LOOKUP_ACTION, new MCFTokenLookupRequest(domainMap),
+        TransportRequestOptions.options().withTimeout(timeout), new BaseTransportResponseHandler<MCFTokenLookupResponse>()
+        {
+          @Override
+          public MCFTokenLookupResponse newInstance()
+          {
+            return new MCFTokenLookupResponse();
+          }
+
+          @Override
+          public void handleResponse(MCFTokenLookupResponse response)
+          {
+            stats.peerHits.incrementAndGet();
+            listener.onResponse(response.getTokens());
+          }
+
+          @Override
+          public void handleException(TransportException e)
+          {
+            // Whatever went wrong, this node can still ask the authority service itself
+            stats.peerFailures.incrementAndGet();
+            logger.debug("Failed to get access tokens from node {}: {}", owner, e.getDetailedMessage());
+            listener.onFailure(e);
+          }
+
+          @Override
+          public String executor()
+          {
+            // Listeners only hand the answer over
+            return ThreadPool.Names.SAME;
+          }
+        });
+      return true;
+    }
+
+    /** Get the ring for the current nodes, rebuilding it if the nodes have changed.
+    */
+    protected synchronized MCFConsistentHashRing ring(DiscoveryNodes nodes)
+    {
+      if (nodes != ringNodes)
+      {
+        List<String> nodeIds = new ArrayList<String>();
+        for (DiscoveryNode node : nodes)
+        {
+          nodeIds.add(node.id());
+        }
+        ring = new MCFConsistentHashRing(nodeIds, virtualNodes);
+        ringNodes = nodes;
+      }
+      return ring;
+    }
+  }
+
+  /** Applies the dynamic authority service settings of the cluster to the authorizer.
+  * A setting that is not set in the cluster falls back to the node configuration.
+  */
+  protected class ApplySettings implements NodeSettingsService.Listener
+  {
+    @Override
+    public void onRefreshSettings(Settings settings)
+    {
+      String[] baseURLs = settings.getAsArray("mcf.authority_service_base_url", configuration.authorityServiceBaseURLs);
+      int connectionTimeout = settings.getAsInt("mcf.http.connection_timeout", configuration.connectionTimeout);
+      int socketTimeout = settings.getAsInt("mcf.http.socket_timeout", configuration.socketTimeout);
+      int poolSize = settings.getAsInt("mcf.http.connection_pool_size", configuration.connectionPoolSize);
+      try
+      {
+        authorizer.updateAuthorityClient(baseURLs, connectionTimeout, socketTimeout, poolSize);
+      }
+      catch (RuntimeException e)
+      {
+        // Keep the current client rather than fail the cluster state update
+        logger.warn("Failed to apply ManifoldCF authority service settings", e);
+      }
+    }
+  }
+
+  /** Stores token sets for terms lookup filters as documents of an index, which is
+  * created when the node joins the cluster with one shard copied to every node, so that the
+  * lookups of every shard are local.  Nothing waits for the cluster: a token set
+  * that isn't known to be stored is stored in the background, and its searches use
+  * terms filters until it is.
+  */
+  protected class IndexTokenSetStore implements MCFTokenSetStore, ClusterStateListener
+  {
+    /** How many stored token set ids are remembered */
+    protected static final int MAX_STORED_IDS = 10000;
+    /** How long a token set is trusted to stay stored, in case the index is deleted */
+    protected static final long STORED_ID_TTL = 3600000L;
+
+    protected final String index;
+    /** The ids of the token sets known to be stored */
+    protected final MCFLRUCache<String,Boolean> storedIds = new MCFLRUCache<String,Boolean>(MAX_STORED_IDS, STORED_ID_TTL);
+    /** The ids of the token sets being stored */
+    protected final ConcurrentMap<String,Boolean> pendingIds = new ConcurrentHashMap<String,Boolean>();
+    protected final AtomicBoolean creatingIndex = new AtomicBoolean(false);
+    protected volatile boolean indexCreated = false;
+
+    public IndexTokenSetStore(String index)
+    {
+      this.index = index;
+    }
+
+    @Override
+    public boolean store(final String id, List<String> tokens)
+    {
+      if (storedIds.get(id) != null)
+        return true;
+      if (!indexCreated)
+      {
+        // Creating the index failed, or hasn't finished yet
+        createIndex();
+        return false;
+      }
+      if (pendingIds.putIfAbsent(id, Boolean.TRUE) != null)
+        return false;
+      XContentBuilder source;
+      try
+      {
+        source = XContentFactory.jsonBuilder().startObject().field(MCFAuthorizer.TOKEN_SET_FIELD, tokens).endObject();
+      }
+      catch (IOException e)
+      {
+        pendingIds.remove(id);
+        throw new MCFAuthorizerException("Couldn't build token set document: "+e.getMessage(), e);
+      }
+      client.prepareIndex(index, MCFAuthorizer.TOKEN_SET_TYPE, id).setSource(source).setOpType(IndexRequest.OpType.CREATE)
+        .execute(new ActionListener<IndexResponse>()
+          {
+            @Override
+            public void onResponse(IndexResponse response)
+            {
+              storedIds.put(id, Boolean.TRUE);
+              pendingIds.remove(id);
+            }
+
+            @Override
+            public void onFailure(Throwable e)
+            {
+              // The id is derived from the tokens, so an existing document already holds them
+              if (ExceptionsHelper.unwrapCause(e) instanceof DocumentAlreadyExistsException)
+                storedIds.put(id, Boolean.TRUE);
+              else
+                logger.debug("Failed to store token set [{}]: {}", id, e.getMessage());
+              pendingIds.remove(id);
+            }
+          });
+      return false;
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event)
+    {
+      // Until the cluster state is recovered, an existing index may not be known yet
+      ClusterState state = event.state();
+      if (state.blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK) || state.nodes().masterNodeId() == null)
+        return;
+      clusterService.remove(this);
+      if (state.metaData().hasIndex(index))
+        indexCreated = true;
+      else
+        createIndex();
+    }
+
+    /** Create the index in the background, unless it exists or is being created.
+    */
+    public void createIndex()
+    {
+      if (indexCreated || !creatingIndex.compareAndSet(false, true))
+        return;
+      XContentBuilder mapping;
+      try
+      {
+        mapping = XContentFactory.jsonBuilder().startObject().startObject(MCFAuthorizer.TOKEN_SET_TYPE)
+          .startObject("_all").field("enabled", false).endObject()
+          .startObject("properties").startObject(MCFAuthorizer.TOKEN_SET_FIELD).field("type", "string").field("index", "no").endObject().endObject()
+          .endObject().endObject();
+      }
+      catch (IOException e)
+      {
+        creatingIndex.set(false);
+        throw new MCFAuthorizerException("Couldn't build token set mapping: "+e.getMessage(), e);
+      }
+      client.admin().indices().prepareCreate(index)
+        .setSettings(ImmutableSettings.settingsBuilder().put("index.number_of_shards", 1).put("index.auto_expand_replicas", "0-all"))
+        .addMapping(MCFAuthorizer.TOKEN_SET_TYPE, mapping)
+        .execute(new ActionListener<CreateIndexResponse>()
+          {
+            @Override
+            public void onResponse(CreateIndexResponse response)
+            {
+              indexCreated = true;
+              creatingIndex.set(false);
+            }
+
+            @Override
+            public void onFailure(Throwable e)
+            {
+              if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException)
+                indexCreated = true;
+              else
+                logger.warn("Failed to create token set index [{}]; will try again when a token set is stored: {}", index, e.getMessage());
+              creatingIndex.set(false);
+            }
+          });
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class holds the counters and histograms describing what one node's
+* MCFAuthorizer has been doing.  All methods are thread-safe.  Times are
+* recorded in microseconds.
+*/
+public class MCFAuthorizerStats implements ToXContent
+{
+  // Authority service calls
+  public final AtomicLong authorityRequests = new AtomicLong();
+  public final AtomicLong authorityFailures = new AtomicLong();
+  public final AtomicLong authorityRetries = new AtomicLong();
+  public final AtomicLong authorityTimeouts = new AtomicLong();
+  public final AtomicLong authorityIOExceptions = new AtomicLong();
+  public final AtomicLong authorityBytesRead = new AtomicLong();
+  public final AtomicLong authorityClientSwaps = new AtomicLong();
+  public final MCFHistogram authorityLatency = new MCFHistogram();
+  protected final ConcurrentMap<Integer,AtomicLong> authorityStatusCodes = new ConcurrentHashMap<Integer,AtomicLong>();
+
+  // Access tokens
+  public final AtomicLong tokenCacheHits = new AtomicLong();
+  public final AtomicLong tokenCacheMisses = new AtomicLong();
+  public final AtomicLong coalescedRequests = new AtomicLong();
+  public final AtomicLong tokenRefreshes = new AtomicLong();
+  public final AtomicLong staleTokensServed = new AtomicLong();
+  public final MCFHistogram tokensPerUser = new MCFHistogram();
+  public final AtomicLong tokenBatches = new AtomicLong();
+  public final MCFHistogram tokenBatchUsers = new MCFHistogram();
+
+  // Peer token lookups
+  public final AtomicLong peerLookups = new AtomicLong();
+  public final AtomicLong peerHits = new AtomicLong();
+  public final AtomicLong peerFailures = new AtomicLong();
+  public final AtomicLong peerRequestsServed = new AtomicLong();
+
+  // Authorization filters
+  public final AtomicLong filterCacheHits = new AtomicLong();
+  public final AtomicLong filterCacheMisses = new AtomicLong();
+  public final MCFHistogram filterClauses = new MCFHistogram();
+  protected final ConcurrentMap<String,AtomicLong> filterShapes = new ConcurrentHashMap<String,AtomicLong>();
+
+  // Request rewriting
+  public final MCFHistogram rewriteTime = new MCFHistogram();
+
+  /** Count an authority service response status code.
+  */
+  public void recordAuthorityStatus(int statusCode)
+  {
+    AtomicLong counter = authorityStatusCodes.get(statusCode);
+    if (counter == null)
+    {
+      AtomicLong newCounter = new AtomicLong();
+      counter = authorityStatusCodes.putIfAbsent(statusCode,newCounter);
+      if (counter == null)
+        counter = newCounter;
+    }
+    counter.incrementAndGet();
+  }
+
+  /** Count an authorization filter built with a shape.
+  */
+  public void recordFilterShape(String shape)
+  {
+    AtomicLong counter = filterShapes.get(shape);
+    if (counter == null)
+    {
+      AtomicLong newCounter = new AtomicLong();
+      counter = filterShapes.putIfAbsent(shape,newCounter);
+      if (counter == null)
+        counter = newCounter;
+    }
+    counter.incrementAndGet();
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    builder.startObject("authority");
+    builder.field("requests",authorityRequests.get());
+    builder.field("failures",authorityFailures.get());
+    builder.field("retries",authorityRetries.get());
+    builder.field("timeouts",authorityTimeouts.get());
+    builder.field("io_exceptions",authorityIOExceptions.get());
+    builder.field("bytes_read",authorityBytesRead.get());
+    builder.field("client_swaps",authorityClientSwaps.get());
+    builder.startObject("status_codes");
+    for (Map.Entry<Integer,AtomicLong> entry : new TreeMap<Integer,AtomicLong>(authorityStatusCodes).entrySet())
+    {
+      builder.field(entry.getKey().toString(),entry.getValue().get());
+    }
+    builder.endObject();
+    builder.startObject("latency_micros");
+    authorityLatency.toXContent(builder,params);
+    builder.endObject();
+    builder.endObject();
+
+    builder.startObject("tokens");
+    builder.field("cache_hits",tokenCacheHits.get());
+    builder.field("cache_misses",tokenCacheMisses.get());
+    builder.field("coalesced_requests",coalescedRequests.get());
+    builder.field("refreshes",tokenRefreshes.get());
+    builder.field("stale_served",staleTokensServed.get());
+    builder.startObject("per_user");
+    tokensPerUser.toXContent(builder,params);
+    builder.endObject();
+    builder.field("batches",tokenBatches.get());
+    builder.startObject("users_per_batch");
+    tokenBatchUsers.toXContent(builder,params);
+    builder.endObject();
+    builder.endObject();
+
+    builder.startObject("peers");
+    builder.field("lookups",peerLookups.get());
+    builder.field("hits",peerHits.get());
+    builder.field("failures",peerFailures.get());
+    builder.field("requests_served",peerRequestsServed.get());
+    builder.endObject();
+
+    builder.startObject("filters");
+    builder.field("cache_hits",filterCacheHits.get());
+    builder.field("cache_misses",filterCacheMisses.get());
+    builder.startObject("clauses");
+    filterClauses.toXContent(builder,params);
+    builder.endObject();
+    builder.startObject("shapes");
+    for (Map.Entry<String,AtomicLong> entry : new TreeMap<String,AtomicLong>(filterShapes).entrySet())
+    {
+      builder.field(entry.getKey(),entry.getValue().get());
+    }
+    builder.endObject();
+    builder.endObject();
+
+    builder.startObject("rewrite_micros");
+    rewriteTime.toXContent(builder,params);
+    builder.endObject();
+    return builder;
+  }
+}
@@ -0,0 +1,68 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+/** This interface describes a size-bounded cache whose entries optionally
+* expire a fixed time after they were obtained, such as the cache of users'
+* access tokens.  Implementations must be thread-safe.
+*/
+public interface MCFCache<K,V>
+{
+  /** Look up a value.
+  *@return the value, or null if it is absent or has expired.
+  */
+  public V get(K key);
+
+  /** Look up an entry, so that its age can be checked.
+  *@return the entry, or null if it is absent or has expired.
+  */
+  public MCFLRUCache.Entry<V> getEntry(K key);
+
+  /** Look up an entry even if it has expired, as long as it is still retained.
+  *@return the entry, or null if it is absent or no longer retained.
+  */
+  public MCFLRUCache.Entry<V> getStaleEntry(K key);
+
+  /** Store a value, replacing any previous value for the key.
+  */
+  public void put(K key, V value);
+
+  /** Store a value that was obtained earlier, replacing any previous value for the key.
+  *@param created is the time the value was obtained, from which its age and expiration are counted.
+  */
+  public void put(K key, V value, long created);
+
+  /** Remove a value.
+  */
+  public void remove(K key);
+
+  /** Remove all values.
+  */
+  public void clear();
+
+  /** Get the keys, most recently used first, including any whose entries have expired but not yet been purged.
+  *@param maxKeys is the maximum number of keys to return.
+  */
+  public List<K> keys(int maxKeys);
+
+  /** Get the current number of entries, including any that have expired but not yet been purged.
+  */
+  public int size();
+}
@@ -0,0 +1,271 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+
+/** This class warms a node's authorizer up after it starts, so that the first
+* searches after a restart do not all wait for the authority service.  It fetches
+* the access tokens of a configured list of users and of the users that were most
+* recently used before the node last stopped, and optionally runs each user's
+* authorization filter against some indices, so that its parts are in the shard
+* filter caches.  Users are warmed up a few at a time, in the background.
+*/
+public class MCFCacheWarmer
+{
+  /** A logger we can use */
+  private static final ESLogger LOG = Loggers.getLogger(MCFCacheWarmer.class);
+
+  protected final MCFAuthorizer authorizer;
+  protected final Client client;
+  protected final String[] users;
+  protected final File hotSetFile;
+  protected final int hotSetSize;
+  protected final int concurrency;
+  protected final String[] indices;
+  protected final long timeout;
+
+  /** Constructor.
+  *@param hotSetFile is the file the hot set is kept in, or null if there is none.
+  */
+  public MCFCacheWarmer(MCFAuthorizer authorizer, Client client, MCFConfigurationParameters cp, File hotSetFile)
+  {
+    this.authorizer = authorizer;
+    this.client = client;
+    this.users = cp.warmupUsers;
+    this.hotSetFile = hotSetFile;
+    this.hotSetSize = cp.warmupHotSetSize;
+    this.concurrency = Math.max(cp.warmupConcurrency,1);
+    this.indices = cp.warmupIndices;
+    this.timeout = cp.warmupTimeout;
+  }
+
+  /** Warm the authorizer up, blocking until done.
+  */
+  public void warmUp()
+  {
+    // Each line of the hot set file, like each configured user, is in the form of the "u" parameter
+    Set<String> identities = new LinkedHashSet<String>();
+    for (String user : users)
+    {
+      if (user.length() > 0)
+        identities.add(user);
+    }
+    identities.addAll(readHotSet());
+    if (identities.isEmpty())
+      return;
+
+    long startTime = System.currentTimeMillis();
+    List<String> identityList = new ArrayList<String>(identities);
+    List<Map<String,String>> domainMaps = new ArrayList<Map<String,String>>(identityList.size());
+    for (String identity : identityList)
+    {
+      domainMaps.add(MCFAuthorizer.parseUserNamesAndDomains(identity.split(",")));
+    }
+    // Take what the owning nodes have first; this thread is the only one waiting for them
+    final CountDownLatch prefetched = new CountDownLatch(1);
+    authorizer.prefetchAccessTokens(domainMaps,new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          prefetched.countDown();
+        }
+      });
+    try
+    {
+      prefetched.await();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    // Fetch everyone else's access tokens together, a few users at a time
+    List<MCFUserTokens> userTokens = authorizer.getAccessTokens(domainMaps,concurrency);
+    final List<FilterBuilder> authorizationFilters = new ArrayList<FilterBuilder>();
+    for (int i = 0; i < identityList.size(); i++)
+    {
+      MCFUserTokens result = userTokens.get(i);
+      if (result.isResolved())
+        authorizationFilters.add(authorizer.buildAuthorizationFilter(result.tokens));
+      else
+        LOG.debug("Failed to warm up user '"+identityList.get(i)+"'",result.error);
+    }
+
+    final AtomicInteger warmed = new AtomicInteger(authorizationFilters.size());
+    if (authorizationFilters.size() > 0 && indices.length > 0 && indicesAvailable())
+    {
+      warmed.set(0);
+      ExecutorService executor = Executors.newFixedThreadPool(concurrency,EsExecutors.daemonThreadFactory("mcf_warmup"));
+      try
+      {
+        for (final FilterBuilder authorizationFilter : authorizationFilters)
+        {
+          executor.execute(new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                try
+                {
+                  client.prepareSearch(indices).setSearchType(SearchType.COUNT)
+                    .setQuery(QueryBuilders.filteredQuery(QueryBuilders.matchAllQuery(),authorizationFilter))
+                    .get(TimeValue.timeValueMillis(timeout));
+                  warmed.incrementAndGet();
+                }
+                catch (Exception e)
+                {
+                  LOG.debug("Failed to warm up the shard filter caches",e);
+                }
+              }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      finally
+      {
+        executor.shutdownNow();
+      }
+    }
+    LOG.info("Warmed up "+warmed.get()+" of "+identities.size()+" users in "+(System.currentTimeMillis() - startTime)+" ms");
+  }
+
+  /** Save the most recently used users, to be warmed up at the next start.
+  */
+  public void saveHotSet()
+  {
+    if (hotSetFile == null)
+      return;
+    List<Map<String,String>> hotUsers = authorizer.getCachedUsers(hotSetSize);
+    File tempFile = new File(hotSetFile.getPath()+".tmp");
+    try
+    {
+      File parent = hotSetFile.getAbsoluteFile().getParentFile();
+      if (parent != null)
+        parent.mkdirs();
+      FileOutputStream os = new FileOutputStream(tempFile);
+      Writer w = new OutputStreamWriter(os,"utf-8");
+      try
+      {
+        for (Map<String,String> domainMap : hotUsers)
+        {
+          w.write(join(MCFAuthorizer.formatUserNamesAndDomains(domainMap)));
+          w.write("\n");
+        }
+        w.flush();
+        os.getFD().sync();
+      }
+      finally
+      {
+        w.close();
+      }
+      // Replace the previous hot set in one step, and only once the new one is complete
+      if (!tempFile.renameTo(hotSetFile))
+        throw new IOException("Couldn't rename "+tempFile+" to "+hotSetFile);
+      LOG.info("Saved "+hotUsers.size()+" users to "+hotSetFile);
+    }
+    catch (IOException e)
+    {
+      // The previous hot set, if any, is untouched
+      LOG.warn("Failed to save hot users to "+hotSetFile+"; keeping the previous hot set: "+e.getMessage(),e);
+      tempFile.delete();
+    }
+  }
+
+  protected List<String> readHotSet()
+  {
+    List<String> rval = new ArrayList<String>();
+    if (hotSetFile == null || !hotSetFile.exists())
+      return rval;
+    try
+    {
+      BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(hotSetFile),"utf-8"));
+      try
+      {
+        while (rval.size() < hotSetSize)
+        {
+          String line = br.readLine();
+          if (line == null)
+            break;
+          if (line.length() > 0)
+            rval.add(line);
+        }
+      }
+      finally
+      {
+        br.close();
+      }
+    }
+    catch (IOException e)
+    {
+      LOG.warn("Failed to read hot users from "+hotSetFile+": "+e.getMessage(),e);
+    }
+    return rval;
+  }
+
+  /** Wait for the warmed indices to have all their primary shards.
+  */
+  protected boolean indicesAvailable()
+  {
+    try
+    {
+      ClusterHealthResponse health = client.admin().cluster().prepareHealth(indices)
+        .setWaitForYellowStatus().setTimeout(TimeValue.timeValueMillis(timeout)).get();
+      if (!health.isTimedOut())
+        return true;
+      LOG.warn("Indices to warm up were not available within "+timeout+" ms; only warming up access tokens");
+    }
+    catch (ElasticsearchException e)
+    {
+      LOG.warn("Failed to check the health of the indices to warm up: "+e.getDetailedMessage());
+    }
+    return false;
+  }
+
+  protected static String join(String[] values)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < values.length; i++)
+    {
+      if (i > 0)
+        sb.append(",");
+      sb.append(values[i]);
+    }
+    return sb.toString();
+  }
+}
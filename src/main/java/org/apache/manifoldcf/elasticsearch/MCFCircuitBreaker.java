@@ -0,0 +1,244 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class is a circuit breaker guarding calls to the ManifoldCF authority
+* service.  It remembers the outcome of the most recent calls; once enough of
+* them have failed or been slow, it opens, and calls are refused without being
+* attempted.  After a while it becomes half-open, letting a few probe calls
+* through: if they all succeed it closes again, and if any of them fails it
+* reopens.  All methods are thread-safe.
+*/
+public class MCFCircuitBreaker implements ToXContent
+{
+  /** Calls are attempted, and their outcomes recorded */
+  public static final String STATE_CLOSED = "closed";
+  /** Calls are refused */
+  public static final String STATE_OPEN = "open";
+  /** A limited number of probe calls are attempted */
+  public static final String STATE_HALF_OPEN = "half_open";
+
+  /** A logger we can use */
+  private static final ESLogger LOG = Loggers.getLogger(MCFCircuitBreaker.class);
+
+  protected final int minimumCalls;
+  protected final int failureRateThreshold;
+  protected final long slowCallDuration;
+  protected final int slowCallRateThreshold;
+  protected final long openDuration;
+  protected final int halfOpenProbes;
+
+  /** Outcomes of the most recent calls, as a ring buffer */
+  protected final byte[] window;
+  protected int windowPosition = 0;
+  protected int windowCalls = 0;
+  protected int windowFailures = 0;
+  protected int windowSlowCalls = 0;
+
+  protected String state = STATE_CLOSED;
+  /** When the breaker last opened, in milliseconds */
+  protected long openedTime = 0L;
+  /** Probe calls let through since the breaker became half-open */
+  protected int probesStarted = 0;
+  /** Probe calls that have succeeded since the breaker became half-open */
+  protected int probesSucceeded = 0;
+
+  protected long timesOpened = 0L;
+  protected long rejectedCalls = 0L;
+
+  protected static final byte OUTCOME_SUCCESS = 0;
+  protected static final byte OUTCOME_SLOW = 1;
+  protected static final byte OUTCOME_FAILURE = 2;
+
+  /** Constructor.
+  *@param windowSize is the number of recent calls whose outcomes are considered.
+  *@param minimumCalls is the number of calls that must be in the window before the breaker can open.
+  *@param failureRateThreshold is the percentage of failed calls at which the breaker opens.
+  *@param slowCallDuration is the duration in milliseconds above which a successful call counts as slow.
+  *@param slowCallRateThreshold is the percentage of slow calls at which the breaker opens.
+  *@param openDuration is how long in milliseconds the breaker stays open before letting probes through.
+  *@param halfOpenProbes is the number of probe calls that must succeed for the breaker to close.
+  */
+  public MCFCircuitBreaker(int windowSize, int minimumCalls, int failureRateThreshold,
+    long slowCallDuration, int slowCallRateThreshold, long openDuration, int halfOpenProbes)
+  {
+    this.window = new byte[Math.max(windowSize,1)];
+    this.minimumCalls = Math.max(Math.min(minimumCalls,window.length),1);
+    this.failureRateThreshold = failureRateThreshold;
+    this.slowCallDuration = slowCallDuration;
+    this.slowCallRateThreshold = slowCallRateThreshold;
+    this.openDuration = openDuration;
+    this.halfOpenProbes = Math.max(halfOpenProbes,1);
+  }
+
+  /** Ask whether a call may be attempted.  Every call that is allowed must be
+  * followed by exactly one call to recordSuccess() or recordFailure().
+  *@return true if the call may be attempted, false if it must be refused.
+  */
+  public synchronized boolean allowCall()
+  {
+    if (state == STATE_OPEN)
+    {
+      if (System.currentTimeMillis() - openedTime < openDuration)
+      {
+        rejectedCalls++;
+        return false;
+      }
+      transition(STATE_HALF_OPEN,"open for "+openDuration+" ms");
+      probesStarted = 0;
+      probesSucceeded = 0;
+    }
+    if (state == STATE_HALF_OPEN)
+    {
+      if (probesStarted >= halfOpenProbes)
+      {
+        rejectedCalls++;
+        return false;
+      }
+      probesStarted++;
+    }
+    return true;
+  }
+
+  /** Record a call that succeeded.
+  *@param duration is how long the call took, in milliseconds.
+  */
+  public synchronized void recordSuccess(long duration)
+  {
+    boolean slow = slowCallDuration > 0L && duration > slowCallDuration;
+    if (state == STATE_HALF_OPEN)
+    {
+      if (slow)
+      {
+        open("probe call took "+duration+" ms");
+        return;
+      }
+      probesSucceeded++;
+      if (probesSucceeded >= halfOpenProbes)
+      {
+        transition(STATE_CLOSED,probesSucceeded+" probe calls succeeded");
+        clearWindow();
+      }
+      return;
+    }
+    if (state == STATE_CLOSED)
+    {
+      addOutcome(slow?OUTCOME_SLOW:OUTCOME_SUCCESS);
+      checkThresholds();
+    }
+  }
+
+  /** Record a call that failed because the authority service could not answer.
+  */
+  public synchronized void recordFailure()
+  {
+    if (state == STATE_HALF_OPEN)
+    {
+      open("probe call failed");
+      return;
+    }
+    if (state == STATE_CLOSED)
+    {
+      addOutcome(OUTCOME_FAILURE);
+      checkThresholds();
+    }
+  }
+
+  public synchronized String getState()
+  {
+    return state;
+  }
+
+  @Override
+  public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    builder.startObject("circuit_breaker");
+    builder.field("state",state);
+    builder.field("window_calls",windowCalls);
+    builder.field("window_failures",windowFailures);
+    builder.field("window_slow_calls",windowSlowCalls);
+    builder.field("times_opened",timesOpened);
+    builder.field("rejected_calls",rejectedCalls);
+    builder.endObject();
+    return builder;
+  }
+
+  protected void addOutcome(byte outcome)
+  {
+    if (windowCalls == window.length)
+    {
+      // Forget the oldest outcome, which is about to be overwritten
+      byte oldest = window[windowPosition];
+      if (oldest == OUTCOME_FAILURE)
+        windowFailures--;
+      else if (oldest == OUTCOME_SLOW)
+        windowSlowCalls--;
+    }
+    else
+      windowCalls++;
+    window[windowPosition] = outcome;
+    windowPosition = (windowPosition + 1) % window.length;
+    if (outcome == OUTCOME_FAILURE)
+      windowFailures++;
+    else if (outcome == OUTCOME_SLOW)
+      windowSlowCalls++;
+  }
+
+  protected void checkThresholds()
+  {
+    if (windowCalls < minimumCalls)
+      return;
+    if (windowFailures * 100 >= failureRateThreshold * windowCalls)
+      open(windowFailures+" of the last "+windowCalls+" calls failed");
+    else if (slowCallDuration > 0L && windowSlowCalls * 100 >= slowCallRateThreshold * windowCalls)
+      open(windowSlowCalls+" of the last "+windowCalls+" calls took more than "+slowCallDuration+" ms");
+  }
+
+  protected void open(String reason)
+  {
+    transition(STATE_OPEN,reason);
+    openedTime = System.currentTimeMillis();
+    timesOpened++;
+    clearWindow();
+  }
+
+  protected void clearWindow()
+  {
+    windowPosition = 0;
+    windowCalls = 0;
+    windowFailures = 0;
+    windowSlowCalls = 0;
+  }
+
+  protected void transition(String newState, String reason)
+  {
+    if (newState == STATE_OPEN)
+      LOG.warn("ManifoldCF authority service circuit breaker is now "+newState+": "+reason);
+    else
+      LOG.info("ManifoldCF authority service circuit breaker is now "+newState+": "+reason);
+    state = newState;
+  }
+}
@@ -18,7 +18,9 @@
 */
 package org.apache.manifoldcf.elasticsearch;
 
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
 
 /** This class represents the configuration information that the QueryModifier
 * needs to perform its job.
@@ -27,6 +29,54 @@ public class MCFConfigurationParameters
 {
   /** Base URL, e.g. "http://localhost:8345/mcf-authority-service" */
   public String authorityServiceBaseURL = "http://localhost:8345/mcf-authority-service";
+  /** Base URLs of all the authority service instances to use; the first one is also authorityServiceBaseURL */
+  public String[] authorityServiceBaseURLs = new String[]{authorityServiceBaseURL};
+  /** How to choose between authority service instances, "least_outstanding" or "round_robin" */
+  public String authoritySelection = MCFAuthorityEndpoints.SELECTION_LEAST_OUTSTANDING;
+  /** Number of consecutive failures after which an authority service instance is ejected, e.g. 3 */
+  public int authorityMaxFailures = 3;
+  /** Time in milliseconds between trial requests to an ejected authority service instance, e.g. 30000; 0 leaves readmission to health checks */
+  public long authorityReadmitInterval = 30000L;
+  /** Number of other authority service instances to retry a failed request on, e.g. 1 */
+  public int authorityRetries = 1;
+  /** Interval between authority service health checks in milliseconds, e.g. 10000; 0, the default, disables them */
+  public long healthCheckInterval = 0L;
+  /** Path below each base URL that health checks request, e.g. "/UserACLs" */
+  public String healthCheckPath = "/UserACLs";
+  /** Number of threads resolving batches of users' access tokens, e.g. 10 */
+  public int authorityBatchConcurrency = 10;
+  /** Whether the authority service is asked to gzip its responses; false by default */
+  public boolean authorityCompression = false;
+  /** Number of slots of the dictionary that shares access token strings between users, e.g. 65536; 0 disables it */
+  public int tokenDictionarySize = 65536;
+  /** Minimum time in milliseconds between logged authority service status lines, e.g. 60000 */
+  public long authorityLogInterval = 60000L;
+  /** Whether calls to the authority service go through a circuit breaker; false by default */
+  public boolean breakerEnabled = false;
+  /** Number of recent authority service calls the circuit breaker considers, e.g. 20 */
+  public int breakerWindowSize = 20;
+  /** Number of recent calls needed before the circuit breaker can open, e.g. 10 */
+  public int breakerMinimumCalls = 10;
+  /** Percentage of failed calls at which the circuit breaker opens, e.g. 50 */
+  public int breakerFailureRateThreshold = 50;
+  /** Duration in milliseconds above which a call counts as slow, e.g. 10000; 0 disables slow call detection */
+  public long breakerSlowCallDuration = 10000L;
+  /** Percentage of slow calls at which the circuit breaker opens, e.g. 80 */
+  public int breakerSlowCallRateThreshold = 80;
+  /** Time in milliseconds the circuit breaker stays open before probing the authority service, e.g. 30000 */
+  public long breakerOpenDuration = 30000L;
+  /** Number of probe calls that must succeed to close the circuit breaker, e.g. 3 */
+  public int breakerHalfOpenProbes = 3;
+  /** What to do when the authority service is unavailable, "fail" or "stale" */
+  public String breakerFallback = MCFAuthorizer.FALLBACK_FAIL;
+  /** Time in milliseconds past their expiry that cached access tokens may be used by the "stale" fallback, e.g. 3600000 */
+  public long breakerMaxStaleness = 3600000L;
+  /** Whether other nodes are asked for access tokens before the authority service; false by default, and needs the token cache */
+  public boolean peerEnabled = false;
+  /** Time in milliseconds to wait for another node's access tokens before asking the authority service, e.g. 5000 */
+  public long peerTimeout = 5000L;
+  /** Number of places each node takes on the ring that assigns users to nodes, e.g. 64 */
+  public int peerVirtualNodes = 64;
   /** Connection timeout, e.g. 60000 */
   public int connectionTimeout = 60000;
   /** Socket timeout, e.g. 300000 */
@@ -37,20 +87,128 @@ public class MCFConfigurationParameters
   public String denyFieldPrefix = "deny_token_";
   /** Connection pool size, e.g. 50 */
   public int connectionPoolSize = 50;
+  /** Maximum number of users whose access tokens are cached, e.g. 10000; 0, the default, disables the cache */
+  public int cacheMaxEntries = 0;
+  /** Lifetime of cached access tokens in milliseconds, after which they are never used, e.g. 300000 */
+  public long cacheTimeToLive = 300000L;
+  /** Age of cached access tokens in milliseconds after which they are refreshed in the background, e.g. 240000; 0 disables refreshing */
+  public long cacheSoftTimeToLive = 240000L;
+  /** Number of threads refreshing cached access tokens in the background, e.g. 2 */
+  public int cacheRefreshThreads = 2;
+  /** Where cached access tokens are kept: "heap" or "off_heap" (encoded in direct buffers) */
+  public String cacheStorage = MCFAuthorizer.CACHE_STORAGE_HEAP;
+  /** Off-heap memory in bytes used for cached access tokens when the cache storage is "off_heap", e.g. 268435456 */
+  public long cacheOffHeapSize = 256L * 1024L * 1024L;
+  /** File in which access tokens are also cached on disk, so that they survive restarts, or null */
+  public String cacheDiskFile = null;
+  /** Time in milliseconds between checks of whether the disk cache file needs compacting, e.g. 60000; 0 disables compaction */
+  public long cacheDiskCompactionInterval = 60000L;
+  /** Number of threads resolving access tokens for secured requests, e.g. 10 */
+  public int authorizerThreads = 10;
+  /** Number of secured requests allowed to wait for an authorizer thread, e.g. 1000 */
+  public int authorizerQueueSize = 1000;
+  /** Shape of the authorization filter, either "term" (one term filter per token), "terms" (one terms filter per field), "acl" (one mcf_acl filter),
+  * "lookup" (one terms lookup filter per field) or "adaptive" (chosen by the number of tokens); "term" by default */
+  public String filterShape = MCFAuthorizer.FILTER_SHAPE_TERM;
+  /** Number of access tokens above which the adaptive shape uses terms filters, e.g. 100 */
+  public int filterTermsThreshold = 100;
+  /** Number of access tokens above which the adaptive shape uses terms lookup filters, e.g. 5000; 0, the default, disables them */
+  public int filterLookupThreshold = 0;
+  /** Index in which the token sets of terms lookup filters are stored, e.g. ".mcf_tokens" */
+  public String filterLookupIndex = ".mcf_tokens";
+  /** Execution mode of terms filters when the filter shape is "terms", e.g. "plain" */
+  public String termsExecution = "plain";
+  /** Maximum number of distinct access token sets whose serialized filters are cached, e.g. 1000; 0, the default, disables the cache */
+  public int filterCacheMaxEntries = 0;
+  /** Whether authorization filters are cached in the shards under a key derived from their token set; false by default */
+  public boolean filterCacheKeys = false;
+  /** Maximum memory in bytes used by the per-segment token sets of "mcf_acl" filters, e.g. 67108864; 0 disables caching them */
+  public long aclCacheSize = 64L * 1024L * 1024L;
+  /** Time in milliseconds above which secured searches are logged to the slow log, e.g. 1000; a negative value disables it */
+  public long slowLogThreshold = -1L;
+  /** Users whose access tokens are fetched at startup, each in the form of the "u" parameter, e.g. "user:domain" */
+  public String[] warmupUsers = new String[0];
+  /** File in which the most recently used users are saved at shutdown and read at startup, or null */
+  public String warmupHotSetFile = null;
+  /** Maximum number of users saved in the hot set file, e.g. 1000 */
+  public int warmupHotSetSize = 1000;
+  /** Number of users warmed up at the same time, e.g. 4 */
+  public int warmupConcurrency = 4;
+  /** Indices whose shard filter caches are warmed with each user's authorization filter, if any */
+  public String[] warmupIndices = new String[0];
+  /** Time in milliseconds to wait for the warmed indices to become available, e.g. 60000 */
+  public long warmupTimeout = 60000L;
 
   public  MCFConfigurationParameters(){};
 
   public MCFConfigurationParameters(Settings settings) {
-      setBaseURL(settings.get("mcf.authority_service_base_url", authorityServiceBaseURL));
+      setBaseURLs(settings.getAsArray("mcf.authority_service_base_url", authorityServiceBaseURLs));
       setConnectionTimeout(settings.getAsInt("mcf.http.connection_timeout", connectionTimeout));
       setSocketTimeout(settings.getAsInt("mcf.http.socket_timeout",socketTimeout));
       setAllowFieldPrefix(settings.get("mcf.allow_field_prefix",allowFieldPrefix));
       setDenyFieldPrefix(settings.get("mcf.deny_field_prefix",denyFieldPrefix));
       setConnectionPoolSize(settings.getAsInt("mcf.http.connection_pool_size",connectionPoolSize));
+      setCacheMaxEntries(settings.getAsInt("mcf.cache.max_entries",cacheMaxEntries));
+      setCacheTimeToLive(settings.getAsLong("mcf.cache.ttl",cacheTimeToLive));
+      setCacheSoftTimeToLive(settings.getAsLong("mcf.cache.soft_ttl",cacheSoftTimeToLive));
+      setCacheRefreshThreads(settings.getAsInt("mcf.cache.refresh_threads",cacheRefreshThreads));
+      setCacheStorage(settings.get("mcf.cache.storage",cacheStorage));
+      setCacheOffHeapSize(settings.getAsBytesSize("mcf.cache.off_heap.size",new ByteSizeValue(cacheOffHeapSize)).bytes());
+      setCacheDiskFile(settings.get("mcf.cache.disk.file",cacheDiskFile));
+      setCacheDiskCompactionInterval(settings.getAsLong("mcf.cache.disk.compaction_interval",cacheDiskCompactionInterval));
+      setAuthorizerThreads(settings.getAsInt("mcf.authorizer.threads",authorizerThreads));
+      setAuthorizerQueueSize(settings.getAsInt("mcf.authorizer.queue_size",authorizerQueueSize));
+      setFilterShape(settings.get("mcf.filter.shape",filterShape));
+      setTermsExecution(settings.get("mcf.filter.terms_execution",termsExecution));
+      setFilterTermsThreshold(settings.getAsInt("mcf.filter.terms_threshold",filterTermsThreshold));
+      setFilterLookupThreshold(settings.getAsInt("mcf.filter.lookup_threshold",filterLookupThreshold));
+      setFilterLookupIndex(settings.get("mcf.filter.lookup_index",filterLookupIndex));
+      setFilterCacheMaxEntries(settings.getAsInt("mcf.filter.cache.max_entries",filterCacheMaxEntries));
+      setAuthoritySelection(settings.get("mcf.authority.selection",authoritySelection));
+      setAuthorityMaxFailures(settings.getAsInt("mcf.authority.max_failures",authorityMaxFailures));
+      setAuthorityReadmitInterval(settings.getAsLong("mcf.authority.readmit_interval",authorityReadmitInterval));
+      setAuthorityRetries(settings.getAsInt("mcf.authority.retries",authorityRetries));
+      setHealthCheckInterval(settings.getAsLong("mcf.authority.health_check_interval",healthCheckInterval));
+      setHealthCheckPath(settings.get("mcf.authority.health_check_path",healthCheckPath));
+      setFilterCacheKeys(settings.getAsBoolean("mcf.filter.cache_keys",filterCacheKeys));
+      setACLCacheSize(settings.getAsBytesSize("mcf.acl.cache.size",new ByteSizeValue(aclCacheSize)).bytes());
+      setSlowLogThreshold(settings.getAsLong("mcf.slowlog.threshold",slowLogThreshold));
+      setWarmupUsers(settings.getAsArray("mcf.warmup.users",warmupUsers));
+      setWarmupHotSetFile(settings.get("mcf.warmup.hot_set_file",warmupHotSetFile));
+      setWarmupHotSetSize(settings.getAsInt("mcf.warmup.hot_set_size",warmupHotSetSize));
+      setWarmupConcurrency(settings.getAsInt("mcf.warmup.concurrency",warmupConcurrency));
+      setWarmupIndices(settings.getAsArray("mcf.warmup.indices",warmupIndices));
+      setWarmupTimeout(settings.getAsLong("mcf.warmup.timeout",warmupTimeout));
+      setPeerEnabled(settings.getAsBoolean("mcf.peer.enabled",peerEnabled));
+      setPeerTimeout(settings.getAsLong("mcf.peer.timeout",peerTimeout));
+      setPeerVirtualNodes(settings.getAsInt("mcf.peer.virtual_nodes",peerVirtualNodes));
+      setAuthorityBatchConcurrency(settings.getAsInt("mcf.authority.batch_concurrency",authorityBatchConcurrency));
+      setAuthorityCompression(settings.getAsBoolean("mcf.authority.compression",authorityCompression));
+      setTokenDictionarySize(settings.getAsInt("mcf.authority.token_dictionary_size",tokenDictionarySize));
+      setAuthorityLogInterval(settings.getAsLong("mcf.authority.log_interval",authorityLogInterval));
+      setBreakerEnabled(settings.getAsBoolean("mcf.breaker.enabled",breakerEnabled));
+      setBreakerWindowSize(settings.getAsInt("mcf.breaker.window_size",breakerWindowSize));
+      setBreakerMinimumCalls(settings.getAsInt("mcf.breaker.minimum_calls",breakerMinimumCalls));
+      setBreakerFailureRateThreshold(settings.getAsInt("mcf.breaker.failure_rate_threshold",breakerFailureRateThreshold));
+      setBreakerSlowCallDuration(settings.getAsLong("mcf.breaker.slow_call_duration",breakerSlowCallDuration));
+      setBreakerSlowCallRateThreshold(settings.getAsInt("mcf.breaker.slow_call_rate_threshold",breakerSlowCallRateThreshold));
+      setBreakerOpenDuration(settings.getAsLong("mcf.breaker.open_duration",breakerOpenDuration));
+      setBreakerHalfOpenProbes(settings.getAsInt("mcf.breaker.half_open_probes",breakerHalfOpenProbes));
+      setBreakerFallback(settings.get("mcf.breaker.fallback",breakerFallback));
+      setBreakerMaxStaleness(settings.getAsLong("mcf.breaker.max_staleness",breakerMaxStaleness));
   }
   public MCFConfigurationParameters setBaseURL(String baseURL)
   {
-    this.authorityServiceBaseURL = baseURL;    return this;
+    this.authorityServiceBaseURL = baseURL;
+    this.authorityServiceBaseURLs = (baseURL == null)?null:new String[]{baseURL};
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBaseURLs(String[] baseURLs)
+  {
+    this.authorityServiceBaseURLs = (baseURLs == null || baseURLs.length == 0)?null:baseURLs;
+    this.authorityServiceBaseURL = (this.authorityServiceBaseURLs == null)?null:baseURLs[0];
+    return this;
   }
   
   public MCFConfigurationParameters setConnectionTimeout(int timeout)
@@ -83,4 +241,294 @@ public class MCFConfigurationParameters
     return this;
   }
   
+  public MCFConfigurationParameters setCacheMaxEntries(int maxEntries)
+  {
+    this.cacheMaxEntries = maxEntries;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setCacheTimeToLive(long timeToLive)
+  {
+    this.cacheTimeToLive = timeToLive;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setCacheSoftTimeToLive(long timeToLive)
+  {
+    this.cacheSoftTimeToLive = timeToLive;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setCacheRefreshThreads(int threads)
+  {
+    this.cacheRefreshThreads = threads;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setCacheStorage(String storage)
+  {
+    this.cacheStorage = storage;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setCacheOffHeapSize(long size)
+  {
+    this.cacheOffHeapSize = size;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setCacheDiskFile(String file)
+  {
+    this.cacheDiskFile = file;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setCacheDiskCompactionInterval(long interval)
+  {
+    this.cacheDiskCompactionInterval = interval;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthorizerThreads(int threads)
+  {
+    this.authorizerThreads = threads;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthorizerQueueSize(int size)
+  {
+    this.authorizerQueueSize = size;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setFilterShape(String shape)
+  {
+    this.filterShape = shape;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setTermsExecution(String execution)
+  {
+    this.termsExecution = execution;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setFilterTermsThreshold(int threshold)
+  {
+    this.filterTermsThreshold = threshold;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setFilterLookupThreshold(int threshold)
+  {
+    this.filterLookupThreshold = threshold;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setFilterLookupIndex(String index)
+  {
+    this.filterLookupIndex = index;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setFilterCacheMaxEntries(int maxEntries)
+  {
+    this.filterCacheMaxEntries = maxEntries;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthoritySelection(String selection)
+  {
+    this.authoritySelection = selection;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthorityMaxFailures(int maxFailures)
+  {
+    this.authorityMaxFailures = maxFailures;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthorityReadmitInterval(long interval)
+  {
+    this.authorityReadmitInterval = interval;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthorityRetries(int retries)
+  {
+    if (retries < 0)
+      throw new ElasticsearchIllegalArgumentException("Authority retries must not be negative, was ["+retries+"]");
+    this.authorityRetries = retries;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setHealthCheckInterval(long interval)
+  {
+    this.healthCheckInterval = interval;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setHealthCheckPath(String path)
+  {
+    this.healthCheckPath = path;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthorityBatchConcurrency(int concurrency)
+  {
+    this.authorityBatchConcurrency = concurrency;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthorityCompression(boolean compression)
+  {
+    this.authorityCompression = compression;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setTokenDictionarySize(int size)
+  {
+    this.tokenDictionarySize = size;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setAuthorityLogInterval(long interval)
+  {
+    this.authorityLogInterval = interval;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setFilterCacheKeys(boolean cacheKeys)
+  {
+    this.filterCacheKeys = cacheKeys;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setACLCacheSize(long size)
+  {
+    this.aclCacheSize = size;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setSlowLogThreshold(long threshold)
+  {
+    this.slowLogThreshold = threshold;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setWarmupUsers(String[] users)
+  {
+    this.warmupUsers = users;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setWarmupHotSetFile(String file)
+  {
+    this.warmupHotSetFile = file;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setWarmupHotSetSize(int size)
+  {
+    this.warmupHotSetSize = size;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setWarmupConcurrency(int concurrency)
+  {
+    this.warmupConcurrency = concurrency;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setWarmupIndices(String[] indices)
+  {
+    this.warmupIndices = indices;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setWarmupTimeout(long timeout)
+  {
+    this.warmupTimeout = timeout;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setPeerEnabled(boolean enabled)
+  {
+    this.peerEnabled = enabled;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setPeerTimeout(long timeout)
+  {
+    this.peerTimeout = timeout;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setPeerVirtualNodes(int virtualNodes)
+  {
+    this.peerVirtualNodes = virtualNodes;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerEnabled(boolean enabled)
+  {
+    this.breakerEnabled = enabled;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerWindowSize(int windowSize)
+  {
+    this.breakerWindowSize = windowSize;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerMinimumCalls(int minimumCalls)
+  {
+    this.breakerMinimumCalls = minimumCalls;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerFailureRateThreshold(int threshold)
+  {
+    this.breakerFailureRateThreshold = threshold;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerSlowCallDuration(long duration)
+  {
+    this.breakerSlowCallDuration = duration;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerSlowCallRateThreshold(int threshold)
+  {
+    this.breakerSlowCallRateThreshold = threshold;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerOpenDuration(long duration)
+  {
+    this.breakerOpenDuration = duration;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerHalfOpenProbes(int probes)
+  {
+    this.breakerHalfOpenProbes = probes;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerFallback(String fallback)
+  {
+    this.breakerFallback = fallback;
+    return this;
+  }
+  
+  public MCFConfigurationParameters setBreakerMaxStaleness(long maxStaleness)
+  {
+    this.breakerMaxStaleness = maxStaleness;
+    return this;
+  }
+  
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+/** This class is an immutable consistent hash ring, mapping keys to the nodes
+* that own them.  Each node is placed on the ring several times, so that keys
+* are spread evenly, and so that adding or removing a node only moves the keys
+* it owns.
+*/
+public class MCFConsistentHashRing
+{
+  protected final TreeMap<Long,String> ring = new TreeMap<Long,String>();
+
+  /** Constructor.
+  *@param nodeIds are the identifiers of the nodes.
+  *@param virtualNodes is the number of places each node takes on the ring.
+  */
+  public MCFConsistentHashRing(Collection<String> nodeIds, int virtualNodes)
+  {
+    for (String nodeId : nodeIds)
+    {
+      for (int i = 0; i < virtualNodes; i++)
+      {
+        ring.put(hash(nodeId+"#"+i),nodeId);
+      }
+    }
+  }
+
+  /** Find the node owning a key.
+  *@return the node identifier, or null if the ring is empty.
+  */
+  public String owner(String key)
+  {
+    if (ring.isEmpty())
+      return null;
+    Map.Entry<Long,String> entry = ring.ceilingEntry(hash(key));
+    if (entry == null)
+      entry = ring.firstEntry();
+    return entry.getValue();
+  }
+
+  /** Hash a string to 64 bits: FNV-1a over its UTF-8 form, followed by a
+  * finalizer spreading the bits, since nearby keys must land far apart.
+  */
+  protected static long hash(String value)
+  {
+    byte[] bytes;
+    try
+    {
+      bytes = value.getBytes("UTF-8");
+    }
+    catch (UnsupportedEncodingException e)
+    {
+      throw new RuntimeException("Unsupported encoding: "+e.getMessage(),e);
+    }
+    long h = 0xcbf29ce484222325L;
+    for (byte b : bytes)
+    {
+      h ^= (b & 0xff);
+      h *= 0x100000001b3L;
+    }
+    h ^= (h >>> 33);
+    h *= 0xff51afd7ed558ccdL;
+    h ^= (h >>> 33);
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= (h >>> 33);
+    return h;
+  }
+}
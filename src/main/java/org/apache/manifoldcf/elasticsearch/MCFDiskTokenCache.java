@@ -0,0 +1,616 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class is a disk-backed tier of the access token cache, which survives
+* node restarts.  Users' access tokens are appended to a single file, each record
+* carrying the time the tokens were fetched and the time they expire, and a
+* checksum so that a record torn by a crash is detected and dropped.  Only the
+* location of each user's latest record is kept in memory; the tokens themselves
+* are read from the file when they are asked for.
+*
+* The file is indexed by load(), which is meant to be run in the background at
+* startup; until it has finished, every lookup misses.  Once the file holds more
+* superseded or expired records than live ones, it is compacted in the background
+* by copying the live records to a new file, which is then renamed over the old
+* one; if anything fails, the old file is kept.  Lookups miss and writes are dropped
+* while the file is being loaded or compacted, since the tokens are cached in
+* memory as well.  All public methods are thread-safe.
+*/
+public class MCFDiskTokenCache implements ToXContent
+{
+  /** A logger we can use */
+  private static final ESLogger LOG = Loggers.getLogger(MCFDiskTokenCache.class);
+
+  /** First bytes of the file, "MCFT" */
+  protected static final int MAGIC = 0x4d434654;
+  protected static final int VERSION = 1;
+  protected static final int HEADER_LENGTH = 8;
+  /** Length of the record length and checksum preceding each record's body */
+  protected static final int RECORD_OVERHEAD = 8;
+  /** Longest record body that is believed when loading, so that garbage can't cause a huge allocation */
+  protected static final int MAX_BODY_LENGTH = 64 * 1024 * 1024;
+  /** Files smaller than this are never compacted */
+  protected static final long MIN_COMPACTION_SIZE = 1024L * 1024L;
+  protected static final Charset UTF8 = Charset.forName("utf-8");
+
+  protected final File file;
+  protected final long compactionInterval;
+  /** Location of each user's latest record, keyed by canonical user identity */
+  protected final ConcurrentMap<String,Location> index = new ConcurrentHashMap<String,Location>();
+  /** Reads hold the read lock; appends, loading, compaction and closing hold the write lock */
+  protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  /** Runs the compactions */
+  protected final ScheduledExecutorService compactionExecutor;
+
+  // Guarded by lock
+  protected RandomAccessFile randomAccessFile = null;
+  protected FileChannel channel = null;
+  protected long fileLength = 0L;
+  protected long liveBytes = 0L;
+  protected volatile boolean loaded = false;
+  protected boolean closed = false;
+
+  protected final AtomicLong hits = new AtomicLong();
+  protected final AtomicLong misses = new AtomicLong();
+  protected final AtomicLong writes = new AtomicLong();
+  protected final AtomicLong droppedWrites = new AtomicLong();
+  protected final AtomicLong compactions = new AtomicLong();
+
+  /** Constructor.
+  *@param file is the file the access tokens are kept in.  It is created if it doesn't exist.
+  *@param compactionInterval is how often, in milliseconds, the file is checked for compaction; 0 disables compaction.
+  */
+  public MCFDiskTokenCache(File file, long compactionInterval)
+  {
+    this.file = file;
+    this.compactionInterval = compactionInterval;
+    compactionExecutor = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("mcf_token_disk"));
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  /** Check whether the file has been loaded, so that lookups may hit.
+  */
+  public boolean isLoaded()
+  {
+    return loaded;
+  }
+
+  /** Open the file and index the records it holds, dropping any torn or corrupt
+  * tail, and start compacting it periodically.  Records that have expired are
+  * not indexed.
+  */
+  public void load()
+  {
+    int records = 0;
+    lock.writeLock().lock();
+    try
+    {
+      if (closed || loaded)
+        return;
+      File parent = file.getAbsoluteFile().getParentFile();
+      if (parent != null)
+        parent.mkdirs();
+      randomAccessFile = new RandomAccessFile(file,"rw");
+      channel = randomAccessFile.getChannel();
+      if (!hasValidHeader())
+      {
+        if (channel.size() > 0L)
+          LOG.warn("Discarding unrecognized access token cache file "+file);
+        channel.truncate(0L);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(channel,header,0L);
+        fileLength = HEADER_LENGTH;
+      }
+      else
+      {
+        records = scan();
+        if (fileLength < channel.size())
+        {
+          LOG.warn("Discarding "+(channel.size() - fileLength)+" bytes of torn or corrupt records at the end of access token cache file "+file);
+          channel.truncate(fileLength);
+        }
+      }
+      loaded = true;
+    }
+    catch (IOException e)
+    {
+      LOG.warn("Failed to load access token cache file "+file+": "+e.getMessage(),e);
+      closeFile();
+      return;
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+    LOG.info("Loaded "+index.size()+" users' access tokens from "+records+" records of "+file);
+    if (compactionInterval > 0L)
+    {
+      compactionExecutor.scheduleWithFixedDelay(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            maybeCompact();
+          }
+        },compactionInterval,compactionInterval,TimeUnit.MILLISECONDS);
+    }
+  }
+
+  protected boolean hasValidHeader()
+    throws IOException
+  {
+    if (channel.size() < HEADER_LENGTH)
+      return false;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    readFully(channel,header,0L);
+    header.flip();
+    return header.getInt() == MAGIC && header.getInt() == VERSION;
+  }
+
+  /** Index the records of the file, stopping at the first one that is incomplete or corrupt.
+  * Sets fileLength to the end of the last good record.
+  *@return the number of good records.
+  */
+  protected int scan()
+    throws IOException
+  {
+    long currentTime = System.currentTimeMillis();
+    long position = HEADER_LENGTH;
+    int records = 0;
+    channel.position(position);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),65536));
+    CRC32 crc = new CRC32();
+    byte[] body = new byte[4096];
+    while (true)
+    {
+      int bodyLength;
+      int checksum;
+      try
+      {
+        bodyLength = in.readInt();
+        checksum = in.readInt();
+        if (bodyLength < 0 || bodyLength > MAX_BODY_LENGTH)
+          break;
+        if (body.length < bodyLength)
+          body = new byte[Math.max(bodyLength,body.length * 2)];
+        in.readFully(body,0,bodyLength);
+      }
+      catch (EOFException e)
+      {
+        break;
+      }
+      crc.reset();
+      crc.update(body,0,bodyLength);
+      if ((int)crc.getValue() != checksum)
+        break;
+      ByteBuffer buffer = ByteBuffer.wrap(body,0,bodyLength);
+      long created = buffer.getLong();
+      long expiration = buffer.getLong();
+      String userKey = readString(buffer);
+      int recordLength = RECORD_OVERHEAD + bodyLength;
+      // Later records supersede earlier ones
+      Location previous;
+      if (currentTime >= expiration)
+        previous = index.remove(userKey);
+      else
+      {
+        previous = index.put(userKey,new Location(position,recordLength,created,expiration));
+        liveBytes += recordLength;
+      }
+      if (previous != null)
+        liveBytes -= previous.length;
+      position += recordLength;
+      records++;
+    }
+    fileLength = position;
+    return records;
+  }
+
+  /** Look up a user's access tokens.
+  *@param userKey is the canonical user identity.
+  *@return the entry, with the time the tokens were fetched and the time they
+  * expire, or null if there is none, it has expired, or the file is busy.
+  */
+  public MCFLRUCache.Entry<List<String>> get(String userKey)
+  {
+    if (!loaded || !lock.readLock().tryLock())
+    {
+      misses.incrementAndGet();
+      return null;
+    }
+    try
+    {
+      Location location = index.get(userKey);
+      if (location == null || channel == null || System.currentTimeMillis() >= location.expiration)
+      {
+        misses.incrementAndGet();
+        return null;
+      }
+      ByteBuffer record = ByteBuffer.allocate(location.length);
+      readFully(channel,record,location.offset);
+      record.flip();
+      List<String> tokens = decode(record,userKey);
+      if (tokens == null)
+      {
+        misses.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      return new MCFLRUCache.Entry<List<String>>(tokens,location.created,location.expiration);
+    }
+    catch (IOException e)
+    {
+      LOG.warn("Failed to read access tokens from "+file+": "+e.getMessage(),e);
+      misses.incrementAndGet();
+      return null;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Save a user's access tokens, superseding any saved before.
+  *@param userKey is the canonical user identity.
+  *@param tokens are the access tokens.
+  *@param created is the time the tokens were fetched.
+  *@param expiration is the time the tokens expire, or Long.MAX_VALUE if they never do.
+  */
+  public void put(String userKey, List<String> tokens, long created, long expiration)
+  {
+    ByteBuffer record = encode(userKey,tokens,created,expiration);
+    if (!loaded || !lock.writeLock().tryLock())
+    {
+      droppedWrites.incrementAndGet();
+      return;
+    }
+    try
+    {
+      if (channel == null)
+      {
+        droppedWrites.incrementAndGet();
+        return;
+      }
+      long position = fileLength;
+      int recordLength = record.remaining();
+      writeFully(channel,record,position);
+      fileLength += recordLength;
+      liveBytes += recordLength;
+      Location previous = index.put(userKey,new Location(position,recordLength,created,expiration));
+      if (previous != null)
+        liveBytes -= previous.length;
+      writes.incrementAndGet();
+    }
+    catch (IOException e)
+    {
+      LOG.warn("Failed to write access tokens to "+file+": "+e.getMessage(),e);
+      droppedWrites.incrementAndGet();
+      // Whatever was partly written will be overwritten by the next record, or dropped when loading
+      try
+      {
+        channel.truncate(fileLength);
+      }
+      catch (IOException e2)
+      {
+        // The next load will find the torn record
+      }
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Get the number of users whose access tokens are saved, including any that have expired but not yet been compacted away.
+  */
+  public int size()
+  {
+    return index.size();
+  }
+
+  /** Compact the file if at least half of it is superseded or expired records.
+  */
+  public void maybeCompact()
+  {
+    long currentTime = System.currentTimeMillis();
+    long expiredBytes = 0L;
+    for (Location location : index.values())
+    {
+      if (currentTime >= location.expiration)
+        expiredBytes += location.length;
+    }
+    long length;
+    long live;
+    lock.readLock().lock();
+    try
+    {
+      length = fileLength;
+      live = liveBytes - expiredBytes;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+    if (length >= MIN_COMPACTION_SIZE && (length - HEADER_LENGTH - live) * 2L >= length)
+      compact();
+  }
+
+  /** Rewrite the file with only the live records.
+  */
+  public void compact()
+  {
+    File tempFile = new File(file.getPath()+".tmp");
+    long startTime = System.currentTimeMillis();
+    long oldLength;
+    lock.writeLock().lock();
+    try
+    {
+      if (channel == null)
+        return;
+      oldLength = fileLength;
+      Map<String,Location> newIndex = new HashMap<String,Location>();
+      long position = HEADER_LENGTH;
+      RandomAccessFile tempRandomAccessFile = new RandomAccessFile(tempFile,"rw");
+      boolean replaced = false;
+      try
+      {
+        FileChannel tempChannel = tempRandomAccessFile.getChannel();
+        tempChannel.truncate(0L);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(tempChannel,header,0L);
+        for (Map.Entry<String,Location> entry : index.entrySet())
+        {
+          Location location = entry.getValue();
+          if (startTime >= location.expiration)
+            continue;
+          ByteBuffer record = ByteBuffer.allocate(location.length);
+          readFully(channel,record,location.offset);
+          record.flip();
+          writeFully(tempChannel,record,position);
+          newIndex.put(entry.getKey(),new Location(position,location.length,location.created,location.expiration));
+          position += location.length;
+        }
+        tempChannel.force(true);
+        // Renaming over the old file replaces it in one step, so a complete file is always
+        // there; the new file stays open across the rename, so nothing needs reopening
+        if (!tempFile.renameTo(file))
+          throw new IOException("Couldn't rename "+tempFile+" to "+file);
+        replaced = true;
+      }
+      finally
+      {
+        if (!replaced)
+          tempRandomAccessFile.close();
+      }
+      closeFile();
+      randomAccessFile = tempRandomAccessFile;
+      channel = tempRandomAccessFile.getChannel();
+      index.clear();
+      index.putAll(newIndex);
+      fileLength = position;
+      liveBytes = position - HEADER_LENGTH;
+      compactions.incrementAndGet();
+    }
+    catch (IOException e)
+    {
+      // The old file is untouched, and stays in use
+      LOG.warn("Failed to compact access token cache file "+file+"; keeping the uncompacted file: "+e.getMessage(),e);
+      tempFile.delete();
+      return;
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+    LOG.info("Compacted access token cache file "+file+" from "+oldLength+" to "+fileLength+" bytes in "+(System.currentTimeMillis() - startTime)+" ms");
+  }
+
+  /** Stop compacting and close the file.
+  */
+  public void close()
+  {
+    compactionExecutor.shutdownNow();
+    lock.writeLock().lock();
+    try
+    {
+      closed = true;
+      loaded = false;
+      closeFile();
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+  protected void closeFile()
+  {
+    channel = null;
+    if (randomAccessFile != null)
+    {
+      try
+      {
+        randomAccessFile.close();
+      }
+      catch (IOException e)
+      {
+        LOG.debug("Failed to close "+file,e);
+      }
+      randomAccessFile = null;
+    }
+  }
+
+  /** Encode a record: its body length and checksum, then the body, which holds the
+  * times, the user identity and the access tokens, each string as a length and UTF-8 bytes.
+  */
+  protected static ByteBuffer encode(String userKey, List<String> tokens, long created, long expiration)
+  {
+    byte[] keyBytes = userKey.getBytes(UTF8);
+    byte[][] tokenBytes = new byte[tokens.size()][];
+    int bodyLength = 8 + 8 + 4 + keyBytes.length + 4;
+    for (int i = 0; i < tokenBytes.length; i++)
+    {
+      tokenBytes[i] = tokens.get(i).getBytes(UTF8);
+      bodyLength += 4 + tokenBytes[i].length;
+    }
+    ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + bodyLength);
+    record.putInt(bodyLength);
+    record.putInt(0);
+    record.putLong(created);
+    record.putLong(expiration);
+    record.putInt(keyBytes.length).put(keyBytes);
+    record.putInt(tokenBytes.length);
+    for (byte[] bytes : tokenBytes)
+    {
+      record.putInt(bytes.length).put(bytes);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record.array(),RECORD_OVERHEAD,bodyLength);
+    record.putInt(4,(int)crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  /** Decode the access tokens of a record.
+  *@return the tokens, or null if the record is corrupt or belongs to another user.
+  */
+  protected static List<String> decode(ByteBuffer record, String userKey)
+  {
+    int bodyLength = record.getInt();
+    int checksum = record.getInt();
+    if (bodyLength != record.remaining())
+      return null;
+    CRC32 crc = new CRC32();
+    crc.update(record.array(),record.arrayOffset() + record.position(),bodyLength);
+    if ((int)crc.getValue() != checksum)
+      return null;
+    // Skip the times
+    record.position(record.position() + 16);
+    if (!userKey.equals(readString(record)))
+      return null;
+    int tokenCount = record.getInt();
+    List<String> tokens = new ArrayList<String>(tokenCount);
+    for (int i = 0; i < tokenCount; i++)
+    {
+      tokens.add(readString(record));
+    }
+    return Collections.unmodifiableList(tokens);
+  }
+
+  protected static String readString(ByteBuffer buffer)
+  {
+    int length = buffer.getInt();
+    String rval = new String(buffer.array(),buffer.arrayOffset() + buffer.position(),length,UTF8);
+    buffer.position(buffer.position() + length);
+    return rval;
+  }
+
+  protected static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+    throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      int amt = channel.read(buffer,position);
+      if (amt < 0)
+        throw new EOFException("Unexpected end of file");
+      position += amt;
+    }
+  }
+
+  protected static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+    throws IOException
+  {
+    while (buffer.hasRemaining())
+    {
+      position += channel.write(buffer,position);
+    }
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    long length;
+    long live;
+    lock.readLock().lock();
+    try
+    {
+      length = fileLength;
+      live = liveBytes;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+    builder.startObject("disk_cache");
+    builder.field("file",file.getPath());
+    builder.field("loaded",loaded);
+    builder.field("entries",index.size());
+    builder.field("file_bytes",length);
+    builder.field("live_bytes",live);
+    builder.field("hits",hits.get());
+    builder.field("misses",misses.get());
+    builder.field("writes",writes.get());
+    builder.field("dropped_writes",droppedWrites.get());
+    builder.field("compactions",compactions.get());
+    builder.endObject();
+    return builder;
+  }
+
+  /** Where a user's latest record is, and when its tokens were fetched and expire.
+  */
+  protected static class Location
+  {
+    public final long offset;
+    public final int length;
+    public final long created;
+    public final long expiration;
+
+    public Location(long offset, int length, long created, long expiration)
+    {
+      this.offset = offset;
+      this.length = length;
+      this.created = created;
+      this.expiration = expiration;
+    }
+  }
+}
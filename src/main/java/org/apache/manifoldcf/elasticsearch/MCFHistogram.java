@@ -0,0 +1,100 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class is a lock-free histogram of non-negative values, with one bucket
+* per power of two.  Percentiles are therefore approximate: they are reported as
+* the upper bound of the bucket they fall into, capped at the largest value seen.
+*/
+public class MCFHistogram implements ToXContent
+{
+  /** Bucket i counts the values v with 2^(i-1) <= v < 2^i; bucket 0 counts zero */
+  protected static final int BUCKET_COUNT = 64;
+
+  protected final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  protected final AtomicLong count = new AtomicLong();
+  protected final AtomicLong sum = new AtomicLong();
+  protected final AtomicLong max = new AtomicLong();
+
+  /** Record a value.  Negative values are recorded as zero.
+  */
+  public void record(long value)
+  {
+    if (value < 0L)
+      value = 0L;
+    buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    while (true)
+    {
+      long currentMax = max.get();
+      if (value <= currentMax || max.compareAndSet(currentMax,value))
+        break;
+    }
+  }
+
+  public long getCount()
+  {
+    return count.get();
+  }
+
+  /** Estimate a percentile.
+  *@param percentile is the percentile, between 0 and 100.
+  *@return the estimate, or 0 if nothing has been recorded.
+  */
+  public long percentile(double percentile)
+  {
+    long total = count.get();
+    if (total == 0L)
+      return 0L;
+    long rank = (long)Math.ceil(total * percentile / 100.0);
+    long seen = 0L;
+    for (int i = 0; i < BUCKET_COUNT; i++)
+    {
+      seen += buckets.get(i);
+      if (seen >= rank)
+      {
+        long upperBound = (i == 0)?0L:((i >= 63)?Long.MAX_VALUE:(1L << i) - 1L);
+        return Math.min(upperBound,max.get());
+      }
+    }
+    return max.get();
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    long total = count.get();
+    builder.field("count",total);
+    builder.field("sum",sum.get());
+    builder.field("mean",(total == 0L)?0L:sum.get() / total);
+    builder.field("max",max.get());
+    builder.field("p50",percentile(50.0));
+    builder.field("p90",percentile(90.0));
+    builder.field("p99",percentile(99.0));
+    return builder;
+  }
+}
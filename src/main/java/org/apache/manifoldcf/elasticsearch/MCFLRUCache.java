@@ -0,0 +1,182 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+/** This class is a size-bounded, least-recently-used cache, whose entries
+* optionally expire a fixed time after they were stored.  All public methods
+* are thread-safe.
+*/
+public class MCFLRUCache<K,V> implements MCFCache<K,V>
+{
+  protected final int maxEntries;
+  protected final long timeToLive;
+  protected final long retention;
+  protected final LinkedHashMap<K,Entry<V>> map;
+
+  /** Constructor.
+  *@param maxEntries is the maximum number of entries kept before the least recently
+  * used one is evicted.
+  *@param timeToLive is the lifetime of an entry in milliseconds, or 0 if entries never expire.
+  */
+  public MCFLRUCache(int maxEntries, long timeToLive)
+  {
+    this(maxEntries,timeToLive,0L);
+  }
+
+  /** Constructor.
+  *@param maxEntries is the maximum number of entries kept before the least recently
+  * used one is evicted.
+  *@param timeToLive is the lifetime of an entry in milliseconds, or 0 if entries never expire.
+  *@param retention is how long in milliseconds an expired entry is kept, so that it can still
+  * be looked up with getStaleEntry().
+  */
+  public MCFLRUCache(int maxEntries, long timeToLive, long retention)
+  {
+    this.maxEntries = maxEntries;
+    this.timeToLive = timeToLive;
+    this.retention = retention;
+    this.map = new LinkedHashMap<K,Entry<V>>(16,0.75f,true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      // Inside a Map subclass, a bare Entry would be the inherited Map.Entry
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K,MCFLRUCache.Entry<V>> eldest)
+      {
+        return size() > MCFLRUCache.this.maxEntries;
+      }
+    };
+  }
+
+  @Override
+  public V get(K key)
+  {
+    Entry<V> entry = getEntry(key);
+    return (entry == null)?null:entry.value;
+  }
+
+  @Override
+  public synchronized Entry<V> getEntry(K key)
+  {
+    Entry<V> entry = map.get(key);
+    if (entry == null)
+      return null;
+    long currentTime = System.currentTimeMillis();
+    if (entry.isExpired(currentTime))
+    {
+      if (!entry.isRetained(currentTime,retention))
+        map.remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  @Override
+  public synchronized Entry<V> getStaleEntry(K key)
+  {
+    Entry<V> entry = map.get(key);
+    if (entry == null)
+      return null;
+    if (!entry.isRetained(System.currentTimeMillis(),retention))
+    {
+      map.remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  @Override
+  public void put(K key, V value)
+  {
+    put(key,value,System.currentTimeMillis());
+  }
+
+  @Override
+  public synchronized void put(K key, V value, long created)
+  {
+    long expiration = (timeToLive > 0L)?created + timeToLive:Long.MAX_VALUE;
+    map.put(key,new Entry<V>(value,created,expiration));
+  }
+
+  @Override
+  public synchronized void remove(K key)
+  {
+    map.remove(key);
+  }
+
+  @Override
+  public synchronized void clear()
+  {
+    map.clear();
+  }
+
+  @Override
+  public synchronized List<K> keys(int maxKeys)
+  {
+    List<K> rval = new ArrayList<K>(Math.min(maxKeys,map.size()));
+    // Access order iterates from least to most recently used
+    List<K> allKeys = new ArrayList<K>(map.keySet());
+    for (int i = allKeys.size() - 1; i >= 0 && rval.size() < maxKeys; i--)
+    {
+      rval.add(allKeys.get(i));
+    }
+    return rval;
+  }
+
+  @Override
+  public synchronized int size()
+  {
+    return map.size();
+  }
+
+  /** A cached value, with the time it was stored and its expiration time.
+  */
+  public static class Entry<V>
+  {
+    public final V value;
+    public final long created;
+    public final long expiration;
+
+    public Entry(V value, long created, long expiration)
+    {
+      this.value = value;
+      this.created = created;
+      this.expiration = expiration;
+    }
+
+    /** Get the age of the entry, in milliseconds.
+    */
+    public long getAge(long currentTime)
+    {
+      return currentTime - created;
+    }
+
+    public boolean isExpired(long currentTime)
+    {
+      return currentTime >= expiration;
+    }
+
+    public boolean isRetained(long currentTime, long retention)
+    {
+      return expiration == Long.MAX_VALUE || currentTime < expiration + retention;
+    }
+  }
+}
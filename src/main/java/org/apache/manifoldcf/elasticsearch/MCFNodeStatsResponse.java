@@ -0,0 +1,84 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+
+/** This class is the transport response carrying one node's MCF authorizer
+* statistics.  The statistics travel as the JSON object the node rendered.
+*/
+public class MCFNodeStatsResponse extends TransportResponse
+{
+  protected String nodeId;
+  protected String nodeName;
+  protected BytesReference stats;
+
+  public MCFNodeStatsResponse()
+  {
+  }
+
+  public MCFNodeStatsResponse(String nodeId, String nodeName, BytesReference stats)
+  {
+    this.nodeId = nodeId;
+    this.nodeName = nodeName;
+    this.stats = stats;
+  }
+
+  public String getNodeId()
+  {
+    return nodeId;
+  }
+
+  public String getNodeName()
+  {
+    return nodeName;
+  }
+
+  /** Get the statistics, as a JSON object.
+  */
+  public BytesReference getStats()
+  {
+    return stats;
+  }
+
+  @Override
+  public void readFrom(StreamInput in)
+    throws IOException
+  {
+    super.readFrom(in);
+    nodeId = in.readString();
+    nodeName = in.readString();
+    stats = in.readBytesReference();
+  }
+
+  @Override
+  public void writeTo(StreamOutput out)
+    throws IOException
+  {
+    super.writeTo(out);
+    out.writeString(nodeId);
+    out.writeString(nodeName);
+    out.writeBytesReference(stats);
+  }
+}
@@ -0,0 +1,102 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+/** This class gathers the MCF authorizer statistics of all the nodes in the cluster,
+* together with the nodes that failed to report them.
+*/
+public class MCFNodesStatsResponse implements ToXContent
+{
+  protected final String clusterName;
+  protected final List<MCFNodeStatsResponse> nodes;
+  protected final Map<String,String> failures;
+
+  /** Constructor.
+  *@param clusterName is the name of the cluster.
+  *@param nodes are the statistics of the nodes that responded.
+  *@param failures maps the ids of the nodes that did not respond to the reason.
+  */
+  public MCFNodesStatsResponse(String clusterName, List<MCFNodeStatsResponse> nodes, Map<String,String> failures)
+  {
+    this.clusterName = clusterName;
+    this.nodes = nodes;
+    this.failures = failures;
+  }
+
+  public List<MCFNodeStatsResponse> getNodes()
+  {
+    return nodes;
+  }
+
+  public Map<String,String> getFailures()
+  {
+    return failures;
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    builder.field("cluster_name",clusterName);
+    builder.startObject("nodes");
+    for (MCFNodeStatsResponse node : nodes)
+    {
+      builder.startObject(node.getNodeId());
+      builder.field("name",node.getNodeName());
+      XContentParser parser = JsonXContent.jsonXContent.createParser(node.getStats());
+      try
+      {
+        parser.nextToken();
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME)
+        {
+          builder.field(parser.currentName());
+          parser.nextToken();
+          builder.copyCurrentStructure(parser);
+        }
+      }
+      finally
+      {
+        parser.close();
+      }
+      builder.endObject();
+    }
+    builder.endObject();
+    if (failures.size() > 0)
+    {
+      builder.startArray("failures");
+      for (Map.Entry<String,String> failure : failures.entrySet())
+      {
+        builder.startObject();
+        builder.field("node_id",failure.getKey());
+        builder.field("reason",failure.getValue());
+        builder.endObject();
+      }
+      builder.endArray();
+    }
+    return builder;
+  }
+}
@@ -0,0 +1,522 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class is a cache of users' access tokens that keeps the tokens outside
+* the Java heap, so that a large cache neither grows the heap nor lengthens
+* garbage collections.  Only the user identities, times and locations of the
+* entries are kept on the heap.
+*
+* The cache is split into segments by user, each with its own lock and its own
+* direct buffer.  A segment's buffer is written as a ring: each entry is appended
+* after the previous one, and when there is no room left the oldest entries are
+* overwritten.  An entry that was looked up since it was stored is given a second
+* chance: it is appended again rather than dropped, so that frequently used users
+* stay cached, much as in a least-recently-used cache.
+*
+* An entry's tokens are stored as a count followed by each token's length and
+* UTF-8 bytes, lengths being variable-length integers.  Tokens are decoded on each
+* lookup; with a token dictionary, the strings of common tokens are shared rather
+* than created again.  All public methods are thread-safe.
+*/
+public class MCFOffHeapTokenCache implements MCFCache<String,List<String>>, ToXContent
+{
+  protected static final Charset UTF8 = Charset.forName("utf-8");
+  /** Number of segments, which must be a power of two */
+  protected static final int SEGMENT_COUNT = 16;
+
+  protected final Segment[] segments;
+  protected final long capacity;
+  protected final long timeToLive;
+  protected final long retention;
+  /** Shares the strings of common tokens, or null if they are not shared */
+  protected final MCFTokenDictionary dictionary;
+
+  /** Orders the uses of entries across segments, for keys() */
+  protected final AtomicLong useClock = new AtomicLong();
+
+  protected final AtomicLong evictions = new AtomicLong();
+  protected final AtomicLong reinsertions = new AtomicLong();
+  protected final AtomicLong rejections = new AtomicLong();
+
+  /** Constructor.
+  *@param capacity is the off-heap memory, in bytes, used for the access tokens.
+  *@param maxEntries is the maximum number of entries kept before the oldest ones are evicted.
+  *@param timeToLive is the lifetime of an entry in milliseconds, or 0 if entries never expire.
+  *@param retention is how long in milliseconds an expired entry is kept, so that it can still
+  * be looked up with getStaleEntry().
+  *@param dictionary shares the strings of common tokens, or is null.
+  */
+  public MCFOffHeapTokenCache(long capacity, int maxEntries, long timeToLive, long retention, MCFTokenDictionary dictionary)
+  {
+    this.timeToLive = timeToLive;
+    this.retention = retention;
+    this.dictionary = dictionary;
+    int segmentCapacity = (int)Math.min(capacity / SEGMENT_COUNT,(long)Integer.MAX_VALUE);
+    int segmentMaxEntries = Math.max(maxEntries / SEGMENT_COUNT,1);
+    segments = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < SEGMENT_COUNT; i++)
+    {
+      segments[i] = new Segment(segmentCapacity,segmentMaxEntries);
+    }
+    this.capacity = (long)segmentCapacity * SEGMENT_COUNT;
+  }
+
+  protected Segment segmentFor(String key)
+  {
+    int hash = key.hashCode();
+    // Spread the bits, as the low bits of string hashes are poorly distributed
+    hash ^= (hash >>> 16);
+    return segments[hash & (SEGMENT_COUNT - 1)];
+  }
+
+  @Override
+  public List<String> get(String key)
+  {
+    MCFLRUCache.Entry<List<String>> entry = getEntry(key);
+    return (entry == null)?null:entry.value;
+  }
+
+  @Override
+  public MCFLRUCache.Entry<List<String>> getEntry(String key)
+  {
+    return segmentFor(key).get(key,false);
+  }
+
+  @Override
+  public MCFLRUCache.Entry<List<String>> getStaleEntry(String key)
+  {
+    return segmentFor(key).get(key,true);
+  }
+
+  @Override
+  public void put(String key, List<String> value)
+  {
+    put(key,value,System.currentTimeMillis());
+  }
+
+  @Override
+  public void put(String key, List<String> value, long created)
+  {
+    long expiration = (timeToLive > 0L)?created + timeToLive:Long.MAX_VALUE;
+    segmentFor(key).put(key,encode(value),created,expiration);
+  }
+
+  @Override
+  public void remove(String key)
+  {
+    segmentFor(key).remove(key);
+  }
+
+  @Override
+  public void clear()
+  {
+    for (Segment segment : segments)
+    {
+      segment.clear();
+    }
+  }
+
+  /** Get the keys, most recently used first, including any whose entries have expired but not yet been purged.
+  *@param maxKeys is the maximum number of keys to return.
+  */
+  @Override
+  public List<String> keys(int maxKeys)
+  {
+    List<Slot> slots = new ArrayList<Slot>();
+    for (Segment segment : segments)
+    {
+      slots.addAll(segment.mostRecentlyUsed(maxKeys));
+    }
+    Collections.sort(slots,MOST_RECENTLY_USED_FIRST);
+    List<String> rval = new ArrayList<String>(Math.min(maxKeys,slots.size()));
+    for (Slot slot : slots)
+    {
+      if (rval.size() >= maxKeys)
+        break;
+      rval.add(slot.key);
+    }
+    return rval;
+  }
+
+  @Override
+  public int size()
+  {
+    int rval = 0;
+    for (Segment segment : segments)
+    {
+      rval += segment.size();
+    }
+    return rval;
+  }
+
+  /** Get the off-heap memory, in bytes, reserved for the access tokens.
+  */
+  public long getCapacity()
+  {
+    return capacity;
+  }
+
+  /** Get the off-heap memory, in bytes, holding live entries.
+  */
+  public long getUsedBytes()
+  {
+    long rval = 0L;
+    for (Segment segment : segments)
+    {
+      rval += segment.usedBytes();
+    }
+    return rval;
+  }
+
+  /** Encode access tokens as a count followed by each token's length and bytes.
+  */
+  protected static byte[] encode(List<String> tokens)
+  {
+    byte[][] tokenBytes = new byte[tokens.size()][];
+    int length = varIntLength(tokenBytes.length);
+    for (int i = 0; i < tokenBytes.length; i++)
+    {
+      tokenBytes[i] = tokens.get(i).getBytes(UTF8);
+      length += varIntLength(tokenBytes[i].length) + tokenBytes[i].length;
+    }
+    byte[] rval = new byte[length];
+    int position = writeVarInt(rval,0,tokenBytes.length);
+    for (byte[] bytes : tokenBytes)
+    {
+      position = writeVarInt(rval,position,bytes.length);
+      System.arraycopy(bytes,0,rval,position,bytes.length);
+      position += bytes.length;
+    }
+    return rval;
+  }
+
+  /** Decode access tokens encoded by encode().
+  */
+  protected List<String> decode(byte[] bytes)
+  {
+    int[] position = new int[]{0};
+    int tokenCount = readVarInt(bytes,position);
+    List<String> tokens = new ArrayList<String>(tokenCount);
+    for (int i = 0; i < tokenCount; i++)
+    {
+      int tokenLength = readVarInt(bytes,position);
+      if (dictionary != null)
+        tokens.add(dictionary.intern(bytes,position[0],tokenLength,UTF8));
+      else
+        tokens.add(new String(bytes,position[0],tokenLength,UTF8));
+      position[0] += tokenLength;
+    }
+    return Collections.unmodifiableList(tokens);
+  }
+
+  protected static int varIntLength(int value)
+  {
+    int rval = 1;
+    while ((value & ~0x7f) != 0)
+    {
+      value >>>= 7;
+      rval++;
+    }
+    return rval;
+  }
+
+  protected static int writeVarInt(byte[] bytes, int position, int value)
+  {
+    while ((value & ~0x7f) != 0)
+    {
+      bytes[position++] = (byte)((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    bytes[position++] = (byte)value;
+    return position;
+  }
+
+  protected static int readVarInt(byte[] bytes, int[] position)
+  {
+    int rval = 0;
+    int shift = 0;
+    while (true)
+    {
+      byte b = bytes[position[0]++];
+      rval |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return rval;
+      shift += 7;
+    }
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    builder.startObject("off_heap_token_cache");
+    builder.field("capacity_bytes",capacity);
+    builder.field("used_bytes",getUsedBytes());
+    builder.field("entries",size());
+    builder.field("evictions",evictions.get());
+    builder.field("reinsertions",reinsertions.get());
+    builder.field("rejections",rejections.get());
+    builder.endObject();
+    return builder;
+  }
+
+  /** One segment of the cache: a ring buffer of encoded entries, and where each user's entry is.
+  */
+  protected class Segment
+  {
+    protected final ByteBuffer buffer;
+    protected final int maxEntries;
+    /** Each user's current slot */
+    protected final Map<String,Slot> index = new HashMap<String,Slot>();
+    /** Every slot in the buffer, oldest first, including those of removed or replaced entries */
+    protected final ArrayDeque<Slot> ring = new ArrayDeque<Slot>();
+    /** Where the next entry is written */
+    protected int writePosition = 0;
+    protected long usedBytes = 0L;
+
+    public Segment(int capacity, int maxEntries)
+    {
+      this.buffer = ByteBuffer.allocateDirect(capacity);
+      this.maxEntries = maxEntries;
+    }
+
+    public MCFLRUCache.Entry<List<String>> get(String key, boolean allowStale)
+    {
+      byte[] bytes;
+      Slot slot;
+      synchronized (this)
+      {
+        slot = index.get(key);
+        if (slot == null)
+          return null;
+        long currentTime = System.currentTimeMillis();
+        if (currentTime >= slot.expiration && (!allowStale || !isRetained(slot,currentTime)))
+        {
+          if (!isRetained(slot,currentTime))
+            discard(slot);
+          return null;
+        }
+        slot.referenced = true;
+        slot.lastUsed = useClock.incrementAndGet();
+        bytes = new byte[slot.length];
+        buffer.position(slot.offset);
+        buffer.get(bytes,0,slot.length);
+      }
+      // Decode outside the lock
+      return new MCFLRUCache.Entry<List<String>>(decode(bytes),slot.created,slot.expiration);
+    }
+
+    public synchronized void put(String key, byte[] bytes, long created, long expiration)
+    {
+      if (bytes.length > buffer.capacity())
+      {
+        rejections.incrementAndGet();
+        Slot previous = index.get(key);
+        if (previous != null)
+          discard(previous);
+        return;
+      }
+      Slot previous = index.get(key);
+      if (previous != null)
+        discard(previous);
+      List<Slot> reinsert = new ArrayList<Slot>();
+      List<byte[]> reinsertBytes = new ArrayList<byte[]>();
+      write(new Slot(key,created,expiration,useClock.incrementAndGet()),bytes,reinsert,reinsertBytes);
+      // Give entries that were used since they were stored a second chance; each is only given one
+      for (int i = 0; i < reinsert.size(); i++)
+      {
+        Slot slot = reinsert.get(i);
+        if (!index.containsKey(slot.key))
+        {
+          reinsertions.incrementAndGet();
+          write(new Slot(slot.key,slot.created,slot.expiration,slot.lastUsed),reinsertBytes.get(i),reinsert,reinsertBytes);
+        }
+      }
+    }
+
+    /** Append an entry, evicting the oldest entries to make room.  Evicted entries that
+    * were referenced are added to reinsert, with their bytes.
+    */
+    protected void write(Slot slot, byte[] bytes, List<Slot> reinsert, List<byte[]> reinsertBytes)
+    {
+      int length = bytes.length;
+      while (true)
+      {
+        Slot oldest = ring.peekFirst();
+        if (oldest == null)
+        {
+          if (writePosition + length > buffer.capacity())
+            writePosition = 0;
+          break;
+        }
+        if (oldest.offset >= writePosition)
+        {
+          if (writePosition + length <= oldest.offset)
+            break;
+          // The oldest entry is in the way
+          evict(reinsert,reinsertBytes);
+        }
+        else
+        {
+          // The oldest entry is behind, so there is free space up to the end of the buffer
+          if (writePosition + length <= buffer.capacity())
+            break;
+          writePosition = 0;
+        }
+      }
+      while (index.size() >= maxEntries && !ring.isEmpty())
+      {
+        evict(reinsert,reinsertBytes);
+      }
+      slot.offset = writePosition;
+      slot.length = length;
+      buffer.position(writePosition);
+      buffer.put(bytes,0,length);
+      writePosition += length;
+      ring.addLast(slot);
+      index.put(slot.key,slot);
+      usedBytes += length;
+    }
+
+    /** Remove the oldest slot from the ring.
+    */
+    protected void evict(List<Slot> reinsert, List<byte[]> reinsertBytes)
+    {
+      Slot oldest = ring.removeFirst();
+      if (oldest.live)
+      {
+        oldest.live = false;
+        index.remove(oldest.key);
+        usedBytes -= oldest.length;
+        if (oldest.referenced && System.currentTimeMillis() < oldest.expiration)
+        {
+          byte[] bytes = new byte[oldest.length];
+          buffer.position(oldest.offset);
+          buffer.get(bytes,0,oldest.length);
+          reinsert.add(oldest);
+          reinsertBytes.add(bytes);
+        }
+        else
+          evictions.incrementAndGet();
+      }
+    }
+
+    /** Forget a slot; its space is reclaimed when the ring reaches it.
+    */
+    protected void discard(Slot slot)
+    {
+      if (slot.live)
+      {
+        slot.live = false;
+        index.remove(slot.key);
+        usedBytes -= slot.length;
+      }
+    }
+
+    protected boolean isRetained(Slot slot, long currentTime)
+    {
+      return slot.expiration == Long.MAX_VALUE || currentTime < slot.expiration + retention;
+    }
+
+    public synchronized void remove(String key)
+    {
+      Slot slot = index.get(key);
+      if (slot != null)
+        discard(slot);
+    }
+
+    public synchronized void clear()
+    {
+      index.clear();
+      ring.clear();
+      writePosition = 0;
+      usedBytes = 0L;
+    }
+
+    /** Get copies of the most recently used slots, most recently used first.
+    */
+    public List<Slot> mostRecentlyUsed(int maxKeys)
+    {
+      List<Slot> rval;
+      synchronized (this)
+      {
+        rval = new ArrayList<Slot>(index.size());
+        for (Slot slot : index.values())
+        {
+          rval.add(new Slot(slot.key,slot.created,slot.expiration,slot.lastUsed));
+        }
+      }
+      Collections.sort(rval,MOST_RECENTLY_USED_FIRST);
+      return (rval.size() > maxKeys)?rval.subList(0,maxKeys):rval;
+    }
+
+    public synchronized int size()
+    {
+      return index.size();
+    }
+
+    public synchronized long usedBytes()
+    {
+      return usedBytes;
+    }
+  }
+
+  /** Where an entry is in its segment's buffer, and its times.
+  */
+  protected static class Slot
+  {
+    public final String key;
+    public final long created;
+    public final long expiration;
+    public int offset;
+    public int length;
+    /** False once the entry has been removed, replaced or evicted */
+    public boolean live = true;
+    /** Whether the entry has been looked up since it was stored */
+    public boolean referenced = false;
+    /** When the entry was last stored or looked up, by the cache's use clock */
+    public long lastUsed;
+
+    public Slot(String key, long created, long expiration, long lastUsed)
+    {
+      this.key = key;
+      this.created = created;
+      this.expiration = expiration;
+      this.lastUsed = lastUsed;
+    }
+  }
+
+  protected static final Comparator<Slot> MOST_RECENTLY_USED_FIRST = new Comparator<Slot>()
+    {
+      @Override
+      public int compare(Slot a, Slot b)
+      {
+        return (a.lastUsed > b.lastUsed)?-1:((a.lastUsed < b.lastUsed)?1:0);
+      }
+    };
+}
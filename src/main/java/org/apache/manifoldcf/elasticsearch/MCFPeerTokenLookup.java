@@ -0,0 +1,39 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+import org.elasticsearch.action.ActionListener;
+
+/** This interface describes a source of access tokens held by other nodes of
+* the cluster, which an MCFAuthorizer asks before calling the authority service.
+* Lookups never block the calling thread, so that a node waiting for another one
+* cannot hold up the threads that node's requests need in turn.
+* Implementations must be thread-safe.
+*/
+public interface MCFPeerTokenLookup
+{
+  /** Ask another node for a user's access tokens.
+  *@param userKey is the canonical user identity.
+  *@param domainMap is the user's identity, as a map from domain to user name.
+  *@param listener receives the access tokens, or a failure, possibly on a transport thread.
+  *@return false, without calling the listener, if the local node should ask the authority service itself.
+  */
+  public boolean lookup(String userKey, Map<String,String> domainMap, ActionListener<List<String>> listener);
+}
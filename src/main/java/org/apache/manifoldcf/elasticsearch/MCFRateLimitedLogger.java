@@ -0,0 +1,71 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.common.logging.ESLogger;
+
+/** This class logs messages that may repeat on a hot path, at most once per
+* interval.  Messages in between are counted, and the count is reported with the
+* next message that is logged.  Callers check shouldLog() first, so that no message
+* is built unless it will be logged.  All methods are thread-safe.
+*/
+public class MCFRateLimitedLogger
+{
+  protected final ESLogger logger;
+  protected final long interval;
+  protected final AtomicLong nextLogTime = new AtomicLong(0L);
+  protected final AtomicLong suppressed = new AtomicLong(0L);
+
+  /** Constructor.
+  *@param logger is the logger to log to.
+  *@param interval is the minimum time between logged messages, in milliseconds.
+  */
+  public MCFRateLimitedLogger(ESLogger logger, long interval)
+  {
+    this.logger = logger;
+    this.interval = interval;
+  }
+
+  /** Decide whether a message should be logged now.  If not, it is counted as suppressed.
+  *@return true if the caller should call info() with the message.
+  */
+  public boolean shouldLog()
+  {
+    if (!logger.isInfoEnabled())
+      return false;
+    long currentTime = System.currentTimeMillis();
+    long next = nextLogTime.get();
+    if (currentTime >= next && nextLogTime.compareAndSet(next,currentTime + interval))
+      return true;
+    suppressed.incrementAndGet();
+    return false;
+  }
+
+  /** Log a message that shouldLog() allowed.
+  */
+  public void info(String message)
+  {
+    long count = suppressed.getAndSet(0L);
+    if (count > 0L)
+      logger.info(message+" ("+count+" similar messages suppressed)");
+    else
+      logger.info(message);
+  }
+}
@@ -0,0 +1,126 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class records where the time of one secured search went: waiting for an
+* authorizer thread, parsing the request, getting the user's access tokens,
+* building the authorization filter, rewriting the search body, and the search
+* itself.  Times are in microseconds.  A profile is filled in by one thread at a
+* time, as the request is handed from one to the next.
+*/
+public class MCFRequestProfile implements ToXContent
+{
+  protected final long startTime = System.nanoTime();
+  /** The user, as given by the "u" parameter */
+  public final String user;
+
+  public long queueTime = 0L;
+  public long parseTime = 0L;
+  public long tokensTime = 0L;
+  public long filterTime = 0L;
+  public long rewriteTime = 0L;
+  public long searchTime = 0L;
+  public long totalTime = 0L;
+  /** The number of distinct access tokens, or -1 if they were never fetched */
+  public int tokenCount = -1;
+  /** The number of leaf clauses of the authorization filter, or -1 if it was never built */
+  public int clauseCount = -1;
+
+  public MCFRequestProfile(String user)
+  {
+    this.user = user;
+  }
+
+  /** Get the time since a System.nanoTime() value, in microseconds.
+  */
+  public static long elapsed(long fromTime)
+  {
+    return (System.nanoTime() - fromTime) / 1000L;
+  }
+
+  /** Note that an authorizer thread has picked the request up.
+  */
+  public void dequeued()
+  {
+    queueTime = elapsed(startTime);
+  }
+
+  /** Note that the request has been parsed and secured.
+  *@param parseStartTime is when parsing started, from System.nanoTime().
+  */
+  public void parsed(long parseStartTime)
+  {
+    // Parsing time excludes the phases that happened while parsing
+    parseTime = Math.max(elapsed(parseStartTime) - tokensTime - filterTime - rewriteTime,0L);
+  }
+
+  /** Note that the search has completed.
+  *@param searchStartTime is when the search was sent, from System.nanoTime().
+  */
+  public void searched(long searchStartTime)
+  {
+    searchTime = elapsed(searchStartTime);
+    totalTime = elapsed(startTime);
+  }
+
+  /** Get the total time so far, or of the whole request once the search has completed.
+  */
+  public long getTotalTime()
+  {
+    return (totalTime > 0L)?totalTime:elapsed(startTime);
+  }
+
+  /** Render the phase times for a response header, e.g. "queue=12;parse=40;...".
+  */
+  public String toHeaderValue()
+  {
+    return "queue="+queueTime+";parse="+parseTime+";tokens="+tokensTime+";filter="+filterTime
+      +";rewrite="+rewriteTime+";search="+searchTime+";total="+getTotalTime();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "took["+(getTotalTime() / 1000L)+"ms], user["+user+"], tokens["+tokenCount+"], clauses["+clauseCount
+      +"], micros["+toHeaderValue()+"]";
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    builder.field("user",user);
+    builder.field("tokens",tokenCount);
+    builder.field("clauses",clauseCount);
+    builder.startObject("micros");
+    builder.field("queue",queueTime);
+    builder.field("parse",parseTime);
+    builder.field("tokens",tokensTime);
+    builder.field("filter",filterTime);
+    builder.field("rewrite",rewriteTime);
+    builder.field("search",searchTime);
+    builder.field("total",getTotalTime());
+    builder.endObject();
+    return builder;
+  }
+}
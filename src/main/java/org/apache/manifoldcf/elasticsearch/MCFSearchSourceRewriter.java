@@ -0,0 +1,224 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.FilterBuilder;
+
+/** This class rewrites JSON search request bodies so that their top-level
+* query is restricted by an authorization filter.  The body is copied token by
+* token in a single pass; only the top-level "query" value is replaced, by a
+* "filtered" query wrapping the original query and the authorization filter.
+* If the body has no top-level query, a filtered query without an inner query
+* (which matches all permitted documents) is added.  All methods are thread-safe.
+*/
+public class MCFSearchSourceRewriter
+{
+  /** Shared factory; Jackson factories are thread-safe once configured */
+  protected static final JsonFactory JSON_FACTORY = new JsonFactory();
+  static
+  {
+    // The output stream belongs to the caller
+    JSON_FACTORY.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET,false);
+  }
+
+  private MCFSearchSourceRewriter()
+  {
+  }
+
+  /** What was learned about a search body while rewriting it.
+  */
+  public static class SourceInfo
+  {
+    /** The top-level "size", or -1 if there is none */
+    public int size = -1;
+  }
+
+  /** Rewrite a search body.
+  *@param source is the JSON search body, e.g. {"query":{...},"aggs":{...}}.
+  *@param authorizationFilter is the filter to apply.
+  *@return the rewritten JSON body.
+  */
+  public static BytesReference rewriteSearchSource(BytesReference source, FilterBuilder authorizationFilter)
+    throws MCFAuthorizerException
+  {
+    return rewrite(source,filterJSON(authorizationFilter),false,null);
+  }
+
+  /** Rewrite a search body, noting what it asks for.
+  *@param source is the JSON search body, e.g. {"query":{...},"aggs":{...}}.
+  *@param authorizationFilter is the filter to apply.
+  *@param info receives what was learned about the search body.
+  *@return the rewritten JSON body.
+  */
+  public static BytesReference rewriteSearchSource(BytesReference source, FilterBuilder authorizationFilter, SourceInfo info)
+    throws MCFAuthorizerException
+  {
+    return rewrite(source,filterJSON(authorizationFilter),false,info);
+  }
+
+  /** Rewrite a template search body, securing the query of its inline "template" object.
+  *@param source is the JSON template search body, e.g. {"template":{"query":{...}},"params":{...}}.
+  *@param authorizationFilter is the filter to apply.
+  *@return the rewritten JSON body.
+  */
+  public static BytesReference rewriteTemplateSource(BytesReference source, FilterBuilder authorizationFilter)
+    throws MCFAuthorizerException
+  {
+    return rewrite(source,filterJSON(authorizationFilter),true,null);
+  }
+
+  /** Get the JSON form of a filter, reusing the stored form of a serialized filter.
+  */
+  protected static String filterJSON(FilterBuilder authorizationFilter)
+  {
+    if (authorizationFilter instanceof MCFSerializedFilterBuilder)
+      return ((MCFSerializedFilterBuilder)authorizationFilter).sourceAsString();
+    return authorizationFilter.buildAsBytes(XContentType.JSON).toUtf8();
+  }
+
+  protected static BytesReference rewrite(BytesReference source, String filterJSON, boolean isTemplate, SourceInfo info)
+    throws MCFAuthorizerException
+  {
+    try
+    {
+      BytesStreamOutput out = new BytesStreamOutput(source.length() + filterJSON.length() + 64);
+      JsonParser parser;
+      if (source.hasArray())
+        parser = JSON_FACTORY.createParser(source.array(),source.arrayOffset(),source.length());
+      else
+        parser = JSON_FACTORY.createParser(source.streamInput());
+      try
+      {
+        JsonGenerator generator = JSON_FACTORY.createGenerator(out);
+        try
+        {
+          if (parser.nextToken() != JsonToken.START_OBJECT)
+            throw new MCFAuthorizerException("Search request body must be a JSON object");
+          if (isTemplate)
+            rewriteTemplateObject(parser,generator,filterJSON);
+          else
+            rewriteSearchObject(parser,generator,filterJSON,info);
+        }
+        finally
+        {
+          generator.close();
+        }
+      }
+      finally
+      {
+        parser.close();
+      }
+      return out.bytes();
+    }
+    catch (IOException e)
+    {
+      throw new MCFAuthorizerException("JSON parser error: "+e.getMessage(),e);
+    }
+  }
+
+  /** Copy a template search object, rewriting its "template" object.  The parser
+  * must be positioned on the object's START_OBJECT token.
+  */
+  protected static void rewriteTemplateObject(JsonParser parser, JsonGenerator generator, String filterJSON)
+    throws IOException, MCFAuthorizerException
+  {
+    boolean sawTemplate = false;
+    generator.writeStartObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME)
+    {
+      String fieldName = parser.getCurrentName();
+      JsonToken valueToken = parser.nextToken();
+      generator.writeFieldName(fieldName);
+      if ("template".equals(fieldName))
+      {
+        if (valueToken != JsonToken.START_OBJECT)
+          throw new MCFAuthorizerException("Only inline template objects can be secured");
+        rewriteSearchObject(parser,generator,filterJSON,null);
+        sawTemplate = true;
+      }
+      else
+        generator.copyCurrentStructure(parser);
+    }
+    if (!sawTemplate)
+      throw new MCFAuthorizerException("Template search request has no template to secure");
+    generator.writeEndObject();
+  }
+
+  /** Copy a search object, replacing its top-level query.  The parser must be
+  * positioned on the object's START_OBJECT token.
+  *@param info receives what was learned about the search object, or is null.
+  */
+  protected static void rewriteSearchObject(JsonParser parser, JsonGenerator generator, String filterJSON, SourceInfo info)
+    throws IOException
+  {
+    boolean sawQuery = false;
+    generator.writeStartObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME)
+    {
+      String fieldName = parser.getCurrentName();
+      JsonToken valueToken = parser.nextToken();
+      if ("query".equals(fieldName))
+      {
+        writeFilteredQuery(parser,generator,filterJSON);
+        sawQuery = true;
+      }
+      else
+      {
+        if (info != null && "size".equals(fieldName) && valueToken == JsonToken.VALUE_NUMBER_INT)
+          info.size = parser.getIntValue();
+        generator.writeFieldName(fieldName);
+        generator.copyCurrentStructure(parser);
+      }
+    }
+    if (!sawQuery)
+      writeFilteredQuery(null,generator,filterJSON);
+    generator.writeEndObject();
+  }
+
+  /** Write a "query" field holding the filtered query.
+  *@param parser is positioned on the original query value, or is null if there is none.
+  */
+  protected static void writeFilteredQuery(JsonParser parser, JsonGenerator generator, String filterJSON)
+    throws IOException
+  {
+    generator.writeFieldName("query");
+    generator.writeStartObject();
+    generator.writeFieldName("filtered");
+    generator.writeStartObject();
+    if (parser != null)
+    {
+      generator.writeFieldName("query");
+      generator.copyCurrentStructure(parser);
+    }
+    generator.writeFieldName("filter");
+    generator.writeRawValue(filterJSON);
+    generator.writeEndObject();
+    generator.writeEndObject();
+  }
+}
@@ -0,0 +1,104 @@
+/* $Id$ */
+
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.query.BaseFilterBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
+
+/** This class is an immutable filter builder that has already been serialized
+* to JSON.  It is used to share one built authorization filter between many
+* requests, without building or serializing the filter tree again.
+*/
+public class MCFSerializedFilterBuilder extends BaseFilterBuilder
+{
+  /** The filter, as JSON */
+  protected final BytesReference source;
+  /** The filter, as a JSON string */
+  protected final String sourceString;
+
+  /** Constructor.
+  *@param source is the JSON form of the filter, e.g. {"bool":{...}}.
+  */
+  public MCFSerializedFilterBuilder(BytesReference source)
+  {
+    this.source = source;
+    this.sourceString = source.toUtf8();
+  }
+
+  /** Serialize a filter builder.
+  *@param filter is the filter builder to serialize.
+  *@return the serialized filter builder.
+  */
+  public static MCFSerializedFilterBuilder serialize(FilterBuilder filter)
+  {
+    return new MCFSerializedFilterBuilder(filter.buildAsBytes(XContentType.JSON));
+  }
+
+  /** Get the JSON form of the filter.
+  */
+  public BytesReference source()
+  {
+    return source;
+  }
+
+  /** Get the JSON form of the filter, as a string.
+  */
+  public String sourceAsString()
+  {
+    return sourceString;
+  }
+
+  @Override
+  public BytesReference buildAsBytes(XContentType contentType)
+  {
+    if (contentType == XContentType.JSON)
+      return source;
+    return super.buildAsBytes(contentType);
+  }
+
+  @Override
+  protected void doXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    // Stream the stored fields into the enclosing object; this is much cheaper than
+    // rebuilding the filter tree
+    XContentParser parser = JsonXContent.jsonXContent.createParser(source);
+    try
+    {
+      parser.nextToken();
+      while (parser.nextToken() == XContentParser.Token.FIELD_NAME)
+      {
+        builder.field(parser.currentName());
+        parser.nextToken();
+        builder.copyCurrentStructure(parser);
+      }
+    }
+    finally
+    {
+      parser.close();
+    }
+  }
+}
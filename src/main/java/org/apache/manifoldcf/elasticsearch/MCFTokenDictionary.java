@@ -0,0 +1,139 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/** This class is a bounded dictionary of access tokens, looked up by their
+* encoded bytes.  Users that share groups get the same String instances for the
+* shared tokens, so that the tokens of many cached users are not duplicated on the
+* heap, and a token already in the dictionary is decoded without allocating
+* anything.  The dictionary is direct-mapped: a token whose slot is taken by a
+* different token replaces it, so its memory use never grows past its size.  All
+* methods are thread-safe and lock-free.
+*/
+public class MCFTokenDictionary implements ToXContent
+{
+  protected final AtomicReferenceArray<Entry> slots;
+  protected final int mask;
+  protected final AtomicLong hits = new AtomicLong();
+  protected final AtomicLong misses = new AtomicLong();
+
+  /** Constructor.
+  *@param size is the number of slots, rounded up to a power of two.
+  */
+  public MCFTokenDictionary(int size)
+  {
+    int capacity = Integer.highestOneBit(Math.max(size,1) - 1) << 1;
+    if (capacity <= 0)
+      capacity = 1;
+    slots = new AtomicReferenceArray<Entry>(capacity);
+    mask = capacity - 1;
+  }
+
+  /** Decode a token, reusing the dictionary's copy if there is one.
+  *@param bytes holds the encoded token.
+  *@param offset is the offset of the token in bytes.
+  *@param length is the length of the token in bytes.
+  *@param charset is the encoding of the token.
+  *@return the token.
+  */
+  public String intern(byte[] bytes, int offset, int length, Charset charset)
+  {
+    int hash = hash(bytes,offset,length);
+    int slot = hash & mask;
+    Entry entry = slots.get(slot);
+    if (entry != null && entry.hash == hash && entry.charset.equals(charset) && entry.matches(bytes,offset,length))
+    {
+      hits.incrementAndGet();
+      return entry.value;
+    }
+    misses.incrementAndGet();
+    String value = new String(bytes,offset,length,charset);
+    slots.set(slot,new Entry(hash,Arrays.copyOfRange(bytes,offset,offset + length),charset,value));
+    return value;
+  }
+
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  public long getMisses()
+  {
+    return misses.get();
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params)
+    throws IOException
+  {
+    builder.startObject("token_dictionary");
+    builder.field("slots",slots.length());
+    builder.field("hits",hits.get());
+    builder.field("misses",misses.get());
+    builder.endObject();
+    return builder;
+  }
+
+  protected static int hash(byte[] bytes, int offset, int length)
+  {
+    // FNV-1a, then spread the high bits into the slot index
+    int h = 0x811c9dc5;
+    for (int i = offset; i < offset + length; i++)
+    {
+      h ^= bytes[i];
+      h *= 0x01000193;
+    }
+    return h ^ (h >>> 16);
+  }
+
+  protected static class Entry
+  {
+    public final int hash;
+    public final byte[] bytes;
+    public final Charset charset;
+    public final String value;
+
+    public Entry(int hash, byte[] bytes, Charset charset, String value)
+    {
+      this.hash = hash;
+      this.bytes = bytes;
+      this.charset = charset;
+      this.value = value;
+    }
+
+    public boolean matches(byte[] other, int offset, int length)
+    {
+      if (bytes.length != length)
+        return false;
+      for (int i = 0; i < length; i++)
+      {
+        if (bytes[i] != other[offset + i])
+          return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.transport.TransportResponse;
+
+/** This class is the transport response carrying a user's access tokens.
+*/
+public class MCFTokenLookupResponse extends TransportResponse
+{
+  protected List<String> tokens;
+
+  public MCFTokenLookupResponse()
+  {
+  }
+
+  public MCFTokenLookupResponse(List<String> tokens)
+  {
+    this.tokens = tokens;
+  }
+
+  public List<String> getTokens()
+  {
+    return tokens;
+  }
+
+  @Override
+  public void readFrom(StreamInput in)
+    throws IOException
+  {
+    super.readFrom(in);
+    int size = in.readVInt();
+    tokens = new ArrayList<String>(size);
+    for (int i = 0; i < size; i++)
+    {
+      tokens.add(in.readString());
+    }
+  }
+
+  @Override
+  public void writeTo(StreamOutput out)
+    throws IOException
+  {
+    super.writeTo(out);
+    out.writeVInt(tokens.size());
+    for (String token : tokens)
+    {
+      out.writeString(token);
+    }
+  }
+}
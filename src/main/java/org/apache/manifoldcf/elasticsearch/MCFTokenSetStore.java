@@ -0,0 +1,39 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+/** This interface describes where an MCFAuthorizer keeps the token sets that
+* are too large to send with every search.  Terms lookup filters then fetch them
+* from there, by id, on the nodes that run the search.  Implementations must be
+* thread-safe.
+*/
+public interface MCFTokenSetStore
+{
+  /** Store a token set, unless it is already stored.  A token set's id is derived
+  * from its tokens, so a stored token set never changes.  This is called while
+  * building a search's filter, so it must not wait for the token set to be stored.
+  *@param id is the token set's id.
+  *@param tokens are the canonical access tokens.
+  *@return true if the token set is known to be stored, or false if it is still
+  * being stored and terms lookup filters can't use it yet.
+  */
+  public boolean store(String id, List<String> tokens)
+    throws MCFAuthorizerException;
+}
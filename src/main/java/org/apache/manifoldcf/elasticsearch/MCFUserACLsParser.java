@@ -0,0 +1,131 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/** This class reads the body of an authority service UserACLs response, which
+* holds one "TOKEN:" line per access token and other lines describing the state
+* of the authorities.  It works on the raw bytes, so no String is made for a line
+* unless it is a token that is not already in the token dictionary, or a status
+* line that is going to be logged.  The response must be in an ASCII-compatible
+* encoding, which UTF-8 is.  Instances are not thread-safe; use one per response.
+*/
+public class MCFUserACLsParser
+{
+  protected static final byte[] TOKEN_PREFIX = new byte[]{'T','O','K','E','N',':'};
+  protected static final int INITIAL_BUFFER_SIZE = 8192;
+
+  protected final Charset charset;
+  protected final MCFTokenDictionary dictionary;
+  protected final MCFRateLimitedLogger statusLogger;
+
+  /** Constructor.
+  *@param charset is the encoding of the response.
+  *@param dictionary is the dictionary to intern tokens in, or null if tokens are not interned.
+  *@param statusLogger logs the lines that are not tokens.
+  */
+  public MCFUserACLsParser(Charset charset, MCFTokenDictionary dictionary, MCFRateLimitedLogger statusLogger)
+  {
+    this.charset = charset;
+    this.dictionary = dictionary;
+    this.statusLogger = statusLogger;
+  }
+
+  /** Read the access tokens from a response body.  The stream is not closed.
+  *@param is is the response body, already decompressed.
+  *@return the access tokens, in the order they were sent.
+  */
+  public List<String> parse(InputStream is)
+    throws IOException
+  {
+    List<String> tokenList = new ArrayList<String>();
+    byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    // Unparsed bytes are buffer[start..end); bytes before scan are known not to be newlines
+    int start = 0;
+    int end = 0;
+    int scan = 0;
+    while (true)
+    {
+      while (scan < end && buffer[scan] != '\n')
+      {
+        scan++;
+      }
+      if (scan < end)
+      {
+        parseLine(buffer,start,scan,tokenList);
+        scan++;
+        start = scan;
+        continue;
+      }
+      // Need more bytes; make room by moving the partial line down, or growing the buffer if it fills it
+      if (start > 0)
+      {
+        System.arraycopy(buffer,start,buffer,0,end - start);
+        end -= start;
+        scan -= start;
+        start = 0;
+      }
+      else if (end == buffer.length)
+        buffer = Arrays.copyOf(buffer,buffer.length * 2);
+      int amt = is.read(buffer,end,buffer.length - end);
+      if (amt == -1)
+        break;
+      end += amt;
+    }
+    // The last line need not end with a newline
+    if (end > start)
+      parseLine(buffer,start,end,tokenList);
+    return tokenList;
+  }
+
+  /** Handle one line, excluding its newline.
+  */
+  protected void parseLine(byte[] buffer, int start, int end, List<String> tokenList)
+  {
+    if (end > start && buffer[end - 1] == '\r')
+      end--;
+    if (startsWithTokenPrefix(buffer,start,end))
+    {
+      int tokenStart = start + TOKEN_PREFIX.length;
+      if (dictionary != null)
+        tokenList.add(dictionary.intern(buffer,tokenStart,end - tokenStart,charset));
+      else
+        tokenList.add(new String(buffer,tokenStart,end - tokenStart,charset));
+    }
+    else if (end > start && statusLogger.shouldLog())
+    {
+      // It probably says something about the state of the authority(s) involved, so log it
+      statusLogger.info("Saw authority response "+new String(buffer,start,end - start,charset));
+    }
+  }
+
+  protected static boolean startsWithTokenPrefix(byte[] buffer, int start, int end)
+  {
+    if (end - start < TOKEN_PREFIX.length)
+      return false;
+    for (int i = 0; i < TOKEN_PREFIX.length; i++)
+    {
+      if (buffer[start + i] != TOKEN_PREFIX[i])
+        return false;
+    }
+    return true;
+  }
+}
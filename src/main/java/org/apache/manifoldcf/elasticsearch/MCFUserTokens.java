@@ -0,0 +1,45 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+/** This class is the outcome of resolving one user's access tokens as part of a
+* batch: either the tokens, or the error that prevented resolving them.
+*/
+public class MCFUserTokens
+{
+  /** The user identity, as a map from domain to user name */
+  public final Map<String,String> domainMap;
+  /** The access tokens, or null if they could not be resolved */
+  public final List<String> tokens;
+  /** Why the access tokens could not be resolved, or null if they were */
+  public final MCFAuthorizerException error;
+
+  public MCFUserTokens(Map<String,String> domainMap, List<String> tokens, MCFAuthorizerException error)
+  {
+    this.domainMap = domainMap;
+    this.tokens = tokens;
+    this.error = error;
+  }
+
+  public boolean isResolved()
+  {
+    return error == null;
+  }
+}
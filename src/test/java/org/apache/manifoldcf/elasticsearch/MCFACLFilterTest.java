@@ -0,0 +1,207 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/** Checks that the mcf_acl filter sees the same documents as the bool filter,
+* on a local node with several segments, deleted documents and documents that
+* use every combination of open, allowed and denied levels.
+*/
+public class MCFACLFilterTest
+{
+  protected static final String INDEX = "acl";
+  protected static final String TYPE = "doc";
+  protected static final String[] LEVELS = new String[]{"share","parent","document"};
+  protected static final int DOCUMENTS = 600;
+  protected static final int GROUPS = 40;
+
+  protected File home;
+  protected Node node;
+  protected Client client;
+  protected MCFAuthorizer authorizer;
+
+  @BeforeClass
+  public void startNode()
+    throws IOException
+  {
+    home = File.createTempFile("mcf-acl-test",null);
+    if (!home.delete() || !home.mkdir())
+      throw new IOException("Couldn't create directory " + home);
+    node = NodeBuilder.nodeBuilder().settings(ImmutableSettings.settingsBuilder()
+      .put("cluster.name","mcf-acl-test-" + System.nanoTime())
+      .put("path.home",home.getAbsolutePath())
+      .put("node.local",true)
+      .put("http.enabled",false)
+      .put("index.number_of_shards",2)
+      .put("index.number_of_replicas",0)
+      .put("plugin.types",MCFAuthorizerPlugin.class.getName())).node();
+    client = node.client();
+    client.admin().cluster().prepareHealth().setWaitForGreenStatus().get();
+    authorizer = new MCFAuthorizer(new MCFConfigurationParameters().setBaseURL(null));
+    indexDocuments();
+  }
+
+  @AfterClass
+  public void stopNode()
+  {
+    if (authorizer != null)
+      authorizer.shutdown();
+    if (node != null)
+      node.close();
+    if (home != null)
+      deleteRecursively(home);
+  }
+
+  protected void indexDocuments()
+    throws IOException
+  {
+    // Access tokens must be indexed as they are
+    XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(TYPE)
+      .startArray("dynamic_templates").startObject().startObject("access_tokens")
+      .field("match","*_token_*")
+      .startObject("mapping").field("type","string").field("index","not_analyzed").endObject()
+      .endObject().endObject().endArray()
+      .endObject().endObject();
+    client.admin().indices().prepareCreate(INDEX).addMapping(TYPE,mapping).get();
+    Random random = new Random(42L);
+    // Several batches, refreshed in between, so that each shard has several segments
+    for (int batch = 0; batch < 3; batch++)
+    {
+      BulkRequestBuilder bulk = client.prepareBulk();
+      for (int i = batch * DOCUMENTS / 3; i < (batch + 1) * DOCUMENTS / 3; i++)
+      {
+        XContentBuilder source = XContentFactory.jsonBuilder().startObject();
+        for (String level : LEVELS)
+        {
+          source.field("allow_token_"+level,randomTokens(random));
+          source.field("deny_token_"+level,randomTokens(random));
+        }
+        bulk.add(client.prepareIndex(INDEX,TYPE,Integer.toString(i)).setSource(source.endObject()));
+      }
+      assertFalse(bulk.get().hasFailures());
+      client.admin().indices().prepareRefresh(INDEX).get();
+    }
+    for (int i = 0; i < DOCUMENTS; i += 7)
+    {
+      client.prepareDelete(INDEX,TYPE,Integer.toString(i)).get();
+    }
+    client.admin().indices().prepareRefresh(INDEX).get();
+  }
+
+  /** Mostly open fields, as documents without security have, and otherwise a few groups */
+  protected static List<String> randomTokens(Random random)
+  {
+    List<String> tokens = new ArrayList<String>();
+    if (random.nextInt(3) > 0)
+      tokens.add(MCFAuthorizer.NOSECURITY_TOKEN);
+    else
+    {
+      int count = 1 + random.nextInt(3);
+      for (int i = 0; i < count; i++)
+      {
+        tokens.add("group"+random.nextInt(GROUPS));
+      }
+    }
+    return tokens;
+  }
+
+  protected Set<String> search(FilterBuilder filter)
+  {
+    SearchResponse response = client.prepareSearch(INDEX)
+      .setQuery(QueryBuilders.constantScoreQuery(filter)).setSize(DOCUMENTS).get();
+    assertEquals(response.getFailedShards(),0);
+    Set<String> ids = new HashSet<String>();
+    for (SearchHit hit : response.getHits().getHits())
+    {
+      ids.add(hit.getId());
+    }
+    assertEquals(ids.size(),(int)response.getHits().getTotalHits());
+    return ids;
+  }
+
+  protected void assertSameDocuments(List<String> tokens)
+  {
+    Set<String> expected = search(authorizer.calculateAuthorizationFilter(tokens,MCFAuthorizer.FILTER_SHAPE_TERM));
+    // Twice, so that the second search uses the cached token sets
+    assertEquals(search(authorizer.calculateAuthorizationFilter(tokens,MCFAuthorizer.FILTER_SHAPE_ACL)),expected);
+    assertEquals(search(authorizer.calculateAuthorizationFilter(tokens,MCFAuthorizer.FILTER_SHAPE_ACL)),expected);
+  }
+
+  @Test
+  public void singleTokens()
+  {
+    for (int group = 0; group < GROUPS; group += 5)
+    {
+      assertSameDocuments(Arrays.asList("group"+group));
+    }
+  }
+
+  @Test
+  public void manyTokens()
+  {
+    Random random = new Random(7L);
+    for (int user = 0; user < 20; user++)
+    {
+      List<String> tokens = new ArrayList<String>();
+      int count = 1 + random.nextInt(GROUPS / 2);
+      for (int i = 0; i < count; i++)
+      {
+        tokens.add("group"+random.nextInt(GROUPS));
+      }
+      assertSameDocuments(tokens);
+    }
+  }
+
+  @Test
+  public void unknownTokens()
+  {
+    assertSameDocuments(Arrays.asList("nobody"));
+  }
+
+  protected static void deleteRecursively(File file)
+  {
+    File[] children = file.listFiles();
+    if (children != null)
+    {
+      for (File child : children)
+      {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,123 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFAuthorityEndpointsTest
+{
+  protected static final List<MCFAuthorityEndpoints.Endpoint> NONE = Collections.<MCFAuthorityEndpoints.Endpoint>emptyList();
+
+  protected static MCFAuthorityEndpoints endpoints(long readmitInterval)
+  {
+    return new MCFAuthorityEndpoints(new String[]{"http://a","http://b"},MCFAuthorityEndpoints.SELECTION_ROUND_ROBIN,2,readmitInterval);
+  }
+
+  protected static void eject(MCFAuthorityEndpoints endpoints, MCFAuthorityEndpoints.Endpoint endpoint)
+  {
+    endpoints.recordFailure(endpoint,"test");
+    endpoints.recordFailure(endpoint,"test");
+    assertFalse(endpoint.isHealthy());
+  }
+
+  /** Count how often each endpoint is chosen */
+  protected static Map<String,Integer> choices(MCFAuthorityEndpoints endpoints, int count)
+  {
+    Map<String,Integer> rval = new HashMap<String,Integer>();
+    for (int i = 0; i < count; i++)
+    {
+      String baseURL = endpoints.select(NONE).getBaseURL();
+      Integer previous = rval.get(baseURL);
+      rval.put(baseURL,(previous == null)?1:previous + 1);
+    }
+    return rval;
+  }
+
+  @Test
+  public void ejectedEndpointGetsOneTrialAfterTheInterval()
+    throws InterruptedException
+  {
+    MCFAuthorityEndpoints endpoints = endpoints(100L);
+    MCFAuthorityEndpoints.Endpoint a = endpoints.getEndpoints().get(0);
+    eject(endpoints,a);
+    assertNull(choices(endpoints,10).get("http://a"));
+    Thread.sleep(150L);
+    // One request is let through, the rest go elsewhere until it has answered
+    assertEquals(choices(endpoints,10).get("http://a"),Integer.valueOf(1));
+    endpoints.recordSuccess(a);
+    assertTrue(a.isHealthy());
+    assertEquals(choices(endpoints,10).get("http://a"),Integer.valueOf(5));
+  }
+
+  @Test
+  public void failedTrialWaitsForTheNextInterval()
+    throws InterruptedException
+  {
+    MCFAuthorityEndpoints endpoints = endpoints(100L);
+    MCFAuthorityEndpoints.Endpoint a = endpoints.getEndpoints().get(0);
+    eject(endpoints,a);
+    Thread.sleep(150L);
+    assertEquals(choices(endpoints,10).get("http://a"),Integer.valueOf(1));
+    endpoints.recordFailure(a,"test");
+    assertFalse(a.isHealthy());
+    assertNull(choices(endpoints,10).get("http://a"));
+    Thread.sleep(150L);
+    assertEquals(choices(endpoints,10).get("http://a"),Integer.valueOf(1));
+  }
+
+  @Test
+  public void noTrialsWithoutAnInterval()
+    throws InterruptedException
+  {
+    MCFAuthorityEndpoints endpoints = endpoints(0L);
+    MCFAuthorityEndpoints.Endpoint a = endpoints.getEndpoints().get(0);
+    eject(endpoints,a);
+    Thread.sleep(50L);
+    assertNull(choices(endpoints,10).get("http://a"));
+  }
+
+  @Test
+  public void ejectedEndpointsAreUsedWhenNothingElseIs()
+  {
+    MCFAuthorityEndpoints endpoints = endpoints(0L);
+    MCFAuthorityEndpoints.Endpoint a = endpoints.getEndpoints().get(0);
+    MCFAuthorityEndpoints.Endpoint b = endpoints.getEndpoints().get(1);
+    eject(endpoints,a);
+    assertSame(endpoints.select(Collections.singletonList(b)),a);
+    assertNull(endpoints.select(Arrays.asList(a,b)));
+  }
+
+  @Test
+  public void healthChecksNeverWaitForever()
+  {
+    assertEquals(MCFAuthorizer.healthCheckTimeout(60000,300000),60000);
+    assertEquals(MCFAuthorizer.healthCheckTimeout(0,300000),300000);
+    assertEquals(MCFAuthorizer.healthCheckTimeout(60000,0),60000);
+    assertEquals(MCFAuthorizer.healthCheckTimeout(0,0),MCFAuthorizer.DEFAULT_HEALTH_CHECK_TIMEOUT);
+  }
+
+  @Test(expectedExceptions = org.elasticsearch.ElasticsearchIllegalArgumentException.class)
+  public void negativeRetriesAreRejected()
+  {
+    new MCFConfigurationParameters().setAuthorityRetries(-1);
+  }
+}
@@ -0,0 +1,157 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFAuthorizerBatchTest
+{
+  protected MCFAuthorizer authorizer = null;
+
+  @AfterMethod
+  public void shutdown()
+  {
+    if (authorizer != null)
+      authorizer.shutdown();
+    authorizer = null;
+  }
+
+  protected static Map<String,String> user(String name)
+  {
+    return MCFAuthorizer.parseUserNamesAndDomains(new String[]{name});
+  }
+
+  /** An authorizer whose batch helpers block until released, while the calling
+  * thread answers its own user at once.
+  */
+  protected static class HeldAuthorizer extends MCFAuthorizer
+  {
+    protected final Thread caller = Thread.currentThread();
+    public final CountDownLatch helperEntered = new CountDownLatch(1);
+    public final CountDownLatch release = new CountDownLatch(1);
+    public final CountDownLatch helperDone = new CountDownLatch(1);
+    public volatile boolean helperCancelled = false;
+
+    public HeldAuthorizer()
+    {
+      super(new MCFConfigurationParameters().setBaseURL(null).setAuthorityBatchConcurrency(2));
+    }
+
+    @Override
+    protected MCFUserTokens resolveUserTokens(Map<String,String> domainMap)
+    {
+      if (Thread.currentThread() == caller)
+      {
+        // The caller is interrupted, so it cannot use an interruptible wait
+        while (helperEntered.getCount() > 0L)
+        {
+          Thread.yield();
+        }
+        return new MCFUserTokens(domainMap,Collections.singletonList("caller"),null);
+      }
+      helperEntered.countDown();
+      // Ignore cancellation, so that the helper only finishes once released
+      while (true)
+      {
+        try
+        {
+          release.await(10L,TimeUnit.SECONDS);
+          break;
+        }
+        catch (InterruptedException e)
+        {
+          helperCancelled = true;
+        }
+      }
+      MCFUserTokens rval = new MCFUserTokens(domainMap,Collections.singletonList("helper"),null);
+      helperDone.countDown();
+      return rval;
+    }
+  }
+
+  @Test
+  public void resultsDoNotChangeAfterAnInterrupt()
+    throws InterruptedException
+  {
+    HeldAuthorizer held = new HeldAuthorizer();
+    authorizer = held;
+    List<Map<String,String>> domainMaps = new ArrayList<Map<String,String>>();
+    domainMaps.add(user("alice"));
+    domainMaps.add(user("bob"));
+    Thread.currentThread().interrupt();
+    List<MCFUserTokens> results = authorizer.getAccessTokens(domainMaps,2);
+    assertTrue(Thread.interrupted());
+
+    int errors = 0;
+    for (MCFUserTokens result : results)
+    {
+      if (!result.isResolved())
+        errors++;
+      else
+        assertEquals(result.tokens,Collections.singletonList("caller"));
+    }
+    assertEquals(errors,1);
+    List<MCFUserTokens> before = new ArrayList<MCFUserTokens>(results);
+
+    // The helper was cancelled rather than left to run on
+    assertTrue(held.helperEntered.await(10L,TimeUnit.SECONDS));
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (!held.helperCancelled && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(10L);
+    }
+    assertTrue(held.helperCancelled);
+
+    // Let the helper finish; what was returned must not change
+    held.release.countDown();
+    assertTrue(held.helperDone.await(10L,TimeUnit.SECONDS));
+    assertEquals(results,before);
+    for (MCFUserTokens result : results)
+    {
+      if (!result.isResolved())
+        assertNull(result.tokens);
+    }
+  }
+
+  @Test
+  public void duplicateUsersShareAResult()
+  {
+    authorizer = new MCFAuthorizer(new MCFConfigurationParameters().setBaseURL(null))
+      {
+        @Override
+        protected MCFUserTokens resolveUserTokens(Map<String,String> domainMap)
+        {
+          return new MCFUserTokens(domainMap,Collections.singletonList(domainMap.toString()),null);
+        }
+      };
+    List<Map<String,String>> domainMaps = new ArrayList<Map<String,String>>();
+    domainMaps.add(user("alice"));
+    domainMaps.add(user("bob"));
+    domainMaps.add(user("alice"));
+    List<MCFUserTokens> results = authorizer.getAccessTokens(domainMaps,10);
+    assertEquals(results.size(),3);
+    assertSame(results.get(0),results.get(2));
+    assertEquals(results.get(1).domainMap,user("bob"));
+  }
+}
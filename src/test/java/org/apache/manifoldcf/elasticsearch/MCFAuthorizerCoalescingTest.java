@@ -0,0 +1,161 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFAuthorizerCoalescingTest
+{
+  protected static final int THREADS = 8;
+
+  protected HeldAuthorizer authorizer = null;
+  protected ExecutorService executor = null;
+
+  @AfterMethod
+  public void shutdown()
+  {
+    if (executor != null)
+      executor.shutdownNow();
+    executor = null;
+    if (authorizer != null)
+      authorizer.shutdown();
+    authorizer = null;
+  }
+
+  /** An authorizer whose authority requests block until released */
+  protected static class HeldAuthorizer extends MCFAuthorizer
+  {
+    public final AtomicInteger fetches = new AtomicInteger();
+    public final CountDownLatch release = new CountDownLatch(1);
+    public volatile MCFAuthorizerException failure = null;
+
+    public HeldAuthorizer(MCFConfigurationParameters cp)
+    {
+      super(cp);
+    }
+
+    @Override
+    protected List<String> fetchAccessTokens(Map<String,String> domainMap)
+      throws MCFAuthorizerException
+    {
+      fetches.incrementAndGet();
+      try
+      {
+        release.await(10L,TimeUnit.SECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      if (failure != null)
+        throw failure;
+      return new ArrayList<String>(Arrays.asList("token1","token2"));
+    }
+  }
+
+  protected static Map<String,String> user(String name)
+  {
+    return MCFAuthorizer.parseUserNamesAndDomains(new String[]{name});
+  }
+
+  /** Ask for one user's tokens from many threads at once, releasing the authority
+  * request only once every other thread is waiting on it.
+  */
+  protected List<Future<List<String>>> askConcurrently()
+    throws InterruptedException
+  {
+    executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+    for (int i = 0; i < THREADS; i++)
+    {
+      futures.add(executor.submit(new Callable<List<String>>()
+        {
+          @Override
+          public List<String> call()
+          {
+            return authorizer.getAccessTokens(user("alice"));
+          }
+        }));
+    }
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (authorizer.getStats().coalescedRequests.get() < THREADS - 1 && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(10L);
+    }
+    assertEquals(authorizer.getStats().coalescedRequests.get(),(long)(THREADS - 1));
+    authorizer.release.countDown();
+    return futures;
+  }
+
+  @Test
+  public void concurrentRequestsShareOneFetch()
+    throws Exception
+  {
+    authorizer = new HeldAuthorizer(new MCFConfigurationParameters().setBaseURL(null));
+    List<Future<List<String>>> futures = askConcurrently();
+    List<String> first = futures.get(0).get(10L,TimeUnit.SECONDS);
+    assertEquals(first,Arrays.asList("token1","token2"));
+    for (Future<List<String>> future : futures)
+    {
+      assertSame(future.get(10L,TimeUnit.SECONDS),first);
+    }
+    assertEquals(authorizer.fetches.get(),1);
+    assertTrue(authorizer.inFlightRequests.isEmpty());
+    // The request is over, so the next one fetches again
+    authorizer.getAccessTokens(user("alice"));
+    assertEquals(authorizer.fetches.get(),2);
+  }
+
+  @Test
+  public void failuresReachEveryWaiterAndAreNotCached()
+    throws Exception
+  {
+    authorizer = new HeldAuthorizer(new MCFConfigurationParameters().setBaseURL(null).setCacheMaxEntries(100));
+    MCFAuthorizerException failure = new MCFAuthorizerException("Authority said no");
+    authorizer.failure = failure;
+    List<Future<List<String>>> futures = askConcurrently();
+    for (Future<List<String>> future : futures)
+    {
+      try
+      {
+        future.get(10L,TimeUnit.SECONDS);
+        fail("Expected the authority failure");
+      }
+      catch (ExecutionException e)
+      {
+        assertSame(e.getCause(),failure);
+      }
+    }
+    assertEquals(authorizer.fetches.get(),1);
+    assertTrue(authorizer.inFlightRequests.isEmpty());
+    assertEquals(authorizer.getTokenCache().size(),0);
+
+    // Once the authority answers, the user is fetched and cached
+    authorizer.failure = null;
+    assertEquals(authorizer.getAccessTokens(user("alice")),Arrays.asList("token1","token2"));
+    assertEquals(authorizer.fetches.get(),2);
+    assertEquals(authorizer.getTokenCache().size(),1);
+  }
+}
@@ -0,0 +1,136 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFAuthorizerFilterCacheTest
+{
+  protected MCFAuthorizer authorizer = null;
+
+  @AfterMethod
+  public void shutdown()
+  {
+    if (authorizer != null)
+      authorizer.shutdown();
+    authorizer = null;
+  }
+
+  protected static MCFConfigurationParameters configuration()
+  {
+    return new MCFConfigurationParameters().setBaseURL(null).setFilterCacheMaxEntries(100);
+  }
+
+  protected static List<String> tokens(int count)
+  {
+    List<String> rval = new ArrayList<String>();
+    for (int i = 0; i < count; i++)
+    {
+      rval.add("token"+i);
+    }
+    return rval;
+  }
+
+  protected long shapeCount(String shape)
+  {
+    java.util.concurrent.atomic.AtomicLong counter = authorizer.getStats().filterShapes.get(shape);
+    return (counter == null)?0L:counter.get();
+  }
+
+  @Test
+  public void cachedFiltersAreIdenticalAndCounted()
+  {
+    authorizer = new MCFAuthorizer(configuration().setFilterShape(MCFAuthorizer.FILTER_SHAPE_TERM));
+    FilterBuilder first = authorizer.buildAuthorizationFilter(Arrays.asList("b","a"));
+    FilterBuilder second = authorizer.buildAuthorizationFilter(Arrays.asList("a","b","a"));
+    assertSame(second,first);
+    assertEquals(authorizer.getStats().filterCacheMisses.get(),1L);
+    assertEquals(authorizer.getStats().filterCacheHits.get(),1L);
+    // Cache hits are filters handed out too
+    assertEquals(shapeCount(MCFAuthorizer.FILTER_SHAPE_TERM),2L);
+  }
+
+  @Test
+  public void lookupFallbacksAreNotCached()
+  {
+    authorizer = new MCFAuthorizer(configuration().setFilterShape(MCFAuthorizer.FILTER_SHAPE_LOOKUP));
+    final boolean[] available = new boolean[]{false};
+    authorizer.setTokenSetStore(new MCFTokenSetStore()
+      {
+        @Override
+        public boolean store(String id, List<String> tokens)
+        {
+          return available[0];
+        }
+      });
+    List<String> tokens = tokens(10);
+    String fallback = authorizer.buildAuthorizationFilter(tokens).buildAsBytes(XContentType.JSON).toUtf8();
+    assertTrue(fallback.contains("\"terms\""));
+    assertFalse(fallback.contains("\"index\""));
+    // Once the token set can be stored, the lookup shape is used
+    available[0] = true;
+    String lookup = authorizer.buildAuthorizationFilter(tokens).buildAsBytes(XContentType.JSON).toUtf8();
+    assertTrue(lookup.contains("\"index\""));
+    authorizer.buildAuthorizationFilter(tokens);
+    assertEquals(authorizer.getStats().filterCacheHits.get(),1L);
+    assertEquals(shapeCount(MCFAuthorizer.FILTER_SHAPE_TERMS),1L);
+    assertEquals(shapeCount(MCFAuthorizer.FILTER_SHAPE_LOOKUP),2L);
+  }
+
+  @Test
+  public void largeTokenSetsUseTermFiltersByDefault()
+  {
+    authorizer = new MCFAuthorizer(configuration());
+    authorizer.setTokenSetStore(new MCFTokenSetStore()
+      {
+        @Override
+        public boolean store(String id, List<String> tokens)
+        {
+          return true;
+        }
+      });
+    authorizer.buildAuthorizationFilter(tokens(6000));
+    assertEquals(shapeCount(MCFAuthorizer.FILTER_SHAPE_TERM),1L);
+  }
+
+  @Test
+  public void storeFailuresFallBack()
+  {
+    authorizer = new MCFAuthorizer(configuration().setFilterShape(MCFAuthorizer.FILTER_SHAPE_LOOKUP));
+    authorizer.setTokenSetStore(new MCFTokenSetStore()
+      {
+        @Override
+        public boolean store(String id, List<String> tokens)
+        {
+          throw new MCFAuthorizerException("Not available");
+        }
+      });
+    authorizer.buildAuthorizationFilter(tokens(10));
+    assertEquals(shapeCount(MCFAuthorizer.FILTER_SHAPE_TERMS),1L);
+    assertEquals(authorizer.getStats().filterCacheMisses.get(),1L);
+    authorizer.buildAuthorizationFilter(tokens(10));
+    assertEquals(authorizer.getStats().filterCacheMisses.get(),2L);
+  }
+}
@@ -0,0 +1,135 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.elasticsearch.action.ActionListener;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFAuthorizerPrefetchTest
+{
+  protected MCFAuthorizer authorizer = null;
+
+  @AfterMethod
+  public void shutdown()
+  {
+    if (authorizer != null)
+      authorizer.shutdown();
+    authorizer = null;
+  }
+
+  /** A peer lookup that holds on to its listeners until the test answers them */
+  protected static class HeldPeerLookup implements MCFPeerTokenLookup
+  {
+    public final List<ActionListener<List<String>>> listeners = new ArrayList<ActionListener<List<String>>>();
+    public boolean owned = false;
+
+    @Override
+    public boolean lookup(String userKey, Map<String,String> domainMap, ActionListener<List<String>> listener)
+    {
+      if (owned)
+        return false;
+      listeners.add(listener);
+      return true;
+    }
+  }
+
+  protected static class Flag implements Runnable
+  {
+    public final AtomicInteger runs = new AtomicInteger();
+
+    @Override
+    public void run()
+    {
+      runs.incrementAndGet();
+    }
+  }
+
+  protected static Map<String,String> user(String name)
+  {
+    return MCFAuthorizer.parseUserNamesAndDomains(new String[]{name});
+  }
+
+  protected MCFAuthorizer cachingAuthorizer()
+  {
+    return new MCFAuthorizer(new MCFConfigurationParameters().setBaseURL(null).setCacheMaxEntries(100));
+  }
+
+  @Test
+  public void answersAreCachedBeforeTheTaskRuns()
+  {
+    authorizer = cachingAuthorizer();
+    HeldPeerLookup peers = new HeldPeerLookup();
+    authorizer.setPeerLookup(peers);
+    Flag then = new Flag();
+    authorizer.prefetchAccessTokens(Arrays.asList(user("alice"),user("bob"),user("alice")),then);
+    // One lookup per distinct user, and nothing runs until both are answered
+    assertEquals(peers.listeners.size(),2);
+    assertEquals(then.runs.get(),0);
+    peers.listeners.get(0).onResponse(Arrays.asList("a1","a2"));
+    assertEquals(then.runs.get(),0);
+    peers.listeners.get(1).onFailure(new RuntimeException("Owner left"));
+    assertEquals(then.runs.get(),1);
+    // No authority service is configured, so this can only come from the cache
+    assertEquals(authorizer.getAccessTokens(user("alice")),Arrays.asList("a1","a2"));
+    assertEquals(authorizer.getTokenCacheSize(),1);
+  }
+
+  @Test
+  public void cachedUsersAreNotLookedUp()
+  {
+    authorizer = cachingAuthorizer();
+    HeldPeerLookup peers = new HeldPeerLookup();
+    authorizer.setPeerLookup(peers);
+    authorizer.prefetchAccessTokens(Arrays.asList(user("alice")),new Flag());
+    peers.listeners.get(0).onResponse(Arrays.asList("a1"));
+    Flag then = new Flag();
+    authorizer.prefetchAccessTokens(Arrays.asList(user("alice")),then);
+    assertEquals(peers.listeners.size(),1);
+    assertEquals(then.runs.get(),1);
+  }
+
+  @Test
+  public void locallyOwnedUsersRunAtOnce()
+  {
+    authorizer = cachingAuthorizer();
+    HeldPeerLookup peers = new HeldPeerLookup();
+    peers.owned = true;
+    authorizer.setPeerLookup(peers);
+    Flag then = new Flag();
+    authorizer.prefetchAccessTokens(Arrays.asList(user("alice"),user("bob")),then);
+    assertEquals(then.runs.get(),1);
+  }
+
+  @Test
+  public void peersNeedTheTokenCache()
+  {
+    authorizer = new MCFAuthorizer(new MCFConfigurationParameters().setBaseURL(null));
+    HeldPeerLookup peers = new HeldPeerLookup();
+    authorizer.setPeerLookup(peers);
+    Flag then = new Flag();
+    authorizer.prefetchAccessTokens(Arrays.asList(user("alice")),then);
+    assertTrue(peers.listeners.isEmpty());
+    assertEquals(then.runs.get(),1);
+  }
+}
@@ -0,0 +1,67 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFAuthorizerRestMultiSearchActionTest
+{
+  protected static MCFAuthorizerRestMultiSearchAction.Searches split(String body, String defaultUser)
+  {
+    return MCFAuthorizerRestMultiSearchAction.splitMultiSearchSource(new BytesArray(body), defaultUser);
+  }
+
+  @Test
+  public void headerUsersApplyToTheirSearch()
+  {
+    MCFAuthorizerRestMultiSearchAction.Searches searches = split(
+      "{\"u\":\"alice\",\"index\":\"docs\"}\n{\"query\":{\"match_all\":{}}}\n{}\n{\"size\":0}\n",null);
+    assertEquals(searches.users,Arrays.asList("alice",null));
+    // The user is taken out of the header, which is otherwise left as it was
+    assertEquals(searches.headers.get(0).toUtf8(),"{\"index\":\"docs\"}");
+    assertEquals(searches.bodies.get(1).toUtf8(),"{\"size\":0}");
+    assertEquals(searches.domainMaps().size(),1);
+  }
+
+  @Test
+  public void parameterUserAppliesToEverySearch()
+  {
+    MCFAuthorizerRestMultiSearchAction.Searches searches = split(
+      "{}\n{\"size\":0}\n{\"u\":\"alice\"}\n{\"size\":0}\n","alice");
+    assertEquals(searches.users,Arrays.asList("alice","alice"));
+    assertEquals(searches.domainMaps().size(),1);
+  }
+
+  @Test(expectedExceptions = ElasticsearchIllegalArgumentException.class)
+  public void headerCannotOverrideParameterUser()
+  {
+    split("{}\n{\"size\":0}\n{\"u\":\"admin\"}\n{\"size\":0}\n","alice");
+  }
+
+  @Test(expectedExceptions = MCFAuthorizerException.class)
+  public void headerUserMustBeAString()
+  {
+    split("{\"u\":[\"alice\"]}\n{\"size\":0}\n",null);
+  }
+}
@@ -0,0 +1,104 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFCacheWarmerTest
+{
+  protected File directory = null;
+  protected MCFAuthorizer authorizer = null;
+
+  @BeforeMethod
+  public void setUp()
+    throws IOException
+  {
+    directory = File.createTempFile("mcf_hot_set",null);
+    directory.delete();
+    assertTrue(directory.mkdir());
+    authorizer = new MCFAuthorizer(new MCFConfigurationParameters().setBaseURL(null).setCacheMaxEntries(100));
+  }
+
+  @AfterMethod
+  public void tearDown()
+  {
+    authorizer.shutdown();
+    delete(directory);
+  }
+
+  protected static void delete(File file)
+  {
+    File[] files = file.listFiles();
+    if (files != null)
+    {
+      for (File child : files)
+      {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  protected void cacheUser(String name)
+  {
+    Map<String,String> domainMap = MCFAuthorizer.parseUserNamesAndDomains(new String[]{name});
+    authorizer.storeAccessTokens(MCFAuthorizer.canonicalUserKey(domainMap),Arrays.asList("token"));
+  }
+
+  protected MCFCacheWarmer warmer(File hotSetFile)
+  {
+    return new MCFCacheWarmer(authorizer,null,new MCFConfigurationParameters(),hotSetFile);
+  }
+
+  @Test
+  public void savesAndReadsTheHotSet()
+  {
+    File hotSetFile = new File(directory,"hot_users");
+    cacheUser("alice");
+    cacheUser("bob");
+    warmer(hotSetFile).saveHotSet();
+    assertEquals(new HashSet<String>(warmer(hotSetFile).readHotSet()),new HashSet<String>(Arrays.asList("alice","bob")));
+    assertFalse(new File(hotSetFile.getPath()+".tmp").exists());
+
+    // Saving again replaces the previous hot set
+    cacheUser("carol");
+    warmer(hotSetFile).saveHotSet();
+    assertEquals(warmer(hotSetFile).readHotSet().size(),3);
+  }
+
+  @Test
+  public void failedSaveKeepsThePreviousHotSet()
+  {
+    File hotSetFile = new File(directory,"hot_users");
+    cacheUser("alice");
+    warmer(hotSetFile).saveHotSet();
+    // A directory in the way of the temporary file makes the save fail
+    File tempFile = new File(hotSetFile.getPath()+".tmp");
+    assertTrue(tempFile.mkdir());
+    cacheUser("bob");
+    warmer(hotSetFile).saveHotSet();
+    assertEquals(warmer(hotSetFile).readHotSet(),Arrays.asList("alice"));
+  }
+}
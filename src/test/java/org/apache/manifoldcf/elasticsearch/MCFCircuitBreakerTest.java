@@ -0,0 +1,199 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFCircuitBreakerTest
+{
+  protected static final long OPEN_DURATION = 100L;
+
+  /** A breaker over 10 calls, opening at half of at least 4 failing or taking over 100 ms, with 2 probes */
+  protected static MCFCircuitBreaker breaker()
+  {
+    return new MCFCircuitBreaker(10,4,50,100L,50,OPEN_DURATION,2);
+  }
+
+  protected static void call(MCFCircuitBreaker breaker, boolean fail)
+  {
+    assertTrue(breaker.allowCall());
+    if (fail)
+      breaker.recordFailure();
+    else
+      breaker.recordSuccess(10L);
+  }
+
+  protected static MCFCircuitBreaker openBreaker()
+  {
+    MCFCircuitBreaker breaker = breaker();
+    for (int i = 0; i < 4; i++)
+    {
+      call(breaker,true);
+    }
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_OPEN);
+    return breaker;
+  }
+
+  protected static void waitForHalfOpen(MCFCircuitBreaker breaker)
+    throws InterruptedException
+  {
+    Thread.sleep(OPEN_DURATION + 50L);
+    assertTrue(breaker.allowCall());
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_HALF_OPEN);
+  }
+
+  @Test
+  public void staysClosedBelowTheMinimumCalls()
+  {
+    MCFCircuitBreaker breaker = breaker();
+    for (int i = 0; i < 3; i++)
+    {
+      call(breaker,true);
+    }
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+    call(breaker,true);
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_OPEN);
+  }
+
+  @Test
+  public void opensAtTheFailureRate()
+  {
+    MCFCircuitBreaker breaker = breaker();
+    call(breaker,false);
+    call(breaker,false);
+    call(breaker,false);
+    call(breaker,true);
+    // 1 of 4 failed
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+    call(breaker,true);
+    // 2 of 5
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+    call(breaker,true);
+    // 3 of 6
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_OPEN);
+  }
+
+  @Test
+  public void oldOutcomesLeaveTheWindow()
+  {
+    MCFCircuitBreaker breaker = breaker();
+    for (int i = 0; i < 4; i++)
+    {
+      call(breaker,true);
+      if (i == 0)
+      {
+        // Push the first failure out of the window before the others arrive
+        for (int j = 0; j < 10; j++)
+        {
+          call(breaker,false);
+        }
+      }
+    }
+    // 3 of the last 10 failed
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+  }
+
+  @Test
+  public void opensAtTheSlowCallRate()
+  {
+    MCFCircuitBreaker breaker = breaker();
+    for (int i = 0; i < 3; i++)
+    {
+      assertTrue(breaker.allowCall());
+      breaker.recordSuccess(200L);
+    }
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+    assertTrue(breaker.allowCall());
+    breaker.recordSuccess(10L);
+    // 3 of 4 were slow
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_OPEN);
+
+    // Without a slow call duration, no call is slow
+    breaker = new MCFCircuitBreaker(10,4,50,0L,50,OPEN_DURATION,2);
+    for (int i = 0; i < 10; i++)
+    {
+      assertTrue(breaker.allowCall());
+      breaker.recordSuccess(100000L);
+    }
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+  }
+
+  @Test
+  public void refusesCallsUntilTheOpenDurationHasPassed()
+    throws InterruptedException
+  {
+    MCFCircuitBreaker breaker = openBreaker();
+    assertFalse(breaker.allowCall());
+    assertFalse(breaker.allowCall());
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_OPEN);
+    waitForHalfOpen(breaker);
+  }
+
+  @Test
+  public void limitsProbesAndClosesWhenTheySucceed()
+    throws InterruptedException
+  {
+    MCFCircuitBreaker breaker = openBreaker();
+    waitForHalfOpen(breaker);
+    assertTrue(breaker.allowCall());
+    // Both probes are out
+    assertFalse(breaker.allowCall());
+    breaker.recordSuccess(10L);
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_HALF_OPEN);
+    assertFalse(breaker.allowCall());
+    breaker.recordSuccess(10L);
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+    // The window starts afresh
+    for (int i = 0; i < 3; i++)
+    {
+      call(breaker,true);
+    }
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+  }
+
+  @Test
+  public void reopensWhenAProbeFails()
+    throws InterruptedException
+  {
+    MCFCircuitBreaker breaker = openBreaker();
+    waitForHalfOpen(breaker);
+    assertTrue(breaker.allowCall());
+    breaker.recordSuccess(10L);
+    breaker.recordFailure();
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_OPEN);
+    assertFalse(breaker.allowCall());
+    // The next half-open period has all its probes again
+    waitForHalfOpen(breaker);
+    assertTrue(breaker.allowCall());
+    breaker.recordSuccess(10L);
+    breaker.recordSuccess(10L);
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_CLOSED);
+  }
+
+  @Test
+  public void reopensWhenAProbeIsSlow()
+    throws InterruptedException
+  {
+    MCFCircuitBreaker breaker = openBreaker();
+    waitForHalfOpen(breaker);
+    breaker.recordSuccess(200L);
+    assertEquals(breaker.getState(),MCFCircuitBreaker.STATE_OPEN);
+  }
+}
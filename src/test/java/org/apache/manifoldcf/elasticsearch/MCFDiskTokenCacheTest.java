@@ -0,0 +1,118 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.util.*;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFDiskTokenCacheTest
+{
+  protected File directory = null;
+  protected MCFDiskTokenCache cache = null;
+
+  @BeforeMethod
+  public void setUp()
+    throws IOException
+  {
+    directory = File.createTempFile("mcf_disk_cache",null);
+    directory.delete();
+    assertTrue(directory.mkdir());
+    cache = new MCFDiskTokenCache(new File(directory,"tokens"),0L);
+    cache.load();
+  }
+
+  @AfterMethod
+  public void tearDown()
+  {
+    cache.close();
+    File[] files = directory.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  protected void fill()
+  {
+    // Every user is saved twice, so half the file is superseded records
+    for (int round = 0; round < 2; round++)
+    {
+      for (int i = 0; i < 100; i++)
+      {
+        cache.put("user"+i,Arrays.asList("token"+round,"token"+i),0L,Long.MAX_VALUE);
+      }
+    }
+  }
+
+  protected void checkContents()
+  {
+    for (int i = 0; i < 100; i++)
+    {
+      MCFLRUCache.Entry<List<String>> entry = cache.get("user"+i);
+      assertNotNull(entry);
+      assertEquals(entry.value,Arrays.asList("token1","token"+i));
+    }
+  }
+
+  @Test
+  public void compactionKeepsLiveRecords()
+  {
+    fill();
+    long length = cache.getFile().length();
+    cache.compact();
+    assertTrue(cache.getFile().length() < length);
+    assertFalse(new File(cache.getFile().getPath()+".tmp").exists());
+    checkContents();
+    // Writes after a compaction go to the new file
+    cache.put("user100",Arrays.asList("token100"),0L,Long.MAX_VALUE);
+    cache.close();
+    cache = new MCFDiskTokenCache(cache.getFile(),0L);
+    cache.load();
+    checkContents();
+    assertEquals(cache.get("user100").value,Arrays.asList("token100"));
+  }
+
+  @Test
+  public void failedCompactionKeepsTheOldFile()
+  {
+    fill();
+    long length = cache.getFile().length();
+    // A directory in the way of the temporary file makes the compaction fail
+    File tempFile = new File(cache.getFile().getPath()+".tmp");
+    assertTrue(tempFile.mkdir());
+    cache.compact();
+    // The failed compaction cleans up after itself
+    assertFalse(tempFile.exists());
+    assertTrue(cache.isLoaded());
+    assertEquals(cache.getFile().length(),length);
+    checkContents();
+    cache.compact();
+    assertTrue(cache.getFile().length() < length);
+    checkContents();
+  }
+}
@@ -0,0 +1,108 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+import org.elasticsearch.common.xcontent.XContentType;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFFilterCacheKeyTest
+{
+  protected MCFAuthorizer authorizer = null;
+
+  @AfterMethod
+  public void shutdown()
+  {
+    if (authorizer != null)
+      authorizer.shutdown();
+    authorizer = null;
+  }
+
+  protected static MCFConfigurationParameters configuration()
+  {
+    return new MCFConfigurationParameters().setBaseURL(null).setFilterShape(MCFAuthorizer.FILTER_SHAPE_TERM);
+  }
+
+  protected String filterJSON(List<String> tokens)
+  {
+    return authorizer.buildAuthorizationFilter(tokens).buildAsBytes(XContentType.JSON).toUtf8();
+  }
+
+  @Test
+  public void tokenKeysIgnoreOrderAndDuplicates()
+  {
+    assertEquals(MCFAuthorizer.canonicalTokenKey(Arrays.asList("b","a","b")),MCFAuthorizer.canonicalTokenKey(Arrays.asList("a","b")));
+    assertEquals(MCFAuthorizer.tokenSetId(Arrays.asList("b","a")),MCFAuthorizer.tokenSetId(Arrays.asList("a","b","a")));
+  }
+
+  @Test
+  public void tokenKeysKeepTokensApart()
+  {
+    assertFalse(MCFAuthorizer.canonicalTokenKey(Arrays.asList("ab","c")).equals(MCFAuthorizer.canonicalTokenKey(Arrays.asList("a","bc"))));
+    assertFalse(MCFAuthorizer.canonicalTokenKey(Arrays.asList("a")).equals(MCFAuthorizer.canonicalTokenKey(Arrays.asList("a","b"))));
+    assertFalse(MCFAuthorizer.tokenSetId(Arrays.asList("a")).equals(MCFAuthorizer.tokenSetId(Arrays.asList("b"))));
+  }
+
+  @Test
+  public void hashKeysAreShort()
+  {
+    String key = MCFAuthorizer.hashKey("anything");
+    assertTrue(key.startsWith("mcf_"));
+    assertEquals(key.length(),4 + 64);
+    assertEquals(MCFAuthorizer.hashKey("anything"),key);
+  }
+
+  @Test
+  public void filterCacheKeysDependOnShapeAndPrefixes()
+  {
+    authorizer = new MCFAuthorizer(configuration());
+    List<String> tokens = Arrays.asList("a","b");
+    String key = authorizer.filterCacheKey(MCFAuthorizer.FILTER_SHAPE_TERM,tokens);
+    assertEquals(authorizer.filterCacheKey(MCFAuthorizer.FILTER_SHAPE_TERM,Arrays.asList("b","a")),key);
+    assertFalse(authorizer.filterCacheKey(MCFAuthorizer.FILTER_SHAPE_TERMS,tokens).equals(key));
+    MCFAuthorizer other = new MCFAuthorizer(configuration().setAllowFieldPrefix("other_allow_"));
+    try
+    {
+      assertFalse(other.filterCacheKey(MCFAuthorizer.FILTER_SHAPE_TERM,tokens).equals(key));
+    }
+    finally
+    {
+      other.shutdown();
+    }
+  }
+
+  @Test
+  public void filtersHaveCacheKeysOnlyWhenEnabled()
+  {
+    authorizer = new MCFAuthorizer(configuration());
+    assertFalse(filterJSON(Arrays.asList("a","b")).contains("_cache_key"));
+    authorizer.shutdown();
+
+    authorizer = new MCFAuthorizer(configuration().setFilterCacheKeys(true));
+    String json = filterJSON(Arrays.asList("b","a","b"));
+    String key = authorizer.filterCacheKey(MCFAuthorizer.FILTER_SHAPE_TERM,Arrays.asList("a","b"));
+    assertTrue(json.contains("\"_cache_key\":\""+key+"\""));
+    assertTrue(json.contains("\"_cache_key\":\""+key+"_share\""));
+    // The same tokens in another order give the same filter
+    assertEquals(filterJSON(Arrays.asList("a","b")),json);
+  }
+}
@@ -0,0 +1,93 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFLRUCacheTest
+{
+  @Test
+  public void evictsLeastRecentlyUsed()
+  {
+    MCFLRUCache<String,String> cache = new MCFLRUCache<String,String>(2,0L);
+    cache.put("a","1");
+    cache.put("b","2");
+    // Using "a" makes "b" the least recently used
+    assertEquals(cache.get("a"),"1");
+    cache.put("c","3");
+    assertEquals(cache.size(),2);
+    assertNull(cache.get("b"));
+    assertEquals(cache.get("a"),"1");
+    assertEquals(cache.get("c"),"3");
+  }
+
+  @Test
+  public void keysAreMostRecentlyUsedFirst()
+  {
+    MCFLRUCache<String,String> cache = new MCFLRUCache<String,String>(10,0L);
+    cache.put("a","1");
+    cache.put("b","2");
+    cache.put("c","3");
+    cache.get("a");
+    assertEquals(cache.keys(10),Arrays.asList("a","c","b"));
+    assertEquals(cache.keys(2),Arrays.asList("a","c"));
+  }
+
+  @Test
+  public void entriesExpire()
+  {
+    MCFLRUCache<String,String> cache = new MCFLRUCache<String,String>(10,1000L);
+    long now = System.currentTimeMillis();
+    cache.put("fresh","1",now);
+    cache.put("expired","2",now - 2000L);
+    assertEquals(cache.get("fresh"),"1");
+    assertNull(cache.get("expired"));
+    // Without retention, an expired entry is purged when it is found
+    assertNull(cache.getStaleEntry("expired"));
+    assertEquals(cache.size(),1);
+  }
+
+  @Test
+  public void expiredEntriesAreRetained()
+  {
+    MCFLRUCache<String,String> cache = new MCFLRUCache<String,String>(10,1000L,5000L);
+    long now = System.currentTimeMillis();
+    cache.put("stale","1",now - 2000L);
+    cache.put("gone","2",now - 10000L);
+    assertNull(cache.getEntry("stale"));
+    MCFLRUCache.Entry<String> entry = cache.getStaleEntry("stale");
+    assertNotNull(entry);
+    assertEquals(entry.value,"1");
+    assertEquals(entry.created,now - 2000L);
+    assertNull(cache.getStaleEntry("gone"));
+  }
+
+  @Test
+  public void entriesWithoutLifetimeNeverExpire()
+  {
+    MCFLRUCache<String,String> cache = new MCFLRUCache<String,String>(10,0L);
+    cache.put("a","1",0L);
+    MCFLRUCache.Entry<String> entry = cache.getEntry("a");
+    assertNotNull(entry);
+    assertEquals(entry.expiration,Long.MAX_VALUE);
+  }
+}
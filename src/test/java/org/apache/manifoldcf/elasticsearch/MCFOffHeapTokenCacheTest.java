@@ -0,0 +1,232 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFOffHeapTokenCacheTest
+{
+  /** A cache whose segments hold plenty, with no lifetime */
+  protected static MCFOffHeapTokenCache cache()
+  {
+    return new MCFOffHeapTokenCache(1L << 20,1000,0L,0L,null);
+  }
+
+  /** One token whose encoding takes 30 bytes: a count, a length, and 28 characters */
+  protected static List<String> tokens30(char c)
+  {
+    char[] chars = new char[28];
+    Arrays.fill(chars,c);
+    return Collections.singletonList(new String(chars));
+  }
+
+  /** Store an entry in a segment that never expires */
+  protected static void put(MCFOffHeapTokenCache.Segment segment, String key, List<String> tokens)
+  {
+    segment.put(key,MCFOffHeapTokenCache.encode(tokens),0L,Long.MAX_VALUE);
+  }
+
+  protected static List<String> get(MCFOffHeapTokenCache.Segment segment, String key)
+  {
+    MCFLRUCache.Entry<List<String>> entry = segment.get(key,false);
+    return (entry == null)?null:entry.value;
+  }
+
+  @Test
+  public void tokensSurviveEncoding()
+  {
+    MCFOffHeapTokenCache cache = cache();
+    char[] longToken = new char[300];
+    Arrays.fill(longToken,'x');
+    List<String> tokens = Arrays.asList("a","caf\u00e9","\u4e2d\u6587","",new String(longToken));
+    cache.put("user",tokens);
+    assertEquals(cache.get("user"),tokens);
+    cache.put("empty",Collections.<String>emptyList());
+    assertEquals(cache.get("empty"),Collections.<String>emptyList());
+    assertNull(cache.get("missing"));
+    assertEquals(MCFOffHeapTokenCache.encode(tokens30('a')).length,30);
+  }
+
+  @Test
+  public void replacingAnEntryDiscardsTheOldOne()
+  {
+    MCFOffHeapTokenCache cache = cache();
+    cache.put("user",Arrays.asList("old"));
+    cache.put("user",Arrays.asList("new","er"));
+    assertEquals(cache.get("user"),Arrays.asList("new","er"));
+    assertEquals(cache.size(),1);
+    assertEquals(cache.getUsedBytes(),(long)MCFOffHeapTokenCache.encode(Arrays.asList("new","er")).length);
+    cache.remove("user");
+    assertNull(cache.get("user"));
+    assertEquals(cache.getUsedBytes(),0L);
+  }
+
+  /** The keys held by a segment, without looking them up */
+  protected static Set<String> keys(MCFOffHeapTokenCache.Segment segment)
+  {
+    return new TreeSet<String>(segment.index.keySet());
+  }
+
+  @Test
+  public void wrapsAroundEvictingTheOldest()
+  {
+    MCFOffHeapTokenCache cache = cache();
+    MCFOffHeapTokenCache.Segment segment = cache.new Segment(100,100);
+    put(segment,"a",tokens30('a'));
+    put(segment,"b",tokens30('b'));
+    put(segment,"c",tokens30('c'));
+    // No room is left at the end, so "d" is written over "a" at the start
+    put(segment,"d",tokens30('d'));
+    assertEquals(keys(segment),new TreeSet<String>(Arrays.asList("b","c","d")));
+    assertEquals(segment.usedBytes(),90L);
+    assertEquals(cache.evictions.get(),1L);
+    // And "e" over "b", then "f" over "c"
+    put(segment,"e",tokens30('e'));
+    assertEquals(keys(segment),new TreeSet<String>(Arrays.asList("c","d","e")));
+    put(segment,"f",tokens30('f'));
+    assertEquals(keys(segment),new TreeSet<String>(Arrays.asList("d","e","f")));
+    assertEquals(cache.evictions.get(),3L);
+    for (String key : keys(segment))
+    {
+      assertEquals(get(segment,key),tokens30(key.charAt(0)));
+    }
+  }
+
+  @Test
+  public void usedEntriesGetOneSecondChance()
+  {
+    MCFOffHeapTokenCache cache = cache();
+    MCFOffHeapTokenCache.Segment segment = cache.new Segment(100,100);
+    put(segment,"a",tokens30('a'));
+    put(segment,"b",tokens30('b'));
+    put(segment,"c",tokens30('c'));
+    assertEquals(get(segment,"a"),tokens30('a'));
+    // "a" was used, so it is written again, and "b" is evicted in its place
+    put(segment,"d",tokens30('d'));
+    assertEquals(cache.reinsertions.get(),1L);
+    assertEquals(cache.evictions.get(),1L);
+    assertNull(get(segment,"b"));
+    assertEquals(get(segment,"c"),tokens30('c'));
+    assertEquals(get(segment,"d"),tokens30('d'));
+    assertEquals(segment.size(),3);
+    assertEquals(segment.usedBytes(),90L);
+    // The reinserted "a" starts unused, so it is evicted once the ring reaches it again
+    MCFOffHeapTokenCache.Segment other = cache.new Segment(100,100);
+    put(other,"a",tokens30('a'));
+    put(other,"b",tokens30('b'));
+    put(other,"c",tokens30('c'));
+    get(other,"a");
+    put(other,"d",tokens30('d'));
+    put(other,"e",tokens30('e'));
+    put(other,"f",tokens30('f'));
+    put(other,"g",tokens30('g'));
+    assertNull(get(other,"a"));
+  }
+
+  @Test
+  public void maxEntriesEvictsTheOldest()
+  {
+    MCFOffHeapTokenCache cache = cache();
+    MCFOffHeapTokenCache.Segment segment = cache.new Segment(1000,2);
+    put(segment,"a",Arrays.asList("1"));
+    put(segment,"b",Arrays.asList("2"));
+    put(segment,"c",Arrays.asList("3"));
+    assertEquals(segment.size(),2);
+    assertNull(get(segment,"a"));
+    assertEquals(get(segment,"b"),Arrays.asList("2"));
+    assertEquals(get(segment,"c"),Arrays.asList("3"));
+  }
+
+  @Test
+  public void oversizeEntriesAreRejected()
+  {
+    MCFOffHeapTokenCache cache = cache();
+    MCFOffHeapTokenCache.Segment segment = cache.new Segment(20,100);
+    put(segment,"a",Arrays.asList("small"));
+    // The new tokens don't fit, and the old ones are out of date
+    put(segment,"a",tokens30('a'));
+    assertEquals(cache.rejections.get(),1L);
+    assertNull(get(segment,"a"));
+    assertEquals(segment.size(),0);
+    assertEquals(segment.usedBytes(),0L);
+  }
+
+  @Test
+  public void entriesExpire()
+  {
+    MCFOffHeapTokenCache cache = new MCFOffHeapTokenCache(1L << 20,1000,1000L,0L,null);
+    long now = System.currentTimeMillis();
+    cache.put("fresh",Arrays.asList("1"),now);
+    cache.put("expired",Arrays.asList("2"),now - 2000L);
+    assertEquals(cache.get("fresh"),Arrays.asList("1"));
+    assertNull(cache.get("expired"));
+    // Without retention, an expired entry is purged when it is found
+    assertNull(cache.getStaleEntry("expired"));
+    assertEquals(cache.size(),1);
+  }
+
+  @Test
+  public void expiredEntriesAreRetained()
+  {
+    MCFOffHeapTokenCache cache = new MCFOffHeapTokenCache(1L << 20,1000,1000L,5000L,null);
+    long now = System.currentTimeMillis();
+    cache.put("stale",Arrays.asList("1"),now - 2000L);
+    cache.put("gone",Arrays.asList("2"),now - 10000L);
+    assertNull(cache.getEntry("stale"));
+    MCFLRUCache.Entry<List<String>> entry = cache.getStaleEntry("stale");
+    assertNotNull(entry);
+    assertEquals(entry.value,Arrays.asList("1"));
+    assertEquals(entry.created,now - 2000L);
+    assertEquals(entry.expiration,now - 1000L);
+    assertNull(cache.getStaleEntry("gone"));
+  }
+
+  @Test
+  public void keysAreMostRecentlyUsedFirst()
+  {
+    MCFOffHeapTokenCache cache = cache();
+    // Enough users that they are spread over several segments
+    for (int i = 0; i < 50; i++)
+    {
+      cache.put("user"+i,Arrays.asList("token"));
+    }
+    cache.get("user3");
+    cache.get("user0");
+    List<String> keys = cache.keys(100);
+    assertEquals(keys.size(),50);
+    assertEquals(keys.subList(0,4),Arrays.asList("user0","user3","user49","user48"));
+    assertEquals(cache.keys(2),Arrays.asList("user0","user3"));
+    // Reinsertion keeps an entry's place
+    MCFOffHeapTokenCache.Segment segment = cache.new Segment(100,100);
+    put(segment,"a",tokens30('a'));
+    put(segment,"b",tokens30('b'));
+    put(segment,"c",tokens30('c'));
+    get(segment,"a");
+    put(segment,"d",tokens30('d'));
+    List<String> segmentKeys = new ArrayList<String>();
+    for (MCFOffHeapTokenCache.Slot slot : segment.mostRecentlyUsed(10))
+    {
+      segmentKeys.add(slot.key);
+    }
+    assertEquals(segmentKeys,Arrays.asList("d","a","c"));
+  }
+}
@@ -0,0 +1,112 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.util.*;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFSearchSourceRewriterTest
+{
+  protected static final FilterBuilder FILTER = FilterBuilders.termFilter("allow_token_document","token1");
+
+  protected static Map<String,Object> parse(BytesReference source)
+  {
+    return XContentHelper.convertToMap(source,true).v2();
+  }
+
+  protected static Map<String,Object> parse(String source)
+  {
+    return parse(new BytesArray(source));
+  }
+
+  @Test
+  public void queryIsWrapped()
+    throws Exception
+  {
+    MCFSearchSourceRewriter.SourceInfo info = new MCFSearchSourceRewriter.SourceInfo();
+    BytesReference rewritten = MCFSearchSourceRewriter.rewriteSearchSource(
+      new BytesArray("{\"size\":5,\"query\":{\"match\":{\"body\":\"foo\"}},\"aggs\":{\"a\":{\"terms\":{\"field\":\"f\"}}}}"),FILTER,info);
+    Map<String,Object> expected = parse("{\"size\":5,\"aggs\":{\"a\":{\"terms\":{\"field\":\"f\"}}},"+
+      "\"query\":{\"filtered\":{\"query\":{\"match\":{\"body\":\"foo\"}},\"filter\":{\"term\":{\"allow_token_document\":\"token1\"}}}}}");
+    assertEquals(parse(rewritten),expected);
+    assertEquals(info.size,5);
+  }
+
+  @Test
+  public void missingQueryIsAdded()
+    throws Exception
+  {
+    MCFSearchSourceRewriter.SourceInfo info = new MCFSearchSourceRewriter.SourceInfo();
+    BytesReference rewritten = MCFSearchSourceRewriter.rewriteSearchSource(new BytesArray("{\"from\":10}"),FILTER,info);
+    Map<String,Object> expected = parse("{\"from\":10,\"query\":{\"filtered\":{\"filter\":{\"term\":{\"allow_token_document\":\"token1\"}}}}}");
+    assertEquals(parse(rewritten),expected);
+    assertEquals(info.size,-1);
+  }
+
+  @Test
+  public void nestedQueriesAreLeftAlone()
+    throws Exception
+  {
+    // Only the top-level query is replaced
+    BytesReference rewritten = MCFSearchSourceRewriter.rewriteSearchSource(
+      new BytesArray("{\"post_filter\":{\"query\":{\"match_all\":{}}},\"query\":{\"match_all\":{}}}"),FILTER);
+    Map<String,Object> expected = parse("{\"post_filter\":{\"query\":{\"match_all\":{}}},"+
+      "\"query\":{\"filtered\":{\"query\":{\"match_all\":{}},\"filter\":{\"term\":{\"allow_token_document\":\"token1\"}}}}}");
+    assertEquals(parse(rewritten),expected);
+  }
+
+  @Test
+  public void templateQueryIsWrapped()
+    throws Exception
+  {
+    BytesReference rewritten = MCFSearchSourceRewriter.rewriteTemplateSource(
+      new BytesArray("{\"template\":{\"query\":{\"match\":{\"body\":\"{{q}}\"}}},\"params\":{\"q\":\"foo\",\"query\":\"bar\"}}"),FILTER);
+    Map<String,Object> expected = parse("{\"params\":{\"q\":\"foo\",\"query\":\"bar\"},"+
+      "\"template\":{\"query\":{\"filtered\":{\"query\":{\"match\":{\"body\":\"{{q}}\"}},\"filter\":{\"term\":{\"allow_token_document\":\"token1\"}}}}}}");
+    assertEquals(parse(rewritten),expected);
+  }
+
+  @Test(expectedExceptions = MCFAuthorizerException.class)
+  public void templateWithoutTemplateIsRejected()
+    throws Exception
+  {
+    MCFSearchSourceRewriter.rewriteTemplateSource(new BytesArray("{\"params\":{}}"),FILTER);
+  }
+
+  @Test(expectedExceptions = MCFAuthorizerException.class)
+  public void templateReferenceIsRejected()
+    throws Exception
+  {
+    MCFSearchSourceRewriter.rewriteTemplateSource(new BytesArray("{\"template\":\"stored\"}"),FILTER);
+  }
+
+  @Test(expectedExceptions = MCFAuthorizerException.class)
+  public void nonObjectIsRejected()
+    throws Exception
+  {
+    MCFSearchSourceRewriter.rewriteSearchSource(new BytesArray("[1,2]"),FILTER);
+  }
+}
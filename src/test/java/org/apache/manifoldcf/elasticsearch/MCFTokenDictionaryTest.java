@@ -0,0 +1,86 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MCFTokenDictionaryTest
+{
+  protected static final Charset UTF8 = Charset.forName("utf-8");
+
+  protected static String intern(MCFTokenDictionary dictionary, String token)
+  {
+    // Surround the token with other bytes, as a response body does
+    byte[] bytes = ("TOKEN:"+token+"\n").getBytes(UTF8);
+    return dictionary.intern(bytes,6,bytes.length - 7,UTF8);
+  }
+
+  @Test
+  public void decodesLikeNewString()
+  {
+    MCFTokenDictionary dictionary = new MCFTokenDictionary(16);
+    Random random = new Random(0L);
+    for (int i = 0; i < 1000; i++)
+    {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++)
+      {
+        sb.append((random.nextInt(5) == 0)?'\u00e9':(char)('a' + random.nextInt(3)));
+      }
+      String token = sb.toString();
+      // The small dictionary and alphabet make hits, misses and slot collisions all likely
+      assertEquals(intern(dictionary,token),token);
+    }
+    assertTrue(dictionary.getHits() > 0L);
+    assertTrue(dictionary.getMisses() > 0L);
+  }
+
+  @Test
+  public void sharesInstances()
+  {
+    MCFTokenDictionary dictionary = new MCFTokenDictionary(1024);
+    String first = intern(dictionary,"group1");
+    assertSame(intern(dictionary,"group1"),first);
+    assertEquals(dictionary.getHits(),1L);
+  }
+
+  @Test
+  public void keepsCharsetsApart()
+  {
+    MCFTokenDictionary dictionary = new MCFTokenDictionary(1024);
+    byte[] bytes = "\u00e9".getBytes(UTF8);
+    Charset latin1 = Charset.forName("iso-8859-1");
+    assertEquals(dictionary.intern(bytes,0,bytes.length,UTF8),"\u00e9");
+    assertEquals(dictionary.intern(bytes,0,bytes.length,latin1),new String(bytes,latin1));
+  }
+
+  @Test
+  public void sizeIsRoundedUpToAPowerOfTwo()
+  {
+    assertEquals(new MCFTokenDictionary(1000).slots.length(),1024);
+    assertEquals(new MCFTokenDictionary(1024).slots.length(),1024);
+    assertEquals(new MCFTokenDictionary(1).slots.length(),1);
+    assertEquals(new MCFTokenDictionary(0).slots.length(),1);
+  }
+}
@@ -0,0 +1,134 @@
+/* $Id$ */
+/**
+* Licensed to the Apache Software Foundation (ASF) under one or more
+* contributor license agreements. See the NOTICE file distributed with
+* this work for additional information regarding copyright ownership.
+* The ASF licenses this file to You under the Apache License, Version 2.0
+* (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+package org.apache.manifoldcf.elasticsearch;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.elasticsearch.common.logging.Loggers;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/** Checks that MCFUserACLsParser reads the same tokens as reading the response
+* line by line with a BufferedReader, as the authorizer used to.
+*/
+public class MCFUserACLsParserTest
+{
+  protected static final Charset UTF8 = Charset.forName("utf-8");
+
+  protected static MCFUserACLsParser parser(MCFTokenDictionary dictionary)
+  {
+    return new MCFUserACLsParser(UTF8,dictionary,new MCFRateLimitedLogger(Loggers.getLogger(MCFUserACLsParserTest.class),60000L));
+  }
+
+  /** The line by line reading the parser replaced */
+  protected static List<String> referenceParse(byte[] body)
+    throws IOException
+  {
+    List<String> tokenList = new ArrayList<String>();
+    BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body),UTF8));
+    String line;
+    while ((line = br.readLine()) != null)
+    {
+      if (line.startsWith("TOKEN:"))
+        tokenList.add(line.substring("TOKEN:".length()));
+    }
+    return tokenList;
+  }
+
+  /** A stream returning a few bytes at a time, so that lines span reads */
+  protected static class TrickleInputStream extends FilterInputStream
+  {
+    protected final Random random;
+
+    public TrickleInputStream(byte[] body, Random random)
+    {
+      super(new ByteArrayInputStream(body));
+      this.random = random;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len)
+      throws IOException
+    {
+      return super.read(b,off,Math.min(len,1 + random.nextInt(7)));
+    }
+  }
+
+  protected static byte[] randomBody(Random random)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("AUTHORIZED:ActiveDirectory\n");
+    int lines = random.nextInt(200);
+    for (int i = 0; i < lines; i++)
+    {
+      if (random.nextInt(10) == 0)
+        sb.append("UNREACHABLEAUTHORITY:Other");
+      else
+      {
+        sb.append("TOKEN:");
+        // Mostly short tokens, some very long ones, some not ASCII
+        int length = (random.nextInt(20) == 0)?10000 + random.nextInt(10000):random.nextInt(40);
+        for (int j = 0; j < length; j++)
+        {
+          int c = random.nextInt(30);
+          if (c == 0)
+            sb.append('\u00e9');
+          else if (c == 1)
+            sb.append('\u4e2d');
+          else if (c == 2)
+            sb.append(':');
+          else
+            sb.append((char)('a' + random.nextInt(26)));
+        }
+      }
+      sb.append(random.nextBoolean()?"\n":"\r\n");
+    }
+    if (random.nextBoolean())
+      sb.append("TOKEN:last");
+    return sb.toString().getBytes(UTF8);
+  }
+
+  @Test
+  public void parsesLikeTheReference()
+    throws IOException
+  {
+    Random random = new Random(0L);
+    for (int i = 0; i < 100; i++)
+    {
+      byte[] body = randomBody(random);
+      List<String> expected = referenceParse(body);
+      assertEquals(parser(null).parse(new ByteArrayInputStream(body)),expected);
+      assertEquals(parser(new MCFTokenDictionary(64)).parse(new TrickleInputStream(body,random)),expected);
+    }
+  }
+
+  @Test
+  public void parsesEdgeCases()
+    throws IOException
+  {
+    String[] bodies = new String[]{"","\n","TOKEN:","TOKEN:\n","TOKEN:a","TOKEN:a\r\n\r\nTOKEN:b","TOKEN","XTOKEN:a\nTOKEN:b:c\n"};
+    for (String body : bodies)
+    {
+      byte[] bytes = body.getBytes(UTF8);
+      assertEquals(parser(null).parse(new ByteArrayInputStream(bytes)),referenceParse(bytes),body);
+    }
+  }
+}